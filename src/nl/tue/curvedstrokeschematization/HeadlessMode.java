@@ -9,14 +9,43 @@
  */
 package nl.tue.curvedstrokeschematization;
 
-import nl.tue.curvedstrokeschematization.algo.frechetdistance.implementations.polyhedral.PolyhedralFrechetDistance;
-import nl.tue.curvedstrokeschematization.algo.frechetdistance.util.PolyhedralDistanceFunction;
+import nl.tue.curvedstrokeschematization.algo.ComponentSchematization;
+import nl.tue.curvedstrokeschematization.algo.DistributedSchematization;
 import nl.tue.curvedstrokeschematization.algo.NetworkConstruction;
+import nl.tue.curvedstrokeschematization.algo.TiledSchematization;
 import nl.tue.curvedstrokeschematization.algo.schematization.IterativeSchematization;
+import nl.tue.curvedstrokeschematization.algo.schematization.SchematizationSettings;
+import nl.tue.curvedstrokeschematization.algo.store.NetworkHistory;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.StepPublisher;
 import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.io.Checkpoints;
+import nl.tue.curvedstrokeschematization.io.NetworkCache;
+import nl.tue.curvedstrokeschematization.io.PyramidIO;
+import nl.tue.curvedstrokeschematization.io.StepLog;
 import nl.tue.curvedstrokeschematization.io.WktIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -31,58 +60,338 @@ public class HeadlessMode {
         // -out S -> output filepath S
         // -f D   -> set frechet threshold to D (default = infinity)
         // -c I   -> set complexity threshold to I (default = 0)
+        //           -f and -c may be comma-separated lists: the simplification then writes an output per combination
+        //           as it passes it, numbered after -out by its values; -cc and -tiles use the smallest -c and the largest -f
         // -a I   -> set number of angles to test to I (default = 41)
         // -s D   -> set fraction of Frechet distance used for straight replacements (default = 1.0)
         // -eps D -> set the approximation factor of the Frechet distance computation (default = 1.01)
         // -cd D  -> set crossing distance, as a factor of the bounding box diagonal (default = 0.0075)
         // -kpv B -> set keeping planarization vertices in the output (true/false; default = false)
-        File inputfile = new File(findArgument(args, "-in", null));
-        File outputfile = new File(findArgument(args, "-out", null));
-        double frechet = findArgument(args, "-f", Double.POSITIVE_INFINITY);
-        int complexity = findArgument(args, "-c", 0);
-        int angles = findArgument(args, "-a", 41);
-        int numCandidates = findArgument(args, "-nc", 3);
-        double straightreduc = findArgument(args, "-s", 1.0);
-        double eps = findArgument(args, "-eps", 1.01);
-        double crossdist = findArgument(args, "-cd", 0.0075);
-        boolean keepPlanarizationVertices = findArgument(args, "-kpv", false);
-        
-        String settingsPrint = "\nRUNNING:\n"
-                +"\n  in:  "+inputfile.getAbsolutePath()
-                +"\n  out: "+outputfile.getAbsolutePath()
-                +"\n  f:   "+frechet
-                +"\n  c:   "+complexity
-                +"\n  a:   "+angles
-                +"\n  nc:  "+numCandidates
-                +"\n  s:   "+straightreduc
-                +"\n  eps: "+eps
-                +"\n  cd:  "+crossdist
-                +"\n  kpv: "+keepPlanarizationVertices;
+        // -pp B  -> set parallel planarization on the fork-join pool (true/false; default = false)
+        // -cc B  -> set schematizing connected components in parallel (true/false; default = false)
+        // -t I   -> set number of worker threads for -cc and -tiles to I (default = number of processors)
+        // -tiles I -> set schematizing an I x I grid of tiles in parallel before a global pass (default = 0, disabled)
+        // -tp I  -> set number of tile passes to I, odd passes use a grid shifted by half a tile (default = 2)
+        // -workers S -> simplify the tiles on the comma-separated worker addresses S (host:port), requires -tiles
+        // -wt I  -> set the time in seconds to wait for connecting to a worker and for each of its replies, before its tile goes to another worker (default = 600)
+        // -worker I  -> run as a worker serving tiles on port I; all other settings are ignored, the algorithm settings are received from the coordinator
+        // -bind S -> set the address a worker listens on; workers do not authenticate coordinators, so only bind to trusted interfaces (default = 127.0.0.1)
+        // -pt D  -> set tolerance of the proxy curves for cost evaluation, as a factor of the bounding box diagonal (default = 0, disabled)
+        // -sweep S -> run the grid of settings in file S, one setting per line as flags whose values may be comma-separated lists; lists of -c and -f on the command line extend the grid of lines that do not set them; outputs are numbered after -out (default = none)
+        // -cache S -> cache the planarized and merged network in directory S, reused by runs on the same input; ignored with -cc and -tiles (default = none)
+        // -store S -> write the progressive store of all complexities to file S, for memory-mapped queries; ignored with -cc and -tiles (default = none)
+        // -pyramid S -> export tiles for zoom levels 0 to -zoom to directory S, with complexities growing geometrically with the zoom; ignored with -cc and -tiles (default = none)
+        // -zoom I -> set the largest zoom level of -pyramid to I, at most 30 (default = 8)
+        // -log S -> append the steps of the simplification to the binary log S while it runs; ignored with -cc and -tiles (default = none)
+        // -replay S -> rebuild the network after -steps steps from the log S and save it to -out (with -store, also write its store); -in and the other settings are ignored
+        // -steps I -> set the number of steps replayed by -replay to I (default = all)
+        // -checkpoint S -> write checkpoints of the simplification to directory S, to continue it with -resume; ignored with -cc and -tiles (default = none)
+        // -cpn I -> set writing a checkpoint after at most I steps (default = 1000)
+        // -cpt D -> set writing a checkpoint after at most D seconds (default = 600)
+        // -resume S -> continue the interrupted simplification with the same arguments from the last checkpoint in directory S instead of reading -in, and keep checkpointing there; -log is ignored, -c and -f must be single values (default = none)
+        Options options = new Options(args);
+
+        if (options.workerport >= 0) {
+            try {
+                DistributedSchematization.serve(options.bind, options.workerport);
+            } catch (IOException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return;
+        }
+
+        if (options.replayfile != null) {
+            replay(new File(options.replayfile), options.steps, options.outputfile, options.storefile, options.keepPlanarizationVertices);
+            return;
+        }
+
+        String settingsPrint = options.toString();
         System.out.println(settingsPrint);
         System.err.println(settingsPrint);
 
-        // read
-        MetroNetwork network = WktIO.loadFile(inputfile);
+        NetworkConstruction.parallelplanarization = options.parallelPlanarization;
+
+        if (options.pyramiddir != null && (options.maxzoom < 0 || options.maxzoom > PyramidIO.MAXZOOM)) {
+            System.err.println("-zoom must be between 0 and " + PyramidIO.MAXZOOM);
+            return;
+        }
+
+        // modes in order of precedence; the -cc and -tiles modes ignore the
+        // settings of a single simplification (-cache, -store, -pyramid, -log, -checkpoint, -resume)
+        if (options.sweepfile != null) {
+            sweep(options.args, options.inputfile, options.outputfile, new File(options.sweepfile), options.threads, options.cachedir);
+        } else if (options.components || options.tiles > 0) {
+            runParallel(options);
+        } else {
+            runSingle(options);
+        }
+    }
+
+    /**
+     * The settings of the command line, read once up front. Flags that are
+     * not given take their documented defaults.
+     */
+    private static class Options {
+
+        final String[] args;
+        final int workerport;
+        final String bind;
+        final String replayfile;
+        final int steps;
+        final File inputfile;
+        final File outputfile;
+        final List<Double> frechets;
+        final List<Integer> complexities;
+        // the smallest complexity and largest Frechet threshold, for the modes with one output
+        final double frechet;
+        final int complexity;
+        final int angles;
+        final int numCandidates;
+        final double straightreduc;
+        final double eps;
+        final double crossdist;
+        final boolean keepPlanarizationVertices;
+        final double proxytolerance;
+        final boolean parallelPlanarization;
+        final boolean components;
+        final int threads;
+        final int tiles;
+        final int tilepasses;
+        final String workers;
+        final int workertimeout;
+        final String cachedir;
+        final String sweepfile;
+        final String storefile;
+        final String pyramiddir;
+        final int maxzoom;
+        final String logfile;
+        final String resumedir;
+        final String checkpointdir;
+        final int checkpointsteps;
+        final double checkpointseconds;
+
+        Options(String[] args) {
+            this.args = args;
+            workerport = findArgument(args, "-worker", -1);
+            bind = findArgument(args, "-bind", "127.0.0.1");
+            replayfile = findArgument(args, "-replay", null);
+            steps = findArgument(args, "-steps", Integer.MAX_VALUE);
+            String in = findArgument(args, "-in", null);
+            inputfile = in == null ? null : new File(in);
+            String out = findArgument(args, "-out", null);
+            outputfile = out == null ? null : new File(out);
+            frechets = findArguments(args, "-f", Double.POSITIVE_INFINITY);
+            complexities = findArguments(args, "-c", 0);
+            frechet = Collections.max(frechets);
+            complexity = Collections.min(complexities);
+            angles = findArgument(args, "-a", 41);
+            numCandidates = findArgument(args, "-nc", 3);
+            straightreduc = findArgument(args, "-s", 1.0);
+            eps = findArgument(args, "-eps", 1.01);
+            crossdist = findArgument(args, "-cd", 0.0075);
+            keepPlanarizationVertices = findArgument(args, "-kpv", false);
+            proxytolerance = findArgument(args, "-pt", 0.0);
+            parallelPlanarization = findArgument(args, "-pp", false);
+            components = findArgument(args, "-cc", false);
+            threads = findArgument(args, "-t", Runtime.getRuntime().availableProcessors());
+            tiles = findArgument(args, "-tiles", 0);
+            tilepasses = findArgument(args, "-tp", 2);
+            workers = findArgument(args, "-workers", null);
+            workertimeout = findArgument(args, "-wt", 600);
+            cachedir = findArgument(args, "-cache", null);
+            sweepfile = findArgument(args, "-sweep", null);
+            storefile = findArgument(args, "-store", null);
+            pyramiddir = findArgument(args, "-pyramid", null);
+            maxzoom = findArgument(args, "-zoom", 8);
+            logfile = findArgument(args, "-log", null);
+            resumedir = findArgument(args, "-resume", null);
+            checkpointdir = findArgument(args, "-checkpoint", resumedir);
+            checkpointsteps = findArgument(args, "-cpn", 1000);
+            checkpointseconds = findArgument(args, "-cpt", 600.0);
+        }
+
+        @Override
+        public String toString() {
+            return "\nRUNNING:\n"
+                    + "\n  in:  " + (inputfile == null ? null : inputfile.getAbsolutePath())
+                    + "\n  out: " + (outputfile == null ? null : outputfile.getAbsolutePath())
+                    + "\n  f:   " + frechets
+                    + "\n  c:   " + complexities
+                    + "\n  a:   " + angles
+                    + "\n  nc:  " + numCandidates
+                    + "\n  s:   " + straightreduc
+                    + "\n  eps: " + eps
+                    + "\n  cd:  " + crossdist
+                    + "\n  kpv: " + keepPlanarizationVertices
+                    + "\n  pt:  " + proxytolerance
+                    + "\n  pp:  " + parallelPlanarization
+                    + "\n  cc:  " + components
+                    + "\n  t:   " + threads
+                    + "\n  tiles: " + tiles
+                    + "\n  tp:  " + tilepasses
+                    + "\n  workers: " + workers
+                    + "\n  wt:  " + workertimeout
+                    + "\n  cache: " + cachedir
+                    + "\n  sweep: " + sweepfile
+                    + "\n  store: " + storefile
+                    + "\n  pyramid: " + pyramiddir
+                    + "\n  zoom: " + maxzoom
+                    + "\n  log: " + logfile
+                    + "\n  checkpoint: " + checkpointdir
+                    + "\n  cpn: " + checkpointsteps
+                    + "\n  cpt: " + checkpointseconds
+                    + "\n  resume: " + resumedir;
+        }
+    }
 
-        // make strokes
-        StrokeNetwork stroked = NetworkConstruction.construct(network, false);
-        NetworkConstruction.mergeStrokesAngle(stroked);
+    // -cc and -tiles: simplify per component or per tile, on threads or workers
+    private static void runParallel(Options options) {
+        MetroNetwork network = WktIO.loadFile(options.inputfile);
+
+        StrokeNetwork stroked;
+        if (options.components) {
+            // simplify per component
+            stroked = ComponentSchematization.schematize(network, options.complexity, options.frechet, options.threads, makeAlgorithms(options.args));
+        } else if (options.workers != null) {
+            // simplify per tile on the workers, then globally
+            stroked = DistributedSchematization.schematize(network, options.complexity, options.frechet, options.tiles, options.tilepasses,
+                    Arrays.asList(options.workers.split(",")), options.workertimeout * 1000, makeSettings(options.args));
+        } else {
+            // simplify per tile, then globally
+            stroked = TiledSchematization.schematize(network, options.complexity, options.frechet, options.tiles, options.tilepasses, options.threads, makeAlgorithms(options.args));
+        }
+
+        if (stroked == null) {
+            // the parallel schematizations log their failures
+            System.err.println("Schematization failed, no output written");
+            return;
+        }
+
+        WktIO.saveFile(options.outputfile, network, stroked, options.keepPlanarizationVertices);
+    }
+
+    // a single simplification, optionally resumed, logged, checkpointed and with several outputs
+    private static void runSingle(Options options) {
+        List<Target> pending = Target.combine(options.complexities, options.frechets, options.outputfile);
+        if (options.resumedir != null && pending.size() > 1) {
+            // the targets passed before the interruption cannot be written from the resumed network
+            System.err.println("-resume takes a single -c and -f");
+            return;
+        }
+
+        // read
+        MetroNetwork network;
+        StrokeNetwork stroked;
+        boolean useStore = options.storefile != null || options.pyramiddir != null;
+        Checkpoints.Restored restored = null;
+        if (options.resumedir != null) {
+            // the network and store at the last checkpoint
+            try {
+                restored = Checkpoints.restore(new File(options.resumedir), useStore ? new SchematizationStore(true) : null);
+            } catch (IOException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+            network = restored.network;
+            stroked = restored.replay.getNetwork();
+        } else if (options.cachedir != null) {
+            // planarized network and merged strokes, from the cache if possible
+            NetworkCache.Entry entry = new NetworkCache(new File(options.cachedir)).construct(options.inputfile, false);
+            network = entry.network;
+            stroked = entry.stroked;
+        } else {
+            network = WktIO.loadFile(options.inputfile);
+            stroked = NetworkConstruction.construct(network, false);
+            NetworkConstruction.mergeStrokesAngle(stroked);
+        }
 
         // simplify
-        IterativeSchematization algorithm = new IterativeSchematization(
-                // high degree
-                true,
-                // no store
-                false,
-                crossdist,
-                angles,
-                numCandidates,
-                straightreduc,
-                new PolyhedralFrechetDistance(PolyhedralDistanceFunction.epsApproximation2D(eps)));
-        algorithm.init(stroked);
-
-        while (algorithm.performStep(complexity, frechet)) {
-            // step
+        IterativeSchematization algorithm = makeAlgorithms(options.args, useStore).get();
+        StepPublisher publisher = null;
+        StepLog.Writer log = null;
+        Checkpoints checkpoints = null;
+        boolean logging = options.logfile != null && restored == null;
+        if (logging || options.checkpointdir != null) {
+            publisher = new StepPublisher();
+            algorithm.setPublisher(publisher);
+        }
+        if (logging) {
+            log = new StepLog.Writer(new File(options.logfile), network);
+            publisher.subscribe(log);
+        }
+        if (options.checkpointdir != null) {
+            checkpoints = new Checkpoints(new File(options.checkpointdir), network, options.checkpointsteps, options.checkpointseconds);
+            publisher.subscribe(checkpoints);
+        }
+        TargetWriter writer = null;
+        if (pending.size() > 1) {
+            // outputs are materialized from snapshots while the simplification continues
+            NetworkHistory history = new NetworkHistory();
+            algorithm.setHistory(history);
+            writer = new TargetWriter(history, network, options.keepPlanarizationVertices);
+        }
+        if (restored != null) {
+            algorithm.resume(restored.replay);
+        } else {
+            algorithm.init(stroked);
+        }
+
+        if (writer == null) {
+            while (algorithm.performStep(options.complexity, options.frechet)) {
+                // step
+            }
+        } else {
+            do {
+                // write the targets the next step would pass
+                double next = algorithm.getNextCost();
+                List<Target> reached = new ArrayList();
+                for (Iterator<Target> it = pending.iterator(); it.hasNext();) {
+                    Target target = it.next();
+                    if (algorithm.getComplexity() <= target.complexity || next > target.frechet) {
+                        reached.add(target);
+                        it.remove();
+                    }
+                }
+                if (!reached.isEmpty()) {
+                    writer.write(reached);
+                }
+            } while (!pending.isEmpty() && algorithm.performStep());
+
+            // stuck before reaching these targets
+            if (!pending.isEmpty()) {
+                writer.write(pending);
+            }
+        }
+
+        if (publisher != null) {
+            publisher.close();
+            try {
+                if (log != null) {
+                    log.await();
+                }
+                if (checkpoints != null) {
+                    checkpoints.await();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        if (options.storefile != null) {
+            try {
+                algorithm.getStore().write(new File(options.storefile));
+            } catch (IOException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        if (options.pyramiddir != null) {
+            try {
+                SchematizationStore store = algorithm.getStore();
+                PyramidIO.export(store, PyramidIO.levels(store, 0, options.maxzoom), new File(options.pyramiddir), options.threads);
+            } catch (IOException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            }
         }
 
 //        // render
@@ -94,7 +403,317 @@ public class HeadlessMode {
 //                Renderer.InterchangeStyle.SMALLEST_ENCLOSING_DISK, true, 0.1, 0.1, true);
 
         // save
-        WktIO.saveFile(outputfile, network, stroked, keepPlanarizationVertices);
+        if (writer == null) {
+            WktIO.saveFile(options.outputfile, network, stroked, options.keepPlanarizationVertices);
+        } else {
+            writer.await();
+        }
+    }
+
+    private static void replay(File logfile, int steps, File outputfile, String storefile, boolean keepPlanarizationVertices) {
+        try {
+            SchematizationStore store = storefile == null ? null : new SchematizationStore(true);
+            NetworkCache.Entry entry = StepLog.replay(logfile, steps, store);
+            if (store != null) {
+                store.write(new File(storefile));
+            }
+            WktIO.saveFile(outputfile, entry.network, entry.stroked, keepPlanarizationVertices);
+        } catch (IOException ex) {
+            Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static void sweep(String[] args, File inputfile, File outputfile, File sweepfile, int threads, String cachedir) {
+
+        // expand the grid: each line is the cartesian product of its lists
+        List<SweepRun> runs = new ArrayList();
+        try {
+            for (String line : Files.readAllLines(sweepfile.toPath())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<List<String>> settings = new ArrayList();
+                settings.add(new ArrayList());
+                List<String> tokens = new ArrayList(Arrays.asList(line.split("\\s+")));
+                for (String label : new String[]{"-c", "-f"}) {
+                    // thresholds of the command line not set by the line, which may be lists as well
+                    String value = findArgument(args, label, null);
+                    if (value != null && !tokens.contains(label)) {
+                        tokens.add(label);
+                        tokens.add(value);
+                    }
+                }
+                for (int i = 0; i + 1 < tokens.size(); i += 2) {
+                    List<List<String>> expanded = new ArrayList();
+                    for (List<String> setting : settings) {
+                        for (String value : tokens.get(i + 1).split(",")) {
+                            List<String> extended = new ArrayList(setting);
+                            extended.add(tokens.get(i));
+                            extended.add(value);
+                            expanded.add(extended);
+                        }
+                    }
+                    settings = expanded;
+                }
+                for (List<String> setting : settings) {
+                    // the setting comes first, such that it overrides the command line
+                    setting.addAll(Arrays.asList(args));
+                    runs.add(new SweepRun(runs.size(), setting.toArray(new String[setting.size()]), outputfile));
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+
+        // construct once, each schematization starts from its own copy
+        long constructstart = System.nanoTime();
+        NetworkCache.Entry constructed;
+        if (cachedir != null) {
+            constructed = new NetworkCache(new File(cachedir)).construct(inputfile, false);
+        } else {
+            MetroNetwork network = WktIO.loadFile(inputfile);
+            StrokeNetwork stroked = NetworkConstruction.construct(network, false);
+            NetworkConstruction.mergeStrokesAngle(stroked);
+            constructed = new NetworkCache.Entry(network, stroked);
+        }
+        byte[] snapshot;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            NetworkCache.write(new DataOutputStream(bytes), constructed.network, constructed.stroked);
+            snapshot = bytes.toByteArray();
+        } catch (IOException ex) {
+            Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        long constructms = (System.nanoTime() - constructstart) / 1000000;
+
+        // runs that differ only in thresholds share one schematization
+        Map<String, List<SweepRun>> groups = new LinkedHashMap();
+        for (SweepRun run : runs) {
+            groups.computeIfAbsent(run.algorithmKey(), k -> new ArrayList()).add(run);
+        }
+
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        List<Future<?>> tasks = new ArrayList();
+        for (List<SweepRun> group : groups.values()) {
+            tasks.add(pool.submit(() -> {
+                sweepGroup(group, snapshot);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            pool.shutdown();
+        }
+
+        StringBuilder table = new StringBuilder();
+        table.append("# construction: ").append(constructms).append(" ms, ")
+                .append(runs.size()).append(" settings, ")
+                .append(groups.size()).append(" schematizations\n");
+        table.append("run\tgroup\ta\tnc\ts\teps\tcd\tpt\tc\tf\tarcs\tms\tout\n");
+        for (SweepRun run : runs) {
+            table.append(run.index).append('\t').append(run.group)
+                    .append('\t').append(findArgument(run.args, "-a", 41))
+                    .append('\t').append(findArgument(run.args, "-nc", 3))
+                    .append('\t').append(findArgument(run.args, "-s", 1.0))
+                    .append('\t').append(findArgument(run.args, "-eps", 1.01))
+                    .append('\t').append(findArgument(run.args, "-cd", 0.0075))
+                    .append('\t').append(findArgument(run.args, "-pt", 0.0))
+                    .append('\t').append(run.complexity)
+                    .append('\t').append(run.frechet)
+                    .append('\t').append(run.reached)
+                    .append('\t').append(run.millis)
+                    .append('\t').append(run.output.getName())
+                    .append('\n');
+        }
+        System.out.println(table);
+        File summary = SweepRun.numbered(outputfile, "sweep", ".txt");
+        try {
+            Files.write(summary.toPath(), table.toString().getBytes());
+        } catch (IOException ex) {
+            Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static void sweepGroup(List<SweepRun> group, byte[] snapshot) throws IOException {
+        NetworkCache.Entry copy = NetworkCache.read(new DataInputStream(new ByteArrayInputStream(snapshot)));
+        IterativeSchematization algorithm = makeAlgorithms(group.get(0).args).get();
+        for (SweepRun run : group) {
+            run.group = group.get(0).index;
+        }
+
+        long start = System.nanoTime();
+        algorithm.init(copy.stroked);
+        List<SweepRun> pending = new ArrayList(group);
+        do {
+            // emit the runs whose threshold the next step would pass
+            double next = algorithm.getNextCost();
+            for (Iterator<SweepRun> it = pending.iterator(); it.hasNext();) {
+                SweepRun run = it.next();
+                if (algorithm.getComplexity() <= run.complexity || next > run.frechet) {
+                    run.finish(algorithm, copy, start);
+                    it.remove();
+                }
+            }
+        } while (!pending.isEmpty() && algorithm.performStep());
+
+        // stuck before reaching these targets
+        for (SweepRun run : pending) {
+            run.finish(algorithm, copy, start);
+        }
+    }
+
+    private static class SweepRun {
+
+        final int index;
+        final String[] args;
+        final int complexity;
+        final double frechet;
+        final File output;
+        int group;
+        int reached;
+        long millis;
+
+        SweepRun(int index, String[] args, File outputfile) {
+            this.index = index;
+            this.args = args;
+            this.complexity = findArgument(args, "-c", 0);
+            this.frechet = findArgument(args, "-f", Double.POSITIVE_INFINITY);
+            this.output = numbered(outputfile, "" + index, null);
+        }
+
+        String algorithmKey() {
+            return findArgument(args, "-a", 41)
+                    + " " + findArgument(args, "-nc", 3)
+                    + " " + findArgument(args, "-s", 1.0)
+                    + " " + findArgument(args, "-eps", 1.01)
+                    + " " + findArgument(args, "-cd", 0.0075)
+                    + " " + findArgument(args, "-pt", 0.0);
+        }
+
+        void finish(IterativeSchematization algorithm, NetworkCache.Entry copy, long start) {
+            millis = (System.nanoTime() - start) / 1000000;
+            reached = algorithm.getComplexity();
+            WktIO.saveFile(output, copy.network, copy.stroked, findArgument(args, "-kpv", false));
+        }
+
+        // inserts the suffix before the extension of the file name
+        static File numbered(File file, String suffix, String extension) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            String stem = dot > 0 ? name.substring(0, dot) : name;
+            String ext = extension != null ? extension : dot > 0 ? name.substring(dot) : "";
+            return new File(file.getAbsoluteFile().getParentFile(), stem + "_" + suffix + ext);
+        }
+    }
+
+    /**
+     * A combination of a complexity and a Frechet threshold of a run with
+     * several outputs, written when the simplification passes it.
+     */
+    private static class Target {
+
+        final int complexity;
+        final double frechet;
+        final File output;
+
+        Target(int complexity, double frechet, File output) {
+            this.complexity = complexity;
+            this.frechet = frechet;
+            this.output = output;
+        }
+
+        // all combinations; outputs are named after the values of the lists with several values
+        static List<Target> combine(List<Integer> complexities, List<Double> frechets, File outputfile) {
+            List<Target> targets = new ArrayList();
+            for (int c : complexities) {
+                for (double f : frechets) {
+                    String suffix = "";
+                    if (complexities.size() > 1) {
+                        suffix += "c" + c;
+                    }
+                    if (frechets.size() > 1) {
+                        suffix += (suffix.isEmpty() ? "" : "_") + "f" + f;
+                    }
+                    targets.add(new Target(c, f, suffix.isEmpty() ? outputfile : SweepRun.numbered(outputfile, suffix, null)));
+                }
+            }
+            return targets;
+        }
+    }
+
+    /**
+     * Writes the outputs of targets on a background thread. The thread keeps
+     * one replica of the network, which it advances to the snapshot taken for
+     * each write, so every step is replayed only once.
+     */
+    private static class TargetWriter {
+
+        private final NetworkHistory history;
+        private final MetroNetwork network;
+        private final boolean keepPlanarizationVertices;
+        private final ExecutorService executor;
+        private final List<Future<?>> writes;
+        // only used on the executor
+        private NetworkHistory.Replica replica;
+
+        TargetWriter(NetworkHistory history, MetroNetwork network, boolean keepPlanarizationVertices) {
+            this.history = history;
+            this.network = network;
+            this.keepPlanarizationVertices = keepPlanarizationVertices;
+            this.executor = Executors.newSingleThreadExecutor();
+            this.writes = new ArrayList();
+        }
+
+        // writes the current version of the simplification for each of the targets
+        void write(List<Target> targets) {
+            NetworkHistory.Snapshot snapshot = history.snapshot();
+            writes.add(executor.submit(() -> {
+                if (replica == null) {
+                    replica = history.replica();
+                }
+                replica.advance(snapshot);
+                for (Target target : targets) {
+                    WktIO.saveFile(target.output, network, replica.getNetwork(), keepPlanarizationVertices);
+                }
+            }));
+        }
+
+        void await() {
+            executor.shutdown();
+            try {
+                for (Future<?> write : writes) {
+                    write.get();
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.getLogger(HeadlessMode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static Supplier<IterativeSchematization> makeAlgorithms(String[] args) {
+        return makeAlgorithms(args, false);
+    }
+
+    private static Supplier<IterativeSchematization> makeAlgorithms(String[] args, boolean useStore) {
+        return makeSettings(args).algorithms(useStore);
+    }
+
+    private static SchematizationSettings makeSettings(String[] args) {
+        return new SchematizationSettings(
+                findArgument(args, "-a", 41),
+                findArgument(args, "-nc", 3),
+                findArgument(args, "-s", 1.0),
+                findArgument(args, "-eps", 1.01),
+                findArgument(args, "-cd", 0.0075),
+                findArgument(args, "-pt", 0.0));
     }
 
     public static boolean findArgument(String[] args, String label, boolean deft) {
@@ -124,6 +743,22 @@ public class HeadlessMode {
         return deft;
     }
 
+    public static List<Double> findArguments(String[] args, String label, double deft) {
+        List<Double> values = new ArrayList();
+        for (String value : findArgument(args, label, "" + deft).split(",")) {
+            values.add(Double.parseDouble(value));
+        }
+        return values;
+    }
+
+    public static List<Integer> findArguments(String[] args, String label, int deft) {
+        List<Integer> values = new ArrayList();
+        for (String value : findArgument(args, label, "" + deft).split(",")) {
+            values.add(Integer.parseInt(value));
+        }
+        return values;
+    }
+
     public static String findArgument(String[] args, String label, String deft) {
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals(label)) {
@@ -0,0 +1,232 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021   
+ * Developed by 
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl) 
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ * 
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo;
+
+import nl.tue.curvedstrokeschematization.algo.schematization.IterativeSchematization;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.tue.geometrycore.geometry.linear.Rectangle;
+
+/**
+ * Schematizes the connected components of a network independently on a pool
+ * of workers. Components whose bounding boxes come within a margin of each
+ * other, such as an island inside a loop, are schematized together in one
+ * job, and each job is confined to its box grown by the margin, so arcs of
+ * different jobs cannot cross. The complexity target is split over the jobs
+ * in proportion to their initial complexity. If a job fails, the failure is
+ * logged and no network is returned.
+ */
+public class ComponentSchematization {
+
+    // margin around the components, as a fraction of the diagonal of the network
+    private static final double MARGIN = 0.01;
+
+    public static StrokeNetwork schematize(MetroNetwork network, int complexity, double frechet, int threads, Supplier<IterativeSchematization> algorithms) {
+
+        // planarize globally, such that virtual stations have unique identifiers
+        NetworkConstruction.planarize(network);
+
+        // distances are relative to the entire network
+        Rectangle bb = new Rectangle();
+        for (MetroStation ms : network.getStations()) {
+            bb.include(ms);
+        }
+
+        List<MetroNetwork> parts = new ArrayList();
+        for (MetroNetwork component : network.getComponents()) {
+            if (!component.getConnections().isEmpty()) {
+                parts.add(component);
+            }
+        }
+
+        List<Rectangle> regions = new ArrayList();
+        List<MetroNetwork> components = group(parts, bb.diagonal() * MARGIN, regions);
+        System.out.println("  " + parts.size() + " components in " + components.size() + " jobs");
+
+        int k = components.size();
+        StrokeNetwork[] stroked = new StrokeNetwork[k];
+        IterativeSchematization[] algorithm = new IterativeSchematization[k];
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // construct and initialize
+            List<Future<?>> tasks = new ArrayList();
+            for (int i = 0; i < k; i++) {
+                final int c = i;
+                tasks.add(pool.submit(() -> {
+                    // the network was planarized as a whole above
+                    stroked[c] = NetworkConstruction.constructPlanar(components.get(c), false);
+                    NetworkConstruction.mergeStrokesAngle(stroked[c]);
+                    algorithm[c] = algorithms.get();
+                    algorithm[c].setReferenceBox(bb);
+                    if (k > 1) {
+                        algorithm[c].setRegion(regions.get(c), null, null);
+                    }
+                    algorithm[c].init(stroked[c]);
+                }));
+            }
+            waitFor(tasks);
+
+            // split the target by largest remainder
+            int[] initial = new int[k];
+            long total = 0;
+            for (int i = 0; i < k; i++) {
+                initial[i] = algorithm[i].getComplexity();
+                total += initial[i];
+            }
+            final int[] target = splitTarget(complexity, initial, total);
+
+            // schematize
+            tasks.clear();
+            for (int i = 0; i < k; i++) {
+                final int c = i;
+                tasks.add(pool.submit(() -> {
+                    while (algorithm[c].performStep(target[c], frechet)) {
+                        // step
+                    }
+                }));
+            }
+            waitFor(tasks);
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(ComponentSchematization.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+
+        StrokeNetwork merged = new StrokeNetwork();
+        for (StrokeNetwork sn : stroked) {
+            merged.addAll(sn);
+        }
+        return merged;
+    }
+
+    // joins the components whose boxes, grown by the margin, overlap, until the
+    // grown boxes of the groups are disjoint; regions receives these boxes
+    private static List<MetroNetwork> group(List<MetroNetwork> components, double margin, List<Rectangle> regions) {
+        int k = components.size();
+        Rectangle[] box = new Rectangle[k];
+        for (int i = 0; i < k; i++) {
+            box[i] = new Rectangle();
+            for (MetroStation ms : components.get(i).getStations()) {
+                box[i].include(ms);
+            }
+            box[i].grow(margin);
+        }
+
+        // representative of each component, boxes are kept at the representatives
+        int[] parent = new int[k];
+        for (int i = 0; i < k; i++) {
+            parent[i] = i;
+        }
+
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            List<Integer> roots = new ArrayList();
+            for (int i = 0; i < k; i++) {
+                if (parent[i] == i) {
+                    roots.add(i);
+                }
+            }
+            roots.sort((a, b) -> Double.compare(box[a].getLeft(), box[b].getLeft()));
+            for (int i = 0; i < roots.size(); i++) {
+                int a = find(parent, roots.get(i));
+                for (int j = i + 1; j < roots.size() && box[roots.get(j)].getLeft() <= box[a].getRight(); j++) {
+                    int b = find(parent, roots.get(j));
+                    if (a != b && box[b].getLeft() <= box[a].getRight() && box[a].getLeft() <= box[b].getRight()
+                            && box[b].getBottom() <= box[a].getTop() && box[a].getBottom() <= box[b].getTop()) {
+                        parent[b] = a;
+                        box[a].include(box[b]);
+                        merged = true;
+                    }
+                }
+            }
+        }
+
+        List<MetroNetwork> groups = new ArrayList();
+        int[] index = new int[k];
+        for (int i = 0; i < k; i++) {
+            if (parent[i] == i) {
+                index[i] = groups.size();
+                groups.add(components.get(i));
+                regions.add(box[i]);
+            }
+        }
+        for (int i = 0; i < k; i++) {
+            int root = find(parent, i);
+            if (root != i) {
+                MetroNetwork joined = groups.get(index[root]);
+                if (joined == components.get(root)) {
+                    // do not change the component itself
+                    joined = new MetroNetwork();
+                    joined.addAll(components.get(root));
+                    groups.set(index[root], joined);
+                }
+                joined.addAll(components.get(i));
+            }
+        }
+        return groups;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static int[] splitTarget(int complexity, int[] initial, long total) {
+        int k = initial.length;
+        int[] target = new int[k];
+        if (total == 0 || complexity <= 0) {
+            return target;
+        }
+
+        long budget = Math.min(complexity, total);
+        double[] remainder = new double[k];
+        long assigned = 0;
+        for (int i = 0; i < k; i++) {
+            double share = budget * (double) initial[i] / total;
+            target[i] = (int) Math.floor(share);
+            remainder[i] = share - target[i];
+            assigned += target[i];
+        }
+        while (assigned < budget) {
+            int best = -1;
+            for (int i = 0; i < k; i++) {
+                if (target[i] < initial[i] && (best < 0 || remainder[i] > remainder[best])) {
+                    best = i;
+                }
+            }
+            target[best]++;
+            remainder[best] = -1;
+            assigned++;
+        }
+        return target;
+    }
+
+    private static void waitFor(List<Future<?>> tasks) throws InterruptedException, ExecutionException {
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+}
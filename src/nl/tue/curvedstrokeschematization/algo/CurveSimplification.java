@@ -0,0 +1,103 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021   
+ * Developed by 
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl) 
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ * 
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.util.DoubleUtil;
+
+/**
+ * Douglas-Peucker simplification with a certified Frechet distance: a shortcut
+ * is accepted only if all skipped vertices lie within the tolerance of it and
+ * project onto it in order. Matching every vertex to its projection then
+ * witnesses that the Frechet distance between the input and the result is at
+ * most the tolerance.
+ */
+public class CurveSimplification {
+
+    public static Vector[] simplify(Vector[] curve, double tolerance) {
+        if (curve.length <= 2) {
+            return curve;
+        }
+
+        boolean[] keep = new boolean[curve.length];
+        keep[0] = true;
+        keep[curve.length - 1] = true;
+        int kept = 2;
+
+        Deque<int[]> todo = new ArrayDeque();
+        todo.push(new int[]{0, curve.length - 1});
+        while (!todo.isEmpty()) {
+            int[] range = todo.pop();
+            int i = range[0];
+            int j = range[1];
+            if (j - i < 2) {
+                continue;
+            }
+
+            int split = certify(curve, i, j, tolerance);
+            if (split >= 0) {
+                keep[split] = true;
+                kept++;
+                todo.push(new int[]{split, j});
+                todo.push(new int[]{i, split});
+            }
+        }
+
+        if (kept == curve.length) {
+            return curve;
+        }
+
+        Vector[] result = new Vector[kept];
+        int k = 0;
+        for (int i = 0; i < curve.length; i++) {
+            if (keep[i]) {
+                result[k++] = curve[i];
+            }
+        }
+        return result;
+    }
+
+    // returns -1 if the shortcut from i to j is certified, and the vertex to split at otherwise
+    private static int certify(Vector[] curve, int i, int j, double tolerance) {
+        double ax = curve[i].getX();
+        double ay = curve[i].getY();
+        double dx = curve[j].getX() - ax;
+        double dy = curve[j].getY() - ay;
+        double len2 = dx * dx + dy * dy;
+
+        int farthest = -1;
+        double maxdist = -1;
+        boolean monotone = true;
+        double prevt = 0;
+        for (int k = i + 1; k < j; k++) {
+            double px = curve[k].getX() - ax;
+            double py = curve[k].getY() - ay;
+            double t = len2 < DoubleUtil.EPS ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / len2));
+            double ex = px - t * dx;
+            double ey = py - t * dy;
+            double dist = Math.sqrt(ex * ex + ey * ey);
+            if (dist > maxdist) {
+                maxdist = dist;
+                farthest = k;
+            }
+            if (t < prevt) {
+                monotone = false;
+            }
+            prevt = t;
+        }
+
+        if (maxdist <= tolerance && monotone) {
+            return -1;
+        }
+        return farthest;
+    }
+}
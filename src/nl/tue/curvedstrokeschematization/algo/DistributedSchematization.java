@@ -0,0 +1,217 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo;
+
+import nl.tue.curvedstrokeschematization.algo.TiledSchematization.Tile;
+import nl.tue.curvedstrokeschematization.algo.TiledSchematization.TileSolver;
+import nl.tue.curvedstrokeschematization.algo.schematization.SchematizationSettings;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import nl.tue.curvedstrokeschematization.io.TileIO;
+import nl.tue.curvedstrokeschematization.io.TileIO.TileRequest;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.tue.geometrycore.geometry.linear.Rectangle;
+
+/**
+ * Tiled schematization where the tiles are simplified by worker processes,
+ * connected over TCP. The coordinator ships each tile with its frozen
+ * neighbouring arcs to an idle worker and applies the returned runs. A worker
+ * that fails or does not answer within the timeout is dropped, and its tile
+ * is sent to another worker, or simplified locally once no worker is left.
+ * Workers are started separately (see HeadlessMode -worker) and receive the
+ * algorithm settings of the coordinator when it connects; they do not
+ * authenticate it, so they should listen on a trusted interface only.
+ * <p>
+ * The workers only take over computation: the coordinator still reads and
+ * constructs the entire network, holds it during the tile passes and runs the
+ * final global pass, so its heap bounds the size of the input as for
+ * TiledSchematization.
+ */
+public class DistributedSchematization {
+
+    private static final byte TILE = 1;
+    private static final byte DONE = 0;
+
+    /**
+     * Schematizes on the given workers (host:port). Connecting to a worker
+     * and waiting for each of its replies is limited to the timeout in
+     * milliseconds.
+     */
+    public static StrokeNetwork schematize(MetroNetwork network, int complexity, double frechet, int tiles, int passes, List<String> workers, int timeout, SchematizationSettings settings) {
+
+        List<Connection> connections = new ArrayList();
+        BlockingQueue<Connection> idle = new LinkedBlockingQueue();
+        for (String worker : workers) {
+            try {
+                int colon = worker.lastIndexOf(':');
+                Connection c = new Connection(worker.substring(0, colon), Integer.parseInt(worker.substring(colon + 1)), timeout, settings);
+                connections.add(c);
+                idle.add(c);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(DistributedSchematization.class.getName()).log(Level.WARNING, "Cannot connect to worker " + worker, ex);
+            }
+        }
+        System.out.println("  connected to " + connections.size() + " of " + workers.size() + " workers");
+
+        AtomicInteger live = new AtomicInteger(connections.size());
+        TileSolver local = TiledSchematization.localSolver(settings.algorithms(false));
+        TileSolver solver = (tile, reference, f) -> {
+            while (live.get() > 0) {
+                Connection c;
+                try {
+                    // poll, as the last busy workers may fail while waiting
+                    c = idle.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                if (c == null) {
+                    continue;
+                }
+                try {
+                    c.solve(tile, reference, f);
+                    idle.add(c);
+                    return;
+                } catch (IOException ex) {
+                    // the tile is unchanged until its result has been read completely
+                    Logger.getLogger(DistributedSchematization.class.getName()).log(Level.WARNING, "Dropping worker " + c, ex);
+                    c.abort();
+                    live.decrementAndGet();
+                }
+            }
+            local.solve(tile, reference, f);
+        };
+
+        try {
+            return TiledSchematization.schematize(network, complexity, frechet, tiles, passes, Math.max(1, connections.size()), solver, settings.algorithms(false));
+        } finally {
+            for (Connection c : idle) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Serves tiles on the given address and port, one thread per coordinator
+     * connection. The tiles of a connection are simplified with the settings
+     * sent by its coordinator.
+     */
+    public static void serve(String address, int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(address))) {
+            System.out.println("Worker listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                new Thread(() -> handle(socket)).start();
+            }
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            TileIO.readHeader(in);
+            SchematizationSettings settings = TileIO.readSettings(in);
+            TileIO.writeHeader(out);
+            out.flush();
+            System.out.println("Coordinator " + s.getRemoteSocketAddress() + " connected: " + settings);
+            TileSolver solver = TiledSchematization.localSolver(settings.algorithms(false));
+
+            while (in.readByte() == TILE) {
+                TileRequest request = TileIO.readTile(in);
+                List<List<StrokeVertex>> before = new ArrayList();
+                for (Stroke run : request.tile.runs) {
+                    before.add(new ArrayList(run.getVertices()));
+                }
+                solver.solve(request.tile, request.reference, request.frechet);
+                TileIO.writeResult(out, request.tile, before);
+            }
+        } catch (EOFException ex) {
+            // coordinator went away
+        } catch (IOException ex) {
+            Logger.getLogger(DistributedSchematization.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static class Connection {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(String host, int port, int timeout, SchematizationSettings settings) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                TileIO.writeHeader(out);
+                TileIO.writeSettings(out, settings);
+                out.flush();
+                TileIO.readHeader(in);
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        }
+
+        void solve(Tile tile, Rectangle reference, double frechet) throws IOException {
+            out.writeByte(TILE);
+            List<List<StrokeVertex>> before = TileIO.writeTile(out, tile, reference, frechet);
+            TileIO.readResult(in, tile, before);
+        }
+
+        void close() {
+            try {
+                out.writeByte(DONE);
+                out.flush();
+                socket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(DistributedSchematization.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        // closes the connection without the handshake, after a failure
+        void abort() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+    }
+}
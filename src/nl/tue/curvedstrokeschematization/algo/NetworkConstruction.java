@@ -19,18 +19,29 @@ import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import nl.tue.geometrycore.geometry.BaseGeometry;
 import nl.tue.geometrycore.geometry.GeometryType;
 import nl.tue.geometrycore.geometry.Vector;
 import nl.tue.geometrycore.geometry.curved.CircularArc;
+import nl.tue.geometrycore.util.DoubleUtil;
 import nl.tue.geometrycore.util.Pair;
 
 /**
@@ -40,52 +51,220 @@ import nl.tue.geometrycore.util.Pair;
  */
 public class NetworkConstruction {
 
+    // version of planarization, construction and merging; raise it whenever they
+    // build different networks from the same input, as cached networks are keyed by it
+    public static final int VERSION = 1;
+
+    // process the grid cells of the planarization on the fork-join pool
+    public static boolean parallelplanarization = false;
+
     public static void planarize(MetroNetwork metro) {
+        planarize(metro, parallelplanarization);
+    }
 
-        List<MetroConnection> connections = new ArrayList(metro.getConnections());
+    public static void planarize(MetroNetwork metro, boolean parallel) {
 
-        int number = 1;
-        int c1 = 0;
-        while (c1 < connections.size()) {
-            MetroConnection conn1 = connections.get(c1);
-            int c2 = c1 + 1;
-            while (c2 < connections.size()) {
-                MetroConnection conn2 = connections.get(c2);
+        final List<MetroConnection> connections = new ArrayList(metro.getConnections());
+        final int n = connections.size();
+        if (n < 2) {
+            return;
+        }
 
-                if (conn1.getSharedStation(conn2) == null) {
+        // uniform grid over the bounding box, with at most one cell per connection,
+        // coarse enough that the connections pass through O(n) cells in total
+        double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+        double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+        for (MetroConnection conn : connections) {
+            for (MetroStation ms : new MetroStation[]{conn.getBeginStation(), conn.getEndStation()}) {
+                minx = Math.min(minx, ms.getX());
+                miny = Math.min(miny, ms.getY());
+                maxx = Math.max(maxx, ms.getX());
+                maxy = Math.max(maxy, ms.getY());
+            }
+        }
+        final double width = Math.max(maxx - minx, DoubleUtil.EPS);
+        final double height = Math.max(maxy - miny, DoubleUtil.EPS);
+        // a connection passes through about 1 + k * (|dx| / width + |dy| / height) cells of a k x k grid
+        double span = 0;
+        for (MetroConnection conn : connections) {
+            span += Math.abs(conn.getEndStation().getX() - conn.getBeginStation().getX()) / width
+                    + Math.abs(conn.getEndStation().getY() - conn.getBeginStation().getY()) / height;
+        }
+        int size = (int) Math.ceil(Math.sqrt(n));
+        if (span > 0) {
+            size = Math.max(1, Math.min(size, (int) Math.ceil(n / span)));
+        }
+        final int cols = size;
+        final int rows = size;
+        final double ox = minx, oy = miny;
+        final double cw = width / cols;
+        final double ch = height / rows;
+
+        // connections per cell, in CSR form, over the cells each connection passes through
+        int[] offsets = new int[cols * rows + 1];
+        for (int i = 0; i < n; i++) {
+            MetroConnection conn = connections.get(i);
+            forCells(conn.getBeginStation(), conn.getEndStation(), ox, oy, cw, ch, cols, rows, c -> offsets[c + 1]++);
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        final int[] cellconns = new int[offsets[cols * rows]];
+        int[] fill = new int[cols * rows];
+        for (int i = 0; i < n; i++) {
+            MetroConnection conn = connections.get(i);
+            final int index = i;
+            forCells(conn.getBeginStation(), conn.getEndStation(), ox, oy, cw, ch, cols, rows, c -> cellconns[offsets[c] + fill[c]++] = index);
+        }
+        final int[] celloffsets = offsets;
+
+        // find the crossings: a pair sharing several cells is reported by each, duplicates are removed below;
+        // an overlap is reported without intersection
+        IntFunction<List<Triple<Integer, Integer, Vector>>> findInCell = (int c) -> {
+            List<Triple<Integer, Integer, Vector>> found = new ArrayList();
+            for (int p = celloffsets[c]; p < celloffsets[c + 1]; p++) {
+                int i = cellconns[p];
+                MetroConnection conn1 = connections.get(i);
+                for (int q = p + 1; q < celloffsets[c + 1]; q++) {
+                    int j = cellconns[q];
+                    MetroConnection conn2 = connections.get(j);
+                    if (conn1.getSharedStation(conn2) != null) {
+                        continue;
+                    }
 
                     List<BaseGeometry> intersections = conn1.toGeometry().intersect(conn2.toGeometry());
                     for (BaseGeometry igeom : intersections) {
-                        // check that intersections do not correspond to some other intersection
                         if (igeom.getGeometryType() != GeometryType.VECTOR) {
-                            System.err.println("Overlap found, planarization fails");
-                            continue;
+                            found.add(new Triple(i, j, null));
+                        } else {
+                            found.add(new Triple(i, j, (Vector) igeom));
                         }
+                    }
+                }
+            }
+            return found;
+        };
 
-                        Vector intersection = (Vector) igeom;
+        List<Triple<Integer, Integer, Vector>> reported;
+        if (parallel) {
+            reported = ForkJoinPool.commonPool().submit(() -> IntStream.range(0, cols * rows).parallel()
+                    .mapToObj(findInCell)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList())).join();
+        } else {
+            reported = new ArrayList();
+            for (int c = 0; c < cols * rows; c++) {
+                reported.addAll(findInCell.apply(c));
+            }
+        }
 
-                        MetroStation virt = metro.addStation(intersection, "virt" + number, "virtual non-planar" + (number / 2), true);
+        // deterministic order, independent of the cells: by pair of connections
+        Collections.sort(reported, new Comparator<Triple<Integer, Integer, Vector>>() {
+            @Override
+            public int compare(Triple<Integer, Integer, Vector> o1, Triple<Integer, Integer, Vector> o2) {
+                int c = Integer.compare(o1.getFirst(), o2.getFirst());
+                if (c != 0) {
+                    return c;
+                }
+                return Integer.compare(o1.getSecond(), o2.getSecond());
+            }
+        });
+        // two segments cross at most once, so a pair is kept once
+        List<Triple<Integer, Integer, Vector>> crossings = new ArrayList();
+        Triple<Integer, Integer, Vector> previous = null;
+        for (Triple<Integer, Integer, Vector> crossing : reported) {
+            if (previous == null || !previous.getFirst().equals(crossing.getFirst()) || !previous.getSecond().equals(crossing.getSecond())) {
+                if (crossing.getThird() == null) {
+                    System.err.println("Overlap found, planarization fails");
+                } else {
+                    crossings.add(crossing);
+                }
+            }
+            previous = crossing;
+        }
 
-                        connections.add(metro.addConnection("connect" + number, conn1.getBeginStation(), virt, conn1.getLines()));
-                        conn1.getBeginStation().removeConnectionTo(conn1.getEndStation());
-                        conn1.setBeginStation(virt);
-                        virt.addConnection(conn1);
-                        number++;
+        // create the virtual stations, and register the splits per connection
+        Map<Integer, List<Triple<MetroStation, Double, String>>> splits = new HashMap();
+        int number = 1;
+        for (Triple<Integer, Integer, Vector> crossing : crossings) {
+            Vector intersection = crossing.getThird();
+            MetroStation virt = metro.addStation(intersection, "virt" + number, "virtual non-planar" + (number / 2), true);
+
+            int[] pair = {crossing.getFirst(), crossing.getSecond()};
+            for (int k = 0; k < 2; k++) {
+                MetroConnection conn = connections.get(pair[k]);
+                List<Triple<MetroStation, Double, String>> connsplits = splits.get(pair[k]);
+                if (connsplits == null) {
+                    connsplits = new ArrayList();
+                    splits.put(pair[k], connsplits);
+                }
+                connsplits.add(new Triple(virt, conn.getBeginStation().distanceTo(intersection), "connect" + (number + k)));
+            }
+            number += 2;
+        }
 
-                        connections.add(metro.addConnection("connect" + number, conn2.getBeginStation(), virt, conn2.getLines()));
-                        conn2.getBeginStation().removeConnectionTo(conn2.getEndStation());
-                        conn2.setBeginStation(virt);
-                        virt.addConnection(conn2);
-                        number++;
+        // split the connections from their begin station onwards
+        for (int i = 0; i < n; i++) {
+            List<Triple<MetroStation, Double, String>> connsplits = splits.get(i);
+            if (connsplits == null) {
+                continue;
+            }
+            Collections.sort(connsplits, new Comparator<Triple<MetroStation, Double, String>>() {
+                @Override
+                public int compare(Triple<MetroStation, Double, String> o1, Triple<MetroStation, Double, String> o2) {
+                    int c = Double.compare(o1.getSecond(), o2.getSecond());
+                    if (c != 0) {
+                        return c;
                     }
+                    return Integer.compare(o1.getFirst().getIndex(), o2.getFirst().getIndex());
                 }
+            });
 
-                c2++;
+            MetroConnection conn = connections.get(i);
+            for (Triple<MetroStation, Double, String> split : connsplits) {
+                MetroStation virt = split.getFirst();
+                metro.addConnection(split.getThird(), conn.getBeginStation(), virt, conn.getLines());
+                conn.getBeginStation().removeConnectionTo(conn.getEndStation());
+                conn.setBeginStation(virt);
+                virt.addConnection(conn);
             }
-            c1++;
         }
     }
 
+    // visits the cells the segment passes through, column by column; the rows per column are
+    // widened by a small tolerance, such that a segment along a cell boundary is in both cells
+    private static void forCells(Vector a, Vector b, double ox, double oy, double cw, double ch, int cols, int rows, IntConsumer visit) {
+        if (a.getX() > b.getX()) {
+            Vector t = a;
+            a = b;
+            b = t;
+        }
+        double dx = b.getX() - a.getX();
+        double dy = b.getY() - a.getY();
+        int first = gridIndex(a.getX() - DoubleUtil.EPS, ox, cw, cols);
+        int last = gridIndex(b.getX() + DoubleUtil.EPS, ox, cw, cols);
+        for (int cx = first; cx <= last; cx++) {
+            // the y-range of the part of the segment in this column
+            double ya = a.getY();
+            double yb = b.getY();
+            if (first < last && dx > 0) {
+                double x0 = cx == first ? a.getX() : ox + cx * cw;
+                double x1 = cx == last ? b.getX() : ox + (cx + 1) * cw;
+                ya = a.getY() + Math.max(0, Math.min(1, (x0 - a.getX()) / dx)) * dy;
+                yb = a.getY() + Math.max(0, Math.min(1, (x1 - a.getX()) / dx)) * dy;
+            }
+            int r0 = gridIndex(Math.min(ya, yb) - DoubleUtil.EPS, oy, ch, rows);
+            int r1 = gridIndex(Math.max(ya, yb) + DoubleUtil.EPS, oy, ch, rows);
+            for (int cy = r0; cy <= r1; cy++) {
+                visit.accept(cy * cols + cx);
+            }
+        }
+    }
+
+    private static int gridIndex(double value, double origin, double size, int count) {
+        return Math.max(0, Math.min(count - 1, (int) Math.floor((value - origin) / size)));
+    }
+
     public static StrokeNetwork construct(MetroNetwork metro, boolean fromscratch) {
 
         System.out.println("Constructing stroke network");
@@ -95,6 +274,15 @@ public class NetworkConstruction {
 
         System.out.println("  planarized");
 
+        return constructPlanar(metro, fromscratch);
+    }
+
+    /**
+     * Constructs the stroke network of a network that has been planarized
+     * already.
+     */
+    public static StrokeNetwork constructPlanar(MetroNetwork metro, boolean fromscratch) {
+
         List<MetroConnection> unhandled = new ArrayList(metro.getConnections());
         final Comparator<Vector> lexico = new Comparator<Vector>() {
 
@@ -138,153 +326,138 @@ public class NetworkConstruction {
         });
         System.out.println("  sorted connection list");
 
-        List<List<MetroConnection>> strokes = new ArrayList();
-
-        while (!unhandled.isEmpty()) {
-            MetroConnection base = unhandled.remove(unhandled.size() - 1);
+        // unhandled connections form a stack: base connections are taken from the
+        // top, connections split off a stroke are pushed back on top, and entries of
+        // connections that have been taken as candidate in the meantime are skipped
+        Map<MetroConnection, Integer> ids = new HashMap();
+        for (int i = 0; i < unhandled.size(); i++) {
+            ids.put(unhandled.get(i), i);
+        }
+        BitSet isUnhandled = new BitSet(unhandled.size());
+        isUnhandled.set(0, unhandled.size());
+        int[] stamp = new int[unhandled.size()];
+        List<Integer> unhandledstamps = new ArrayList(Collections.nCopies(unhandled.size(), 0));
+        int unhandledCount = unhandled.size();
 
-            List<MetroConnection> stroke = new ArrayList();
-            strokes.add(stroke);
+        List<List<MetroConnection>> strokes = new ArrayList();
+        // number of connections of the stroke being grown that are incident to a station
+        Map<MetroStation, Integer> incidences = new HashMap();
+
+        while (unhandledCount > 0) {
+            MetroConnection base;
+            int baseid;
+            int basestamp;
+            do {
+                base = unhandled.remove(unhandled.size() - 1);
+                baseid = ids.get(base);
+                basestamp = unhandledstamps.remove(unhandledstamps.size() - 1);
+            } while (!isUnhandled.get(baseid) || basestamp != stamp[baseid]);
+            isUnhandled.clear(baseid);
+            unhandledCount--;
+
+            ArrayDeque<MetroConnection> stroke = new ArrayDeque();
+            incidences.clear();
 
             stroke.add(base);
-            unhandled.remove(base);
+            incident(incidences, base, 1);
 
             MetroStation start = base.getBeginStation();
             MetroConnection first = base;
             MetroConnection last = base;
             MetroStation end = base.getEndStation();
 
-            boolean continueforward = end != start;
-            while (continueforward) {
-                continueforward = false;
-                List<MetroConnection> candidates = new ArrayList();
-                if (!fromscratch) {
-                    for (MetroConnection conn : end.getConnections()) {
-                        if (unhandled.contains(conn) && conn != last && sameSet(conn.getLines(), base.getLines())) {
-                            candidates.add(conn);
-                        }
-                    }
-                }
-                MetroConnection cand = findCandidate(last, end, candidates);
-
-                if (cand != null) {
-                    //if (stroke already contains last point // break off part)
-                    //NB: first station on line is okay (circular)
-                    boolean split = false;
-                    MetroStation startStation = stroke.get(0).getBeginStation();
-                    if (stroke.size() > 1) {
-                        startStation = stroke.get(0).theOther(stroke.get(0).getSharedStation(stroke.get(1)));
-                    }
-                    for (int i = 0; i < stroke.size() - 1; i++) {
-                        startStation = stroke.get(i).theOther(startStation);
-                        if (cand.getBeginStation() == startStation || cand.getEndStation() == startStation) {
-                            for (int j = stroke.size() - 1; j > i; j--) {
-                                MetroConnection mc = stroke.remove(j);
-                                unhandled.add(mc);
+            for (int direction = 0; direction < 2; direction++) {
+                boolean forward = direction == 0;
+                boolean extend = end != start;
+                while (extend) {
+                    extend = false;
+                    MetroStation at = forward ? end : start;
+                    MetroConnection from = forward ? last : first;
+                    List<MetroConnection> candidates = new ArrayList();
+                    if (!fromscratch) {
+                        for (MetroConnection conn : at.getConnections()) {
+                            Integer id = ids.get(conn);
+                            if (id != null && isUnhandled.get(id) && conn != from && sameSet(conn.getLines(), base.getLines())) {
+                                candidates.add(conn);
                             }
-                            split = true;
-                            break;
                         }
                     }
-
-                    stroke.add(cand);
-                    unhandled.remove(cand);
-
-                    last = cand;
-                    end = cand.theOther(end);
-
-                    continueforward = end != start && !split;
-                }
-            }
-
-            boolean continuebackward = end != start;
-            while (continuebackward) {
-                continuebackward = false;
-                List<MetroConnection> candidates = new ArrayList();
-                if (!fromscratch) {
-                    for (MetroConnection conn : start.getConnections()) {
-                        if (unhandled.contains(conn) && conn != first && sameSet(conn.getLines(), base.getLines())) {
-                            candidates.add(conn);
-                        }
-                    }
-                }
-                MetroConnection cand = findCandidate(first, start, candidates);
-
-                if (cand != null) {
-                    //if (stroke already contains last point // break off part)
-                    //NB: first station on line is okay (circular)
-                    boolean split = false;
-                    MetroStation startStation = stroke.get(0).getBeginStation();
-                    if (stroke.size() > 1) {
-                        startStation = stroke.get(0).theOther((stroke.get(0).getSharedStation(stroke.get(1))));
-                    }
-                    for (int i = 0; i < stroke.size() - 1; i++) {
-                        startStation = stroke.get(i).theOther(startStation);
-                        if (cand.getBeginStation() == startStation || cand.getEndStation() == startStation) {
-                            for (int j = stroke.size() - 1; j > i; j--) {
-                                MetroConnection mc = stroke.remove(j);
-                                unhandled.add(mc);
+                    MetroConnection cand = findCandidate(from, at, candidates);
+
+                    if (cand != null) {
+                        //if (stroke already contains last point // break off part)
+                        //NB: first station on line is okay (circular)
+                        boolean split = false;
+                        // only a station incident to two connections of the stroke can be internal
+                        if (count(incidences, cand.getBeginStation()) > 1 || count(incidences, cand.getEndStation()) > 1) {
+                            int i = findSplit(stroke, cand);
+                            if (i >= 0) {
+                                for (int j = stroke.size() - 1; j > i; j--) {
+                                    MetroConnection mc = stroke.removeLast();
+                                    incident(incidences, mc, -1);
+                                    int id = ids.get(mc);
+                                    stamp[id]++;
+                                    isUnhandled.set(id);
+                                    unhandledCount++;
+                                    unhandled.add(mc);
+                                    unhandledstamps.add(stamp[id]);
+                                }
+                                split = true;
                             }
-                            split = true;
-                            break;
                         }
-                    }
-
-                    stroke.add(0, cand);
-                    unhandled.remove(cand);
 
-                    first = cand;
-                    start = cand.theOther(start);
+                        if (forward) {
+                            stroke.addLast(cand);
+                            last = cand;
+                            end = cand.theOther(end);
+                        } else {
+                            stroke.addFirst(cand);
+                            first = cand;
+                            start = cand.theOther(start);
+                        }
+                        incident(incidences, cand, 1);
+                        isUnhandled.clear(ids.get(cand));
+                        unhandledCount--;
 
-                    continuebackward = end != start && !split;
+                        extend = end != start && !split;
+                    }
                 }
             }
 
+            strokes.add(new ArrayList(stroke));
         }
 
         System.out.println(" strokes: " + strokes.size());
 
         StrokeNetwork result = new StrokeNetwork();
 
-        // construct StrokeVertex
-        List<List<StrokeVertex>> crosses = new ArrayList();
-        Map<MetroStation, Map<List<MetroConnection>, StrokeVertex>> strokevertexmap = new HashMap();
-        for (MetroStation station : metro.getStations()) {
-            Map<List<MetroConnection>, StrokeVertex> strokemap = new HashMap();
-            strokevertexmap.put(station, strokemap);
-
-            List<StrokeVertex> cross = new ArrayList();
-
-            for (List<MetroConnection> stroke : strokes) {
-                boolean goesThroughStation = false;
-                for (MetroConnection conn : station.getConnections()) {
-                    if (stroke.contains(conn)) {
-                        goesThroughStation = true;
-                        break;
+        // construct StrokeVertex, Stroke & StrokeArc
+        Map<MetroStation, List<StrokeVertex>> stationvertices = new HashMap();
+        Map<MetroStation, StrokeVertex> strokevertexmap = new HashMap();
+        for (List<MetroConnection> stroke : strokes) {
+            strokevertexmap.clear();
+            for (MetroConnection conn : stroke) {
+                for (MetroStation station : new MetroStation[]{conn.getBeginStation(), conn.getEndStation()}) {
+                    if (!strokevertexmap.containsKey(station)) {
+                        StrokeVertex sv = new StrokeVertex(station);
+                        strokevertexmap.put(station, sv);
+                        List<StrokeVertex> cross = stationvertices.get(station);
+                        if (cross == null) {
+                            cross = new ArrayList();
+                            stationvertices.put(station, cross);
+                        }
+                        cross.add(sv);
                     }
                 }
-
-                if (goesThroughStation) {
-                    StrokeVertex sv = new StrokeVertex(station);
-                    cross.add(sv);
-                    strokemap.put(stroke, sv);
-                }
             }
 
-            if (cross.size() > 1) {
-                crosses.add(cross);
-            }
-        }
-
-        // construct Stroke & StrokeArc
-        for (List<MetroConnection> stroke : strokes) {
             List<StrokeVertex> vtxs = new ArrayList();
 
             MetroStation start = stroke.get(0).getBeginStation(); //ARTHUR
             if (stroke.size() > 1) {
                 start = stroke.get(0).theOther((stroke.get(1).getSharedStation(stroke.get(0))));
             }
-            vtxs.add(strokevertexmap.get(start).get(stroke));
+            vtxs.add(strokevertexmap.get(start));
 
             MetroStation last = start;
             for (int i = 0; i < stroke.size(); i++) {
@@ -292,7 +465,7 @@ public class NetworkConstruction {
                 last = stroke.get(i).theOther(last);
 
                 StrokeVertex from = vtxs.get(vtxs.size() - 1);
-                StrokeVertex to = strokevertexmap.get(last).get(stroke);
+                StrokeVertex to = strokevertexmap.get(last);
                 vtxs.add(to);
 
                 StrokeArc arc = new StrokeArc(from, to, conn);
@@ -309,6 +482,14 @@ public class NetworkConstruction {
             result.addStroke(constructedstroke);
         }
 
+        List<List<StrokeVertex>> crosses = new ArrayList();
+        for (MetroStation station : metro.getStations()) {
+            List<StrokeVertex> cross = stationvertices.get(station);
+            if (cross != null && cross.size() > 1) {
+                crosses.add(cross);
+            }
+        }
+
         // construct StrokeCross
         for (List<StrokeVertex> cross : crosses) {
             StrokeCross constructedcross = new StrokeCross(cross.get(0).getOriginal());
@@ -394,6 +575,34 @@ public class NetworkConstruction {
         return result;
     }
 
+    private static void incident(Map<MetroStation, Integer> incidences, MetroConnection mc, int delta) {
+        incidences.put(mc.getBeginStation(), count(incidences, mc.getBeginStation()) + delta);
+        incidences.put(mc.getEndStation(), count(incidences, mc.getEndStation()) + delta);
+    }
+
+    private static int count(Map<MetroStation, Integer> incidences, MetroStation ms) {
+        Integer c = incidences.get(ms);
+        return c == null ? 0 : c;
+    }
+
+    // index of the first connection of the stroke after which it visits a station of cand, or -1
+    private static int findSplit(ArrayDeque<MetroConnection> stroke, MetroConnection cand) {
+        if (stroke.size() <= 1) {
+            return -1;
+        }
+        Iterator<MetroConnection> it = stroke.iterator();
+        MetroConnection c0 = it.next();
+        MetroStation startStation = c0.theOther(c0.getSharedStation(it.next()));
+        it = stroke.iterator();
+        for (int i = 0; i < stroke.size() - 1; i++) {
+            startStation = it.next().theOther(startStation);
+            if (cand.getBeginStation() == startStation || cand.getEndStation() == startStation) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private static MetroConnection findCandidate(MetroConnection last, MetroStation end, List<MetroConnection> candidates) {
         if (candidates.isEmpty()) {
             return null;
@@ -426,8 +635,13 @@ public class NetworkConstruction {
             }
         });
 
-        while (turningAngles.size() > 0) {
-            Triple<Double, MetroConnection, MetroConnection> match = turningAngles.remove(turningAngles.size() - 1);
+        // greedily match the smallest turning angles; pairs with a matched connection are skipped
+        Set<MetroConnection> matched = new HashSet();
+        for (int i = turningAngles.size() - 1; i >= 0; i--) {
+            Triple<Double, MetroConnection, MetroConnection> match = turningAngles.get(i);
+            if (matched.contains(match.getSecond()) || matched.contains(match.getThird())) {
+                continue;
+            }
 
             if (match.getThird() == last) {
                 return match.getSecond();
@@ -435,17 +649,8 @@ public class NetworkConstruction {
                 return match.getThird();
             }
 
-            Iterator<Triple<Double, MetroConnection, MetroConnection>> it = turningAngles.iterator();
-            while (it.hasNext()) {
-                Triple<Double, MetroConnection, MetroConnection> next = it.next();
-
-                if (next.getSecond() == match.getSecond()
-                        || next.getSecond() == match.getThird()
-                        || next.getThird() == match.getSecond()
-                        || next.getThird() == match.getThird()) {
-                    it.remove();
-                }
-            }
+            matched.add(match.getSecond());
+            matched.add(match.getThird());
         }
 
         return null;
@@ -455,6 +660,9 @@ public class NetworkConstruction {
 
         //find the 2 best matching strokes that end at this cross
         ArrayList<StrokeCross> removeCrosses = new ArrayList<StrokeCross>();
+        // strokes are removed from and added to the network at the end, in one pass
+        Set<Stroke> removedStrokes = new HashSet();
+        List<Stroke> addedStrokes = new ArrayList();
         for (StrokeCross cs : network.getCrosses()) {
             List<StrokeVertex> endingStrokes = new ArrayList<StrokeVertex>();
 
@@ -520,18 +728,9 @@ public class NetworkConstruction {
                     endVertex2 = firstCombi.getSecond().getStroke().getEndVertex();
                 }
 
-                boolean createsLoop = false;
-
-                for (int i = 0; i < sv1.getStroke().getVertices().size(); i++) {
-                    for (int j = 0; j < sv2.getStroke().getVertices().size(); j++) {
-                        if ((i == 0 || i == sv1.getStroke().getVertices().size() - 1) && (j == 0 || j == sv2.getStroke().getVertices().size() - 1)) {
-                            continue;
-                        }
-                        if (sv1.getStroke().getVertices().get(i).isApproximately(sv2.getStroke().getVertices().get(j))) {
-                            createsLoop = true;
-                        }
-                    }
-                }
+                PositionIndex index = new PositionIndex();
+                index.addStroke(sv1.getStroke());
+                boolean createsLoop = index.overlaps(sv2.getStroke());
 
                 if (createsLoop) {
                     continue;
@@ -606,8 +805,8 @@ public class NetworkConstruction {
                 sv1.setOutgoing(bridgeArc);
                 bridgeVertex.setIncoming(bridgeArc);
 
-                network.removeStroke(sv1.getStroke());
-                network.removeStroke(sv2.getStroke());
+                removedStrokes.add(sv1.getStroke());
+                removedStrokes.add(sv2.getStroke());
 
                 boolean circular = strokeVerts1.get(0).isApproximately(strokeVerts1.get(strokeVerts1.size() - 1));
                 if (circular) {
@@ -620,6 +819,8 @@ public class NetworkConstruction {
 
                 Stroke stroke1 = sv1.getStroke();
                 Stroke stroke2 = sv2.getStroke();
+                stroke1.release();
+                stroke2.release();
                 Stroke newStroke = new Stroke(strokeVerts1, circular);
 
                 for (StrokeCross sc : virts1) {
@@ -640,12 +841,19 @@ public class NetworkConstruction {
                     }
                 }
 
-                network.addStroke(newStroke);
+                addedStrokes.add(newStroke);
             }
             //merge
             //continue untill strokes ending here == 1 || 0
         }
 
+        network.removeStrokes(removedStrokes);
+        for (Stroke s : addedStrokes) {
+            if (!removedStrokes.contains(s)) {
+                network.addStroke(s);
+            }
+        }
+
         for (StrokeCross sv : removeCrosses) {
             network.removeCross(sv);
         }
@@ -654,18 +862,16 @@ public class NetworkConstruction {
     }
 
     public static boolean containsOriginal(Stroke s, MetroStation m) {
-        for (StrokeVertex sv : s.getVertices()) {
-            if (sv.getOriginal() == m) {
-                return true;
-            }
-        }
-        return false;
+        return s.containsOriginal(m);
     }
 
     public static StrokeNetwork mergeStrokesLines(StrokeNetwork network) {
         HashMap<MetroLine, List<Stroke>> lineMap = new HashMap<MetroLine, List<Stroke>>();
         HashMap<MetroLine, Integer> lineSizeMap = new HashMap<MetroLine, Integer>();
         List<Pair<Integer, MetroLine>> lineLengthList = new ArrayList<Pair<Integer, MetroLine>>();
+        // strokes are removed from and added to the network at the end, in one pass
+        Set<Stroke> removedStrokes = new HashSet();
+        List<Stroke> addedStrokes = new ArrayList();
 
 //        getAllNetwork lines
 //        for all lines store hashmap line -> list<strokes>
@@ -726,35 +932,35 @@ public class NetworkConstruction {
             int sub = strokes.size();
 
 //         remove strokes from others
+            Set<Stroke> merged = new HashSet(strokes);
+            Set<MetroLine> affected = new HashSet();
             for (Stroke s : strokes) {
                 ArrayList<MetroLine> lines = s.getArc(0).getOriginaledges().get(0).getLines();
                 for (MetroLine line : lines) {
-                    if (line == longest) {
-                        continue;
+                    if (line != longest) {
+                        affected.add(line);
                     }
-                    List<Stroke> strokesLine = lineMap.get(line);
-                    strokesLine.remove(s);
-                    lineMap.put(line, strokesLine);
                 }
             }
-            Stroke stroke = mergeStrokes(strokes);
-            network.addStroke(stroke);
-
-            for (Stroke s : strokes) {
-                network.removeStroke(s);
+            for (MetroLine line : affected) {
+                lineMap.get(line).removeAll(merged);
             }
+            Stroke stroke = mergeStrokes(strokes);
+            addedStrokes.add(stroke);
+            removedStrokes.addAll(merged);
 
             if (total == sub) {
                 lineMap.remove(longest);
             } else {
-                List<Stroke> strokesAll = lineMap.get(longest);
-                for (Stroke s : strokes) {
-                    strokesAll.remove(s);
-                }
-                lineMap.put(longest, strokesAll);
+                lineMap.get(longest).removeAll(merged);
             }
         }
 
+        network.removeStrokes(removedStrokes);
+        for (Stroke s : addedStrokes) {
+            network.addStroke(s);
+        }
+
         //fixCrosses
         List<StrokeCross> removeCrosses = new ArrayList<StrokeCross>();
         for (StrokeCross sc : network.getCrosses()) {
@@ -794,53 +1000,49 @@ public class NetworkConstruction {
 
         List<Stroke> returnStrokes = new ArrayList<Stroke>();
         List<Stroke> returnStrokesBackup = new ArrayList<Stroke>();
+        int returnSize = 0;
+        int backupSize = 0;
+        // positions of the vertices of returnStrokes
+        PositionIndex index = new PositionIndex();
 
         returnStrokes.add(strokes.get(0));
+        returnSize += strokes.get(0).getVertices().size() - 1;
+        index.addStroke(strokes.get(0));
         for (int i = 1; i < strokes.size(); i++) {
-            if ((strokes.get(i - 1).getStartVertex().getOriginal() == strokes.get(i).getStartVertex().getOriginal())
-                    || (strokes.get(i - 1).getStartVertex().getOriginal() == strokes.get(i).getEndVertex().getOriginal())
-                    || (strokes.get(i - 1).getEndVertex().getOriginal() == strokes.get(i).getEndVertex().getOriginal())
-                    || (strokes.get(i - 1).getEndVertex().getOriginal() == strokes.get(i).getStartVertex().getOriginal())) {
-                boolean loop = false;
-                for (int j = 0; j < returnStrokes.size(); j++) {
-                    for (int k = 0; k < returnStrokes.get(j).getVertices().size(); k++) {
-                        for (int l = 0; l < strokes.get(i).getVertices().size(); l++) {
-                            if ((k == 0 || k == returnStrokes.get(j).getVertices().size() - 1) && (l == 0 || l == strokes.get(i).getVertices().size() - 1)) {
-                                continue;
-                            }
-                            if (returnStrokes.get(j).getVertices().get(k).isApproximately(strokes.get(i).getVertices().get(l))) {
-                                loop = true;
-                                break;
-                            }
-                        }
-                        if (loop) {
-                            break;
-                        }
-                    }
-                    if (loop) {
-                        break;
-                    }
-                }
+            Stroke stroke = strokes.get(i);
+            if ((strokes.get(i - 1).getStartVertex().getOriginal() == stroke.getStartVertex().getOriginal())
+                    || (strokes.get(i - 1).getStartVertex().getOriginal() == stroke.getEndVertex().getOriginal())
+                    || (strokes.get(i - 1).getEndVertex().getOriginal() == stroke.getEndVertex().getOriginal())
+                    || (strokes.get(i - 1).getEndVertex().getOriginal() == stroke.getStartVertex().getOriginal())) {
+                boolean loop = index.overlaps(stroke);
                 if (!loop) {
-                    returnStrokes.add(strokes.get(i));
-                } else if (sizeOfStrokes(returnStrokes) > sizeOfStrokes(returnStrokesBackup)) {
-                    returnStrokesBackup.clear();
-                    returnStrokesBackup.addAll(returnStrokes);
-                    returnStrokes.clear();
-                    returnStrokes.add(strokes.get(i));
+                    returnStrokes.add(stroke);
+                    returnSize += stroke.getVertices().size() - 1;
+                    index.addStroke(stroke);
+                } else if (returnSize > backupSize) {
+                    returnStrokesBackup = returnStrokes;
+                    backupSize = returnSize;
+                    returnStrokes = new ArrayList<Stroke>();
+                    returnStrokes.add(stroke);
+                    returnSize = stroke.getVertices().size() - 1;
+                    index.clear();
+                    index.addStroke(stroke);
                 }
 
             } else {
-                if (sizeOfStrokes(returnStrokes) > sizeOfStrokes(returnStrokesBackup)) {
-                    returnStrokesBackup.clear();
-                    returnStrokesBackup.addAll(returnStrokes);
+                if (returnSize > backupSize) {
+                    returnStrokesBackup = returnStrokes;
+                    backupSize = returnSize;
                 }
-                returnStrokes.clear();
-                returnStrokes.add(strokes.get(i));
+                returnStrokes = new ArrayList<Stroke>();
+                returnStrokes.add(stroke);
+                returnSize = stroke.getVertices().size() - 1;
+                index.clear();
+                index.addStroke(stroke);
             }
         }
 
-        if (sizeOfStrokes(returnStrokes) > sizeOfStrokes(returnStrokesBackup)) {
+        if (returnSize > backupSize) {
             return returnStrokes;
         } else {
             return returnStrokesBackup;
@@ -902,6 +1104,10 @@ public class NetworkConstruction {
             }
         }
 
+        // the vertex lists of both strokes are rearranged into the new stroke
+        a.release();
+        b.release();
+
         List<StrokeVertex> strokeVerts = connectVert1.getStroke().getVertices();
         List<StrokeVertex> strokeVerts1;
         if (strokeVerts.get(strokeVerts.size() - 1) != connectVert1) {
@@ -968,49 +1174,78 @@ public class NetworkConstruction {
             return strokes;
         }
 
-        //O(n^2)
-        ArrayList<Stroke> partialStrokeOrder = new ArrayList<Stroke>();
+        // the chain is extended by the first remaining stroke (in list order) that
+        // ends at either end of the chain; index the strokes by their end stations
+        int n = strokes.size();
+        Map<MetroStation, TreeSet<Integer>> atStation = new HashMap();
+        for (int i = 0; i < n; i++) {
+            for (MetroStation ms : new MetroStation[]{strokes.get(i).getStartVertex().getOriginal(), strokes.get(i).getEndVertex().getOriginal()}) {
+                TreeSet<Integer> set = atStation.get(ms);
+                if (set == null) {
+                    set = new TreeSet();
+                    atStation.put(ms, set);
+                }
+                set.add(i);
+            }
+        }
+        boolean[] used = new boolean[n];
+
         ArrayList<Stroke> strokeOrder = new ArrayList<Stroke>();
-        partialStrokeOrder.add(strokes.get(0));
-        strokes.remove(0);
-        MetroStation startStation = partialStrokeOrder.get(0).getStartVertex().getOriginal();
-        MetroStation endVertex = partialStrokeOrder.get(0).getEndVertex().getOriginal();
-        while (strokes.size() > 0) {
-            int before = strokes.size();
-            for (int i = 0; i < strokes.size(); i++) {
-                if (strokes.get(i).getStartVertex().getOriginal() == startStation || strokes.get(i).getEndVertex().getOriginal() == startStation) {
-                    partialStrokeOrder.add(0, strokes.get(i));
-                    if (strokes.get(i).getStartVertex().getOriginal() == startStation) {
-                        startStation = strokes.get(i).getEndVertex().getOriginal();
+        ArrayDeque<Stroke> partialStrokeOrder = new ArrayDeque<Stroke>();
+        int first = 0;
+        int remaining = n;
+        while (remaining > 0) {
+            // start a new chain at the first remaining stroke
+            while (used[first]) {
+                first++;
+            }
+            Stroke start = take(strokes, first, used, atStation);
+            remaining--;
+            partialStrokeOrder.add(start);
+            MetroStation startStation = start.getStartVertex().getOriginal();
+            MetroStation endVertex = start.getEndVertex().getOriginal();
+
+            while (remaining > 0) {
+                int i = Math.min(firstIndex(atStation.get(startStation)), firstIndex(atStation.get(endVertex)));
+                if (i == Integer.MAX_VALUE) {
+                    break;
+                }
+                Stroke s = take(strokes, i, used, atStation);
+                remaining--;
+                if (s.getStartVertex().getOriginal() == startStation || s.getEndVertex().getOriginal() == startStation) {
+                    partialStrokeOrder.addFirst(s);
+                    if (s.getStartVertex().getOriginal() == startStation) {
+                        startStation = s.getEndVertex().getOriginal();
                     } else {
-                        startStation = strokes.get(i).getStartVertex().getOriginal();
+                        startStation = s.getStartVertex().getOriginal();
                     }
-                    strokes.remove(i);
-                    i = -1;
-                } else if (strokes.get(i).getStartVertex().getOriginal() == endVertex || strokes.get(i).getEndVertex().getOriginal() == endVertex) {
-                    partialStrokeOrder.add(strokes.get(i));
-                    if (strokes.get(i).getEndVertex().getOriginal() == endVertex) {
-                        endVertex = strokes.get(i).getStartVertex().getOriginal();
+                } else {
+                    partialStrokeOrder.addLast(s);
+                    if (s.getEndVertex().getOriginal() == endVertex) {
+                        endVertex = s.getStartVertex().getOriginal();
                     } else {
-                        endVertex = strokes.get(i).getEndVertex().getOriginal();
+                        endVertex = s.getEndVertex().getOriginal();
                     }
-                    strokes.remove(i);
-                    i = -1;
                 }
             }
-            int after = strokes.size();
-            if (before == after) {
-                strokeOrder.addAll(partialStrokeOrder);
-                partialStrokeOrder.clear();
-                partialStrokeOrder.add(strokes.remove(0));
-                startStation = partialStrokeOrder.get(0).getStartVertex().getOriginal();
-                endVertex = partialStrokeOrder.get(0).getEndVertex().getOriginal();
-            }
+            strokeOrder.addAll(partialStrokeOrder);
+            partialStrokeOrder.clear();
         }
-        strokeOrder.addAll(partialStrokeOrder);
         return strokeOrder;
     }
 
+    private static Stroke take(List<Stroke> strokes, int i, boolean[] used, Map<MetroStation, TreeSet<Integer>> atStation) {
+        Stroke s = strokes.get(i);
+        used[i] = true;
+        atStation.get(s.getStartVertex().getOriginal()).remove(i);
+        atStation.get(s.getEndVertex().getOriginal()).remove(i);
+        return s;
+    }
+
+    private static int firstIndex(TreeSet<Integer> set) {
+        return set == null || set.isEmpty() ? Integer.MAX_VALUE : set.first();
+    }
+
     //assumes strokes ordered
     private static int findMaxLength(List<Stroke> strokes) {
         int maxLength = 0;
@@ -1079,4 +1314,75 @@ public class NetworkConstruction {
 
         return true;
     }
+
+    /**
+     * Hash index on the positions of stroke vertices, to find approximately
+     * coinciding vertices (as by isApproximately) in expected constant time.
+     * Vertices at index 0 and the last index of their stroke are endpoints.
+     */
+    private static class PositionIndex {
+
+        private final double cell = 2 * DoubleUtil.EPS;
+        private final Map<Long, List<StrokeVertex>> cells = new HashMap();
+        private final Set<StrokeVertex> endpoints = new HashSet();
+
+        void addStroke(Stroke s) {
+            List<StrokeVertex> vertices = s.getVertices();
+            for (int i = 0; i < vertices.size(); i++) {
+                StrokeVertex sv = vertices.get(i);
+                long key = key(Math.floor(sv.getX() / cell), Math.floor(sv.getY() / cell));
+                List<StrokeVertex> list = cells.get(key);
+                if (list == null) {
+                    list = new ArrayList();
+                    cells.put(key, list);
+                }
+                list.add(sv);
+                if (i == 0 || i == vertices.size() - 1) {
+                    endpoints.add(sv);
+                }
+            }
+        }
+
+        /**
+         * Tests whether a vertex of the given stroke coincides with an indexed
+         * vertex, ignoring pairs of two endpoints.
+         */
+        boolean overlaps(Stroke s) {
+            List<StrokeVertex> vertices = s.getVertices();
+            for (int i = 0; i < vertices.size(); i++) {
+                if (matches(vertices.get(i), i == 0 || i == vertices.size() - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            cells.clear();
+            endpoints.clear();
+        }
+
+        private boolean matches(StrokeVertex sv, boolean endpoint) {
+            double cx = Math.floor(sv.getX() / cell);
+            double cy = Math.floor(sv.getY() / cell);
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    List<StrokeVertex> list = cells.get(key(cx + dx, cy + dy));
+                    if (list == null) {
+                        continue;
+                    }
+                    for (StrokeVertex other : list) {
+                        if ((!endpoint || !endpoints.contains(other)) && other.isApproximately(sv)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private long key(double cx, double cy) {
+            return ((long) cx << 32) ^ ((long) cy & 0xffffffffL);
+        }
+    }
 }
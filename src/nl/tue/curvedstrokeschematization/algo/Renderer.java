@@ -207,9 +207,9 @@ public class Renderer {
             StrokeVertex sv = new StrokeVertex(new MetroStation(i, cn.getArc().getStart(), "F" + i, "F" + i, false)); // TODO, probably not quite right?
             i++;
             sv.setStroke(cn.getStroke());
-            arcs.add(new StrokeArc(sv, new StrokeVertex(new MetroStation(i, cn.getArc().getEnd(), "F" + i, "F" + i, false)), cn.getArc(), cn.getVirtualCrosses(), cn.getConnections()));
+            arcs.add(new StrokeArc(sv, new StrokeVertex(new MetroStation(i, cn.getArc().getEnd(), "F" + i, "F" + i, false)), cn.getArc(), query.getVirtualCrosses(cn), cn.getConnections()));
             i++;
-            crossSet.addAll(cn.getVirtualCrosses());
+            crossSet.addAll(query.getVirtualCrosses(cn));
         }
 
         crosses.addAll(crossSet);
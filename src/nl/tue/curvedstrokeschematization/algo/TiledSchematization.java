@@ -0,0 +1,354 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo;
+
+import nl.tue.curvedstrokeschematization.algo.schematization.FullCircleArc;
+import nl.tue.curvedstrokeschematization.algo.schematization.IterativeSchematization;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.tue.geometrycore.geometry.linear.Rectangle;
+import nl.tue.geometrycore.util.DoubleUtil;
+
+/**
+ * Schematizes a network by simplifying the tiles of a grid in parallel,
+ * followed by a sequential pass over the entire network.
+ *
+ * Within a tile, only arcs that lie strictly inside the tile and are not
+ * involved in a crossing may be replaced; all other arcs are frozen. Frozen
+ * arcs are never modified by a tile, and the arcs a tile may modify cannot
+ * reach outside it, so tiles can be processed independently. Subsequent passes
+ * shift the grid by half a tile, such that arcs frozen on a tile border become
+ * interior. The final global pass reaches the target and handles what the
+ * tiles could not, in particular the interchanges.
+ */
+public class TiledSchematization {
+
+    /**
+     * Simplifies the runs of a tile in place. Implementations may only remove
+     * run vertices and replace the arcs between the remaining ones.
+     */
+    public interface TileSolver {
+
+        void solve(Tile tile, Rectangle reference, double frechet) throws IOException;
+    }
+
+    /**
+     * A tile of the grid: the runs of interior arcs as separate strokes, the
+     * frozen arcs adjacent to the runs, and the frozen arcs that overlap the
+     * region.
+     */
+    public static class Tile {
+
+        public final Rectangle region;
+        public final List<Stroke> runs;
+        public final Set<StrokeArc> frozen;
+        public final List<StrokeArc> obstacles;
+        public final int target;
+
+        public Tile(Rectangle region, List<Stroke> runs, Set<StrokeArc> frozen, List<StrokeArc> obstacles, int target) {
+            this.region = region;
+            this.runs = runs;
+            this.frozen = frozen;
+            this.obstacles = obstacles;
+            this.target = target;
+        }
+    }
+
+    public static StrokeNetwork schematize(MetroNetwork network, int complexity, double frechet, int tiles, int passes, int threads, Supplier<IterativeSchematization> algorithms) {
+        return schematize(network, complexity, frechet, tiles, passes, threads, localSolver(algorithms), algorithms);
+    }
+
+    public static TileSolver localSolver(Supplier<IterativeSchematization> algorithms) {
+        return (tile, reference, f) -> {
+            IterativeSchematization algorithm = algorithms.get();
+            algorithm.setReferenceBox(reference);
+            algorithm.setRegion(tile.region, tile.frozen, tile.obstacles);
+            StrokeNetwork sn = new StrokeNetwork();
+            for (Stroke run : tile.runs) {
+                sn.addStroke(run);
+            }
+            algorithm.init(sn);
+            while (algorithm.performStep(tile.target, f)) {
+                // step
+            }
+        };
+    }
+
+    public static StrokeNetwork schematize(MetroNetwork network, int complexity, double frechet, int tiles, int passes, int threads, TileSolver solver, Supplier<IterativeSchematization> algorithms) {
+
+        StrokeNetwork stroked = NetworkConstruction.construct(network, false);
+        NetworkConstruction.mergeStrokesAngle(stroked);
+
+        // distances are relative to the entire network
+        Rectangle bb = new Rectangle();
+        for (StrokeVertex sv : stroked.getVertices()) {
+            bb.include(sv);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                if (!schematizeTiles(stroked, bb, complexity, frechet, tiles, pass % 2 == 1, pool, solver)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(TiledSchematization.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+
+        IterativeSchematization algorithm = algorithms.get();
+        algorithm.setReferenceBox(bb);
+        algorithm.init(stroked);
+        while (algorithm.performStep(complexity, frechet)) {
+            // step
+        }
+        return stroked;
+    }
+
+    private static boolean schematizeTiles(StrokeNetwork stroked, Rectangle bb, int complexity, double frechet, int tiles, boolean shifted, ExecutorService pool, TileSolver solver) throws InterruptedException, ExecutionException {
+
+        int total = 0;
+        for (StrokeArc arc : stroked.getArcs()) {
+            total++;
+        }
+        if (total <= complexity) {
+            return false;
+        }
+
+        Grid grid = new Grid(bb, tiles, shifted);
+
+        Map<StrokeArc, Integer> tileof = new HashMap();
+        List<StrokeArc> borderarcs = new ArrayList();
+        for (StrokeArc arc : stroked.getArcs()) {
+            int t = grid.interiorTile(arc);
+            // an arc that follows one interior to another tile would start a
+            // run at the end vertex of that tile's run: keep it on the border
+            // instead, so no two runs share a vertex
+            StrokeArc previous = arc.getStart().getIncoming();
+            if (t >= 0 && previous != null) {
+                Integer before = tileof.get(previous);
+                if (before == null) {
+                    // the last arc of a circular stroke, not yet assigned
+                    before = grid.interiorTile(previous);
+                }
+                if (before >= 0 && before != t) {
+                    t = -1;
+                }
+            }
+            tileof.put(arc, t);
+            if (t < 0) {
+                borderarcs.add(arc);
+            }
+        }
+
+        // cut the strokes into runs of arcs interior to the same tile
+        int n = grid.count();
+        List<Stroke>[] runs = new List[n];
+        Set<StrokeArc>[] frozen = new Set[n];
+        int[] arcs = new int[n];
+        for (int t = 0; t < n; t++) {
+            runs[t] = new ArrayList();
+            frozen[t] = new HashSet();
+        }
+        Map<Stroke, Stroke> wholecircles = new HashMap();
+        Map<Stroke, StrokeVertex> anchors = new HashMap();
+
+        for (Stroke s : stroked.getStrokes()) {
+            int k = s.getArcCount();
+            if (k == 0) {
+                continue;
+            }
+            List<StrokeArc> sarcs = new ArrayList();
+            for (int i = 0; i < k; i++) {
+                sarcs.add(s.getArc(i));
+            }
+            // the vertices go to the runs until the stroke is stitched back together
+            s.release();
+
+            int first = 0;
+            if (s.isCircular()) {
+                first = -1;
+                for (int i = 0; i < k; i++) {
+                    if (tileof.get(sarcs.get(i)) < 0) {
+                        first = i;
+                        break;
+                    }
+                }
+                if (first < 0) {
+                    // the entire circle is interior to one tile
+                    int t = tileof.get(sarcs.get(0));
+                    Stroke run = new Stroke(new ArrayList(s.getVertices()), true);
+                    runs[t].add(run);
+                    arcs[t] += k;
+                    wholecircles.put(s, run);
+                    continue;
+                }
+            }
+            anchors.put(s, sarcs.get(first).getStart());
+
+            int i = 0;
+            while (i < k) {
+                StrokeArc arc = sarcs.get((first + i) % k);
+                int t = tileof.get(arc);
+                if (t < 0) {
+                    i++;
+                    continue;
+                }
+                List<StrokeVertex> vertices = new ArrayList();
+                vertices.add(arc.getStart());
+                while (i < k && tileof.get(sarcs.get((first + i) % k)) == t) {
+                    vertices.add(sarcs.get((first + i) % k).getEnd());
+                    i++;
+                }
+                StrokeVertex begin = vertices.get(0);
+                StrokeVertex end = vertices.get(vertices.size() - 1);
+                if (begin.getIncoming() != null) {
+                    frozen[t].add(begin.getIncoming());
+                }
+                if (end.getOutgoing() != null) {
+                    frozen[t].add(end.getOutgoing());
+                }
+                runs[t].add(new Stroke(vertices, false));
+                arcs[t] += vertices.size() - 1;
+            }
+        }
+
+        // simplify the tiles
+        List<Future<?>> tasks = new ArrayList();
+        for (int t = 0; t < n; t++) {
+            if (runs[t].isEmpty()) {
+                continue;
+            }
+
+            Rectangle region = grid.region(t);
+            List<StrokeArc> obstacles = new ArrayList();
+            for (StrokeArc arc : borderarcs) {
+                Rectangle box = FullCircleArc.boundingBox(arc.toGeometry());
+                if (box.getLeft() <= region.getRight() && region.getLeft() <= box.getRight()
+                        && box.getBottom() <= region.getTop() && region.getBottom() <= box.getTop()) {
+                    obstacles.add(arc);
+                }
+            }
+
+            int target = (int) Math.ceil(complexity * (double) arcs[t] / total);
+            Tile tile = new Tile(region, runs[t], frozen[t], obstacles, target);
+
+            tasks.add(pool.submit(() -> {
+                solver.solve(tile, bb, frechet);
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+
+        // stitch the strokes back together
+        for (int t = 0; t < n; t++) {
+            for (Stroke run : runs[t]) {
+                run.release();
+            }
+        }
+        for (Stroke s : stroked.getStrokes()) {
+            if (wholecircles.containsKey(s)) {
+                s.resetVertices(new ArrayList(wholecircles.get(s).getVertices()));
+            } else if (anchors.containsKey(s)) {
+                StrokeVertex anchor = anchors.get(s);
+                List<StrokeVertex> vertices = new ArrayList();
+                vertices.add(anchor);
+                StrokeVertex sv = anchor;
+                while (sv.getOutgoing() != null) {
+                    sv = sv.getNext();
+                    if (sv == anchor) {
+                        break;
+                    }
+                    vertices.add(sv);
+                }
+                s.resetVertices(vertices);
+            }
+        }
+        return true;
+    }
+
+    private static class Grid {
+
+        final int nx, ny;
+        final double left, bottom, width, height;
+
+        Grid(Rectangle bb, int tiles, boolean shifted) {
+            width = Math.max(bb.width() / tiles, DoubleUtil.EPS);
+            height = Math.max(bb.height() / tiles, DoubleUtil.EPS);
+            nx = shifted ? tiles + 1 : tiles;
+            ny = shifted ? tiles + 1 : tiles;
+            left = shifted ? bb.getLeft() - width / 2.0 : bb.getLeft();
+            bottom = shifted ? bb.getBottom() - height / 2.0 : bb.getBottom();
+        }
+
+        int count() {
+            return nx * ny;
+        }
+
+        int tile(double x, double y) {
+            int i = Math.max(0, Math.min(nx - 1, (int) Math.floor((x - left) / width)));
+            int j = Math.max(0, Math.min(ny - 1, (int) Math.floor((y - bottom) / height)));
+            return i + nx * j;
+        }
+
+        // strictly inside the tile, such that interior arcs of different tiles cannot touch
+        Rectangle region(int t) {
+            int i = t % nx;
+            int j = t / nx;
+            return new Rectangle(left + i * width + DoubleUtil.EPS, left + (i + 1) * width - DoubleUtil.EPS,
+                    bottom + j * height + DoubleUtil.EPS, bottom + (j + 1) * height - DoubleUtil.EPS);
+        }
+
+        int interiorTile(StrokeArc arc) {
+            if (!arc.getVirtuals().isEmpty() || arc.getStart().getCross() != null || arc.getEnd().getCross() != null) {
+                return -1;
+            }
+
+            double[] coords = arc.getOriginalCoordinates();
+            int t = tile(coords[0], coords[1]);
+            Rectangle region = region(t);
+            for (int i = 0; i < coords.length; i += 2) {
+                if (coords[i] < region.getLeft() || coords[i] > region.getRight()
+                        || coords[i + 1] < region.getBottom() || coords[i + 1] > region.getTop()) {
+                    return -1;
+                }
+            }
+
+            Rectangle box = FullCircleArc.boundingBox(arc.toGeometry());
+            if (box.getLeft() < region.getLeft() || box.getRight() > region.getRight()
+                    || box.getBottom() < region.getBottom() || box.getTop() > region.getTop()) {
+                return -1;
+            }
+            return t;
+        }
+    }
+}
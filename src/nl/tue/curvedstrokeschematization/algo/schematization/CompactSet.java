@@ -0,0 +1,139 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021   
+ * Developed by 
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl) 
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ * 
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.schematization;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Small set for the interactions of an operation. Most of these
+ * sets are empty or hold one or two arcs, so elements are kept in an inline
+ * array that is only allocated on the first insertion and turned into a
+ * HashSet once it exceeds a few elements.
+ */
+class CompactSet<T> implements Iterable<T> {
+
+    private static final int INLINE_LIMIT = 8;
+
+    private Object[] items = null;
+    private int size = 0;
+    private Set<T> set = null;
+
+    public CompactSet<T> copy() {
+        CompactSet<T> copy = new CompactSet();
+        if (set != null) {
+            copy.set = new HashSet(set);
+        } else if (items != null) {
+            copy.items = items.clone();
+            copy.size = size;
+        }
+        return copy;
+    }
+
+    public boolean add(T item) {
+        if (set != null) {
+            return set.add(item);
+        }
+        if (indexOf(item) >= 0) {
+            return false;
+        }
+        if (items == null) {
+            items = new Object[2];
+        } else if (size == items.length) {
+            if (size >= INLINE_LIMIT) {
+                set = new HashSet();
+                for (int i = 0; i < size; i++) {
+                    set.add((T) items[i]);
+                }
+                items = null;
+                size = 0;
+                return set.add(item);
+            }
+            Object[] grown = new Object[2 * size];
+            System.arraycopy(items, 0, grown, 0, size);
+            items = grown;
+        }
+        items[size++] = item;
+        return true;
+    }
+
+    public boolean remove(Object item) {
+        if (set != null) {
+            return set.remove(item);
+        }
+        int index = indexOf(item);
+        if (index < 0) {
+            return false;
+        }
+        size--;
+        System.arraycopy(items, index + 1, items, index, size - index);
+        items[size] = null;
+        return true;
+    }
+
+    public boolean contains(Object item) {
+        if (set != null) {
+            return set.contains(item);
+        }
+        return indexOf(item) >= 0;
+    }
+
+    public int size() {
+        return set != null ? set.size() : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        items = null;
+        size = 0;
+        set = null;
+    }
+
+    private int indexOf(Object item) {
+        for (int i = 0; i < size; i++) {
+            if (items[i].equals(item)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        if (set != null) {
+            return set.iterator();
+        }
+        if (size == 0) {
+            return Collections.emptyIterator();
+        }
+        return new Iterator<T>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public T next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return (T) items[index++];
+            }
+        };
+    }
+}
@@ -19,6 +19,7 @@ import nl.tue.geometrycore.geometry.curved.Circle;
 import nl.tue.geometrycore.geometry.curved.CircularArc;
 import nl.tue.geometrycore.geometry.linear.LineSegment;
 import nl.tue.geometrycore.geometry.linear.PolyLine;
+import nl.tue.geometrycore.geometry.linear.Rectangle;
 import nl.tue.geometrycore.util.DoubleUtil;
 
 /**
@@ -179,6 +180,30 @@ public class FullCircleArc extends CircularArc {
         }
     }
 
+    public static Rectangle boundingBox(CircularArc arc) {
+        Rectangle box = new Rectangle();
+        box.include(arc.getStart());
+        box.include(arc.getEnd());
+        if (arc.getCenter() == null) {
+            return box;
+        }
+
+        // include the extreme points of the circle that lie on the arc
+        Vector center = arc.getCenter();
+        double r = arc.radius();
+        double central = arc.centralAngle();
+        double start = Math.atan2(arc.getStart().getY() - center.getY(), arc.getStart().getX() - center.getX());
+        for (int k = 0; k < 4; k++) {
+            double angle = k * Math.PI / 2.0;
+            double sweep = central >= 0 ? angle - start : start - angle;
+            sweep = sweep - 2.0 * Math.PI * Math.floor(sweep / (2.0 * Math.PI));
+            if (arc instanceof FullCircleArc || sweep <= Math.abs(central)) {
+                box.include(new Vector(center.getX() + r * Math.cos(angle), center.getY() + r * Math.sin(angle)));
+            }
+        }
+        return box;
+    }
+
     public static List<BaseGeometry> intersect(BaseGeometry A, BaseGeometry B, boolean closed) {
         List<BaseGeometry> is;
         if (A instanceof FullCircleArc && B instanceof FullCircleArc) {
@@ -9,8 +9,12 @@
  */
 package nl.tue.curvedstrokeschematization.algo.schematization;
 
+import nl.tue.curvedstrokeschematization.algo.CurveSimplification;
 import nl.tue.curvedstrokeschematization.algo.frechetdistance.FrechetDistance;
+import nl.tue.curvedstrokeschematization.algo.store.NetworkHistory;
 import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.StepPublisher;
+import nl.tue.curvedstrokeschematization.algo.store.StepReplay;
 import nl.tue.curvedstrokeschematization.data.Triple;
 import nl.tue.curvedstrokeschematization.data.metro.MetroConnection;
 import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
@@ -21,9 +25,12 @@ import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
 import java.awt.Color;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -61,14 +68,37 @@ public class IterativeSchematization {
     private double maxcrossdist;
     private double straightreduc;
     private int numCandidates;
+    // proxy curves for the cost evaluation (disabled if 0)
+    private double proxytolerancefrac = 0;
+    // bound on the ratio of the computed distance to the euclidean one
+    private double proxyapproximation = 1;
+    // box whose diagonal scales the distances (null: that of the network)
+    private Rectangle referencebox = null;
+    // restriction to a tile: operations stay within the region and do not touch frozen arcs,
+    // obstacles are arcs outside the network that are checked for intersections
+    private Rectangle region = null;
+    private Set<StrokeArc> frozen = null;
+    private List<StrokeArc> obstacles = null;
+    private double proxytolerance;
     private final Map<StrokeVertex, List<VertexOperation>> vertexoperations;
-    private final SchematizationStore store;
+    private SchematizationStore store;
+    private NetworkHistory history = null;
+    private StepPublisher publisher = null;
+    // the inverses of the last performed steps and of the undone steps, newest first
+    private int undolimit = 0;
+    private final Deque<StepInverse> performed;
+    private final Deque<StepInverse> undone;
+    // the inverse of the step being performed
+    private StepInverse inverse = null;
+    // the history, store and publisher as observers of the steps, set at init
+    private final List<StepListener> listeners = new ArrayList();
     private int complexity;
+    // best operation of the current state, if already determined
+    private Operation nextbest = null;
     private static boolean debug = false;
     private static IPEWriter debuggeom = null;
     public static Circle debugregion = null;
-    public static boolean abort = false;
-    private static String debugindent = "";
+    private static final ThreadLocal<String> debugindent = ThreadLocal.withInitial(() -> "");
 
     public static void startDebugGeometry() {
         if (debug && debuggeom == null) {
@@ -99,16 +129,17 @@ public class IterativeSchematization {
     }
 
     public static void debugIndent() {
-        debugindent += "  ";
+        debugindent.set(debugindent.get() + "  ");
     }
 
     public static void debugDedent() {
-        debugindent = debugindent.substring(2);
+        debugindent.set(debugindent.get().substring(2));
     }
 
     public static void debug(String s) {
         if (debug) {
-            System.out.println(debugindent + s.replaceAll("\n", "\n" + debugindent));
+            String indent = debugindent.get();
+            System.out.println(indent + s.replaceAll("\n", "\n" + indent));
         }
     }
 
@@ -124,8 +155,18 @@ public class IterativeSchematization {
         return store;
     }
 
+    /**
+     * Replaces the store, e.g. by a compact one; takes effect at the next
+     * call to init.
+     */
+    public void setStore(SchematizationStore store) {
+        this.store = store;
+    }
+
     public IterativeSchematization(boolean allowhighdegree, boolean useStore, double maxcrossdistfrac, int anglesteps, int numCandidates, double straightreduc, FrechetDistance fd) {
         vertexoperations = new HashMap();
+        performed = new ArrayDeque();
+        undone = new ArrayDeque();
         this.numCandidates = numCandidates;
         this.FD = fd;
         this.maxcrossdistfrac = maxcrossdistfrac;
@@ -151,24 +192,150 @@ public class IterativeSchematization {
         //System.out.println(angles.size());
     }
 
+    /**
+     * Evaluates candidate costs on a simplified proxy of the original curve,
+     * whose Frechet distance to the original is at most the given fraction of
+     * the bounding box diagonal. The approximation factor is that of the
+     * Frechet distance computation, by which the proxy error may grow.
+     * Candidates are then evaluated exactly in order of their lower bounds
+     * until no remaining one can be among the best, such that all kept
+     * candidates have exact costs. Call before init.
+     */
+    public void setProxyTolerance(double proxytolerancefrac, double approximation) {
+        this.proxytolerancefrac = proxytolerancefrac;
+        this.proxyapproximation = approximation;
+    }
+
+    public void setReferenceBox(Rectangle referencebox) {
+        this.referencebox = referencebox;
+    }
+
+    /**
+     * Records the versions of the network from the next call to init onwards.
+     */
+    public void setHistory(NetworkHistory history) {
+        this.history = history;
+    }
+
+    public NetworkHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Publishes the steps from the next call to init onwards.
+     */
+    public void setPublisher(StepPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    public StepPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Keeps the inverses of up to the given number of steps, such that they
+     * can be undone by undoStep; 0 (the default) disables this. An inverse
+     * takes memory proportional to the changes of its step. Steps cannot be
+     * undone while they are published.
+     */
+    public void setUndoLimit(int undolimit) {
+        this.undolimit = undolimit;
+        while (performed.size() > undolimit) {
+            performed.removeLast();
+        }
+    }
+
+    public boolean canUndo() {
+        return !performed.isEmpty() && publisher == null;
+    }
+
+    public boolean canRedo() {
+        return !undone.isEmpty() && publisher == null;
+    }
+
+    /**
+     * Restores the state before the last step, including the operations, the
+     * store and the history, in time proportional to the changes of the step.
+     * Returns false if there is no step to undo.
+     */
+    public boolean undoStep() {
+        if (publisher != null) {
+            throw new IllegalStateException("Steps are being published");
+        }
+        StepInverse step = performed.poll();
+        if (step == null) {
+            return false;
+        }
+        step.undo(vertexoperations, store);
+        if (history != null) {
+            history.truncate(history.getVersion() - 1);
+        }
+        complexity = step.before;
+        // the step that was undone is the best operation again
+        nextbest = step.operation;
+        undone.push(step);
+        return true;
+    }
+
+    /**
+     * Performs the last undone step again, restoring the state after it.
+     * Returns false if there is no step to redo; performing a new step
+     * discards the undone steps.
+     */
+    public boolean redoStep() {
+        if (publisher != null) {
+            throw new IllegalStateException("Steps are being published");
+        }
+        StepInverse step = undone.poll();
+        if (step == null) {
+            return false;
+        }
+        step.redo(vertexoperations, store);
+        if (history != null) {
+            for (StrokeVertex sv : step.getMoved()) {
+                history.recordMove(sv);
+            }
+            for (int i = 0; i < step.getMids().size(); i++) {
+                history.recordReplacement(step.getMids().get(i), step.getNewArcs().get(i));
+            }
+            history.commit();
+        }
+        complexity = step.after;
+        nextbest = null;
+        performed.push(step);
+        return true;
+    }
+
+    public void setRegion(Rectangle region, Set<StrokeArc> frozen, List<StrokeArc> obstacles) {
+        this.region = region;
+        this.frozen = frozen;
+        this.obstacles = obstacles;
+    }
+
     public boolean init(StrokeNetwork map) {
 
         // sanity check
         for (StrokeVertex sv : map.getVertices()) {
-            if (sv.getOutgoing() != null) {
+            if (sv.getOutgoing() != null && !isFrozen(sv.getOutgoing())) {
                 StrokeVertex next = sv.getNext();
                 assert sv.getStroke() == next.getStroke();
             }
-            if (sv.getIncoming() != null) {
+            if (sv.getIncoming() != null && !isFrozen(sv.getIncoming())) {
                 StrokeVertex prev = sv.getPrevious();
                 assert sv.getStroke() == prev.getStroke();
             }
         }
 
-        abort = false;
+        nextbest = null;
+        performed.clear();
+        undone.clear();
 
         network = map;
 
+        if (history != null) {
+            history.initialize(network);
+        }
+
         if (store != null) {
             store.initialize(network);
             complexity = store.getMaximumComplexity();
@@ -179,12 +346,66 @@ public class IterativeSchematization {
             }
         }
 
-        Rectangle bb = new Rectangle();
-        for (StrokeVertex sv : network.getVertices()) {
-            bb.include(sv);
+        if (publisher != null) {
+            publisher.initialize(network, complexity);
+        }
+
+        initListeners();
+        return initOperations();
+    }
+
+    /**
+     * Continues a run of which the first steps were replayed, e.g. from
+     * checkpoints, instead of calling init. The network, store and complexity
+     * are taken from the replay, and the publisher continues its numbering;
+     * the operations are recomputed for the replayed network.
+     */
+    public boolean resume(StepReplay replay) {
+        nextbest = null;
+        performed.clear();
+        undone.clear();
+
+        network = replay.getNetwork();
+        store = replay.getStore();
+        complexity = replay.getComplexity();
+
+        if (history != null) {
+            history.initialize(network);
+        }
+
+        if (publisher != null) {
+            publisher.resume(replay);
+        }
+
+        initListeners();
+        return initOperations();
+    }
+
+    private void initListeners() {
+        listeners.clear();
+        if (history != null) {
+            listeners.add(new StepListener.History(history));
+        }
+        if (store != null) {
+            listeners.add(new StepListener.Store(store));
+        }
+        if (publisher != null) {
+            listeners.add(new StepListener.Publisher(publisher));
+        }
+    }
+
+    private boolean initOperations() {
+
+        Rectangle bb = referencebox;
+        if (bb == null) {
+            bb = new Rectangle();
+            for (StrokeVertex sv : network.getVertices()) {
+                bb.include(sv);
+            }
         }
 
         maxcrossdist = bb.diagonal() * maxcrossdistfrac;
+        proxytolerance = bb.diagonal() * proxytolerancefrac;
 
         vertexoperations.clear();
 
@@ -209,8 +430,7 @@ public class IterativeSchematization {
         return hasAdmissible;
     }
 
-    private double computeDistance(CircularArc arc, List<Vector> curve) {
-
+    private double computeDistance(CircularArc arc, Vector[] curve) {
         double signedCentral = arc.centralAngle();
         int extra = arc.getCenter() == null ? 0 : (int) Math.ceil((80.0 / Math.PI) * Math.abs(signedCentral));
 
@@ -223,7 +443,7 @@ public class IterativeSchematization {
         }
         sampled[extra + 1] = arc.getEnd();
 
-        double fd = FD.computeDistance(curve.toArray(new Vector[curve.size()]), sampled);
+        double fd = FD.computeDistance(curve, sampled);
         if (arc.getCenter() == null) {
             fd = fd * straightreduc;
         }
@@ -238,7 +458,8 @@ public class IterativeSchematization {
         List<VertexOperation> ops = new ArrayList();
 
         //if (deg == 2 vert on respective stroke)
-        if (sv.getIncoming() != null && sv.getOutgoing() != null && (sv.getCross() == null || allowhighdegree)) {
+        if (sv.getIncoming() != null && sv.getOutgoing() != null && (sv.getCross() == null || allowhighdegree)
+                && !isFrozen(sv.getIncoming()) && !isFrozen(sv.getOutgoing())) {
             // replacement may be possible
 
             //Make best 3 candidates (no topo check)
@@ -248,7 +469,7 @@ public class IterativeSchematization {
             // make operations and check their topology
             if (candidates != null) {
                 for (Pair<CircularArc, Double> candidate : candidates) {
-                    if (candidate == null) {
+                    if (candidate == null || !insideRegion(candidate.getFirst())) {
                         continue;
                     }
                     VertexOperation op = new VertexOperation();
@@ -267,7 +488,23 @@ public class IterativeSchematization {
         return ops;
     }
 
+    private boolean isFrozen(StrokeArc arc) {
+        return frozen != null && frozen.contains(arc);
+    }
+
+    private boolean insideRegion(CircularArc arc) {
+        if (region == null) {
+            return true;
+        }
+        Rectangle box = FullCircleArc.boundingBox(arc);
+        return region.getLeft() <= box.getLeft() && box.getRight() <= region.getRight()
+                && region.getBottom() <= box.getBottom() && box.getTop() <= region.getTop();
+    }
+
     private void recheckTopology(VertexOperation op) {
+        if (inverse != null) {
+            inverse.touch(op);
+        }
         op.clear();
 
         setDebug(op.vertex);
@@ -292,6 +529,11 @@ public class IterativeSchematization {
                 checkArcIntoOperation(arc, op);
             }
         }
+        if (obstacles != null) {
+            for (StrokeArc arc : obstacles) {
+                checkArcIntoOperation(arc, op);
+            }
+        }
 
         debug("post arc check blocked? " + op.isBlocked());
 
@@ -432,7 +674,7 @@ public class IterativeSchematization {
         if (!orderCorrect(op, sc, inReplace, outReplace, replaceThrough)) {
             // add arcs
 
-            op.crossBlocked.add(sc);
+            op.blockCross(sc);
         }
     }
 
@@ -662,6 +904,10 @@ public class IterativeSchematization {
     private boolean uncheckArcFromOperation(StrokeArc arc, VertexOperation op) {
         boolean recheck = false;
 
+        if (inverse != null && op.involves(arc)) {
+            inverse.touch(op);
+        }
+
         if (op.startExtension.remove(arc)) {
             recheck = true;
         }
@@ -672,11 +918,11 @@ public class IterativeSchematization {
             recheck = true;
         }
 
-        if (op.relatedArcBlocked.remove(arc)) {
+        if (op.unblockRelated(arc)) {
             recheck = true;
         }
 
-        op.unrelatedArcBlocked.remove(arc);
+        op.unblockUnrelated(arc);
 
         return recheck;
     }
@@ -697,7 +943,7 @@ public class IterativeSchematization {
             extarc.setEnd(startExt ? arc.getStart().clone() : ext.clone());
             // extarc is the extended part, should not intersect with anything!
 
-            op.extensions.add(extarc);
+            op.addExtension(extarc);
 
             for (Stroke stroke : network.getStrokes()) {
                 for (int i = 0; i < stroke.getArcCount(); i++) {
@@ -706,18 +952,32 @@ public class IterativeSchematization {
                         if (!FullCircleArc.intersect(extarc, arcOther.toGeometry(), false).isEmpty()) {
                             debug("Intersection something:");
                             debugGeometry(Color.magenta, extarc, arcOther.toGeometry());
-                            op.relatedArcBlocked.add(arcOther);
+                            op.blockRelated(arcOther);
                             return true;
                         }
                     }
                 }
             }
+            if (obstacles != null) {
+                for (StrokeArc arcOther : obstacles) {
+                    if (arcOther != arc && !exceptions.contains(arcOther) && !FullCircleArc.intersect(extarc, arcOther.toGeometry(), false).isEmpty()) {
+                        debug("Intersection obstacle:");
+                        debugGeometry(Color.magenta, extarc, arcOther.toGeometry());
+                        op.blockRelated(arcOther);
+                        return true;
+                    }
+                }
+            }
+            if (!insideRegion(extarc)) {
+                op.blockRelated(arc);
+                return true;
+            }
 
-            for (CircularArc oa : op.extensions) {
+            for (CircularArc oa : op.getExtensions()) {
                 if (oa != extarc && !FullCircleArc.intersect(extarc, oa, false).isEmpty()) {
                     debug("Intersect other extension:");
                     debugGeometry(Color.magenta, extarc, oa);
-                    op.relatedArcBlocked.add(arc);
+                    op.blockRelated(arc);
                     return true;
                 }
             }
@@ -751,6 +1011,10 @@ public class IterativeSchematization {
 
         debug("vts: " + vtStart + " - " + vtEnd);
 
+        if (inverse != null && (!arcCrossOp.isEmpty() || vtStart != VirtualType.NONE || vtEnd != VirtualType.NONE)) {
+            inverse.touch(op);
+        }
+
         int virtuals = 0;
         if (vtStart != VirtualType.NONE) {
             if (vtStart == VirtualType.EXTENSIBLE) {
@@ -769,14 +1033,14 @@ public class IterativeSchematization {
             // cannot have more than 2 intersections between circles
             debug("block on virtuals");
             debugGeometry(Color.cyan, arc.toGeometry());
-            op.relatedArcBlocked.add(arc);
+            op.blockRelated(arc);
         } else if (vtStart == VirtualType.EXTENSIBLE && vtEnd == VirtualType.EXTENSIBLE) {
 
             Vector[] ext = findDoubleExtension(arc, op);
             if (ext == null) {
                 debug("block on double extension");
                 debugGeometry(Color.cyan, arc.toGeometry());
-                op.relatedArcBlocked.add(arc);
+                op.blockRelated(arc);
             } else {
                 //op.extensions.add(CircularArc.fromStartToEnd(arc.getStart(), ext[0], arc.getCenter(), !arc.isClockwise()));
                 //op.extensions.add(CircularArc.fromStartToEnd(arc.getEnd(), ext[1], arc.getCenter(), arc.isClockwise()));
@@ -798,7 +1062,7 @@ public class IterativeSchematization {
             if (ext == null) {
                 debug("block on start extension");
                 debugGeometry(Color.cyan, arc.toGeometry());
-                op.relatedArcBlocked.add(arc);
+                op.blockRelated(arc);
             } else {
                 //op.extensions.add(CircularArc.fromStartToEnd(arc.getStart(), ext, arc.getCenter(), !arc.isClockwise()));
                 if (checkArcExtension(arc, op, ext, true)) {
@@ -815,7 +1079,7 @@ public class IterativeSchematization {
             if (ext == null) {
                 debug("block on end extension");
                 debugGeometry(Color.cyan, arc.toGeometry());
-                op.relatedArcBlocked.add(arc);
+                op.blockRelated(arc);
             } else {
                 //op.extensions.add(CircularArc.fromStartToEnd(arc.getEnd(), ext, arc.getCenter(), arc.isClockwise()));
                 if (checkArcExtension(arc, op, ext, false)) {
@@ -837,7 +1101,7 @@ public class IterativeSchematization {
             if (ints.size() != arcCrossOp.size()) {
                 debug("block on virtual vs intersections: " + ints.size() + " vs " + arcCrossOp.size());
                 debugGeometry(Color.cyan, arc.toGeometry());
-                op.relatedArcBlocked.add(arc);
+                op.blockRelated(arc);
             } else {
 
                 // sort intersections along arc
@@ -855,7 +1119,7 @@ public class IterativeSchematization {
                     if (!cross.isMovable() && !closeEnough(cross, intersection)) {
                         debug("block on not close enough");
                         debugGeometry(Color.cyan, arc.toGeometry());
-                        op.relatedArcBlocked.add(arc);
+                        op.blockRelated(arc);
                         break;
                     }
                 }
@@ -868,7 +1132,10 @@ public class IterativeSchematization {
             if (!FullCircleArc.intersect(arc.toGeometry(), op.replacement, false).isEmpty()) {
                 debug("block on unrelated intersection");
                 debugGeometry(Color.cyan, arc.toGeometry());
-                op.unrelatedArcBlocked.add(arc);
+                if (inverse != null) {
+                    inverse.touch(op);
+                }
+                op.blockUnrelated(arc);
             }
         }
 
@@ -1216,7 +1483,11 @@ public class IterativeSchematization {
     }
 
     // returns true if original contains a point within distance tobeat of the point along arc
-    private boolean precheck(CircularArc arc, double fraction, List<Vector> original, double tobeat) {
+    private boolean precheck(CircularArc arc, double fraction, Vector[] original, double tobeat, boolean proxied) {
+        if (proxied) {
+            // the cost to beat is only known up to the proxy error
+            tobeat += proxyapproximation * proxytolerance * Math.max(1, straightreduc);
+        }
         Vector point = arc.getPointAt(fraction);
         for (Vector v : original) {
             if (v.distanceTo(point) < tobeat) {
@@ -1227,7 +1498,9 @@ public class IterativeSchematization {
         return false;
     }
 
-    private void makeAngleCandidates(StrokeVertex start, StrokeVertex end, Pair<CircularArc, Double>[] best, List<Vector> original) {
+    // candidates are measured against curve, which is either the original or its proxy;
+    // with a proxy, they are also collected in pool to be resolved exactly afterwards
+    private void makeAngleCandidates(StrokeVertex start, StrokeVertex end, Pair<CircularArc, Double>[] best, Vector[] original, Vector[] curve, List<Pair<CircularArc, Double>> pool) {
 
         for (double angle : angles) {
 
@@ -1236,26 +1509,26 @@ public class IterativeSchematization {
             if (best[best.length - 1] != null) {
                 double tobeat = best[best.length - 1].getSecond();
                 // do a precheck
-                if (!precheck(arc, 0.5, original, tobeat)) {
+                if (!precheck(arc, 0.5, original, tobeat, pool != null)) {
                     continue;
                 }
             }
 
-            double dist = computeDistance(arc, original);
+            double dist = computeDistance(arc, curve);
 
-            insertSorted(best, arc, dist);
+            insertSorted(best, pool, arc, dist);
         }
     }
 
-    private void makeCrossCandidates(StrokeCross cross, StrokeVertex start, StrokeVertex end, Pair<CircularArc, Double>[] best, List<Vector> original) {
+    private void makeCrossCandidates(StrokeCross cross, StrokeVertex start, StrokeVertex end, Pair<CircularArc, Double>[] best, Vector[] curve, List<Pair<CircularArc, Double>> pool) {
         Vector center = cross.getCenterDisc();
 
         // through center
         CircularArc arc_center = CircularArc.byThroughPoint(start.clone(), center, end.clone());
         debugGeometry(Color.blue, arc_center, start, center, end);
-        double dist_center = computeDistance(arc_center, original);
+        double dist_center = computeDistance(arc_center, curve);
 
-        insertSorted(best, arc_center, dist_center);
+        insertSorted(best, pool, arc_center, dist_center);
 
         // min/max
         if (center.distanceTo(start) > maxcrossdist && center.distanceTo(end) > maxcrossdist) {
@@ -1271,13 +1544,13 @@ public class IterativeSchematization {
             assert is.size() == 2;
 
             CircularArc arc_1 = CircularArc.byThroughPoint(start.clone(), (Vector) is.get(0), end.clone());
-            double dist_1 = computeDistance(arc_1, original);
-            insertSorted(best, arc_1, dist_1);
+            double dist_1 = computeDistance(arc_1, curve);
+            insertSorted(best, pool, arc_1, dist_1);
             debugGeometry(Color.red, arc_1, start, (Vector) is.get(0), end);
 
             CircularArc arc_2 = CircularArc.byThroughPoint(start.clone(), (Vector) is.get(1), end.clone());
-            double dist_2 = computeDistance(arc_2, original);
-            insertSorted(best, arc_2, dist_2);
+            double dist_2 = computeDistance(arc_2, curve);
+            insertSorted(best, pool, arc_2, dist_2);
             debugGeometry(Color.yellow, arc_2, start, (Vector) is.get(1), end);
         }
     }
@@ -1295,16 +1568,26 @@ public class IterativeSchematization {
         }
 
         Pair<CircularArc, Double>[] best = new Pair[numCandidates];
-        List<Vector> original = getOriginalStations(sv);
+        Vector[] original = getOriginalCurve(sv);
+
+        Vector[] curve = original;
+        List<Pair<CircularArc, Double>> pool = null;
+        if (proxytolerance > 0) {
+            Vector[] proxy = CurveSimplification.simplify(original, proxytolerance);
+            if (proxy.length < original.length) {
+                curve = proxy;
+                pool = new ArrayList();
+            }
+        }
 
         if (start == end) {
             // make a circle
             debug("circle candidate");
-            makeCircleCandidates(sv, start, best, original);
+            makeCircleCandidates(sv, start, best, original, curve, pool);
 
         } else if (sv.getCross() != null && !sv.getCross().isExtensible()) {
             debug("cross candidates");
-            makeCrossCandidates(sv.getCross(), start, end, best, original);
+            makeCrossCandidates(sv.getCross(), start, end, best, curve, pool);
         } else {
 
             debug("general candidates");
@@ -1315,7 +1598,7 @@ public class IterativeSchematization {
                 if (!sc.isExtensible() && !sc.isMovable()) {
                     crossed = true;
                     debug("crossed in");
-                    makeCrossCandidates(sc, start, end, best, original);
+                    makeCrossCandidates(sc, start, end, best, curve, pool);
                 }
             }
             if (!crossed) {
@@ -1323,20 +1606,50 @@ public class IterativeSchematization {
                     if (!sc.isExtensible() && !sc.isMovable()) {
                         crossed = true;
                         debug("crossed out");
-                        makeCrossCandidates(sc, start, end, best, original);
+                        makeCrossCandidates(sc, start, end, best, curve, pool);
                     }
                 }
             }
             if (!crossed) {
                 debug("angles");
-                makeAngleCandidates(start, end, best, original);
+                makeAngleCandidates(start, end, best, original, curve, pool);
             }
         }
 
+        if (pool != null) {
+            resolveProxyCandidates(best, original, pool);
+        }
+
         return best;
     }
 
-    private void makeCircleCandidates(StrokeVertex operand, StrokeVertex other, Pair<CircularArc, Double>[] best, List<Vector> original) {
+    private void resolveProxyCandidates(Pair<CircularArc, Double>[] best, Vector[] original, List<Pair<CircularArc, Double>> pool) {
+        // the exact cost is at least the proxy cost minus the proxy error, as measured by the approximate distance
+        int n = pool.size();
+        double[] lower = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            double err = proxyapproximation * (pool.get(i).getFirst().getCenter() == null ? proxytolerance * straightreduc : proxytolerance);
+            lower[i] = pool.get(i).getSecond() - err;
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> lower[i]));
+
+        for (int i = 0; i < best.length; i++) {
+            best[i] = null;
+        }
+
+        // evaluate exactly by increasing lower bound, until no remaining candidate can be among the best
+        for (int i : order) {
+            if (best[best.length - 1] != null && lower[i] >= best[best.length - 1].getSecond()) {
+                break;
+            }
+            CircularArc arc = pool.get(i).getFirst();
+            insertSorted(best, null, arc, computeDistance(arc, original));
+        }
+    }
+
+    private void makeCircleCandidates(StrokeVertex operand, StrokeVertex other, Pair<CircularArc, Double>[] best, Vector[] original, Vector[] curve, List<Pair<CircularArc, Double>> pool) {
         // constraints: center points of any crosses along either arcs
         List<Vector> constraints = new ArrayList();
         if (other.isCross()) {
@@ -1389,14 +1702,14 @@ public class IterativeSchematization {
                 if (best[best.length - 1] != null) {
                     double tobeat = best[best.length - 1].getSecond();
                     // do a precheck
-                    if (!precheck(fca, 0.5, original, tobeat)) {
+                    if (!precheck(fca, 0.5, original, tobeat, pool != null)) {
                         continue;
                     }
                 }
 
-                double dist = computeDistance(fca, original);
+                double dist = computeDistance(fca, curve);
 
-                insertSorted(best, fca, dist);
+                insertSorted(best, pool, fca, dist);
             }
 
         } else {
@@ -1417,14 +1730,17 @@ public class IterativeSchematization {
                 }
             }
 
-            double dist = computeDistance(fca, original);
+            double dist = computeDistance(fca, curve);
 
-            insertSorted(best, fca, dist);
+            insertSorted(best, pool, fca, dist);
         }
 
     }
 
-    private void insertSorted(Pair<CircularArc, Double>[] best, CircularArc arc, double dist) {
+    private void insertSorted(Pair<CircularArc, Double>[] best, List<Pair<CircularArc, Double>> pool, CircularArc arc, double dist) {
+        if (pool != null) {
+            pool.add(new Pair(arc, dist));
+        }
         if (best[best.length - 1] == null || dist < best[best.length - 1].getSecond()) {
             best[best.length - 1] = new Pair(arc, dist);
 
@@ -1450,24 +1766,19 @@ public class IterativeSchematization {
         return CircularArc.fromStartTangent(start.clone(), tan, end.clone());
     }
 
-    public List<Vector> getOriginalStations(StrokeVertex sv) {
-        List<Vector> original = new ArrayList();
+    public Vector[] getOriginalCurve(StrokeVertex sv) {
+        double[] in = sv.getIncoming().getOriginalCoordinates();
+        double[] out = sv.getOutgoing().getOriginalCoordinates();
 
-        MetroStation station = sv.getPrevious().getOriginal();
-        original.add(station);
-        for (MetroConnection connect : sv.getIncoming().getOriginaledges()) {
-            MetroStation next = connect.theOther(station);
-            original.add(next);
-            station = next;
+        // the vertex itself is shared by both arcs
+        Vector[] original = new Vector[(in.length + out.length) / 2 - 1];
+        int k = 0;
+        for (int i = 0; i < in.length; i += 2) {
+            original[k++] = new Vector(in[i], in[i + 1]);
         }
-
-        assert station == sv.getOriginal();
-        for (MetroConnection connect : sv.getOutgoing().getOriginaledges()) {
-            MetroStation next = connect.theOther(station);
-            original.add(next);
-            station = next;
+        for (int i = 2; i < out.length; i += 2) {
+            original[k++] = new Vector(out[i], out[i + 1]);
         }
-
         return original;
     }
 
@@ -1491,54 +1802,23 @@ public class IterativeSchematization {
 
     public boolean performStep(int complexity, double frechetthreshold) {
         // only perform if complexity isnt reached yet or if frechetthreshold isnt exceeded
-        if (abort) {
-            System.out.println("Algorithm is stuck, reinitialization required");
-            return false;
-        }
-
         if (this.complexity <= complexity) {
             System.out.println("Complexity reached");
             return false;
         }
 
         //printState("PRE OPERATION");
-        Operation best = null;
+        Operation best = nextbest != null ? nextbest : findBest();
+        nextbest = null;
 
-        if (debugregion != null) {
-            System.out.println("  ");
-            System.out.println("OPERATIONS");
-        }
-        for (Entry<StrokeVertex, List<VertexOperation>> vos : vertexoperations.entrySet()) {
-            setDebug(vos.getKey());
-            startDebugGeometry();
-            debug("" + vos.getKey());
-            //debugGeometry(Color.black, vos.getKey(), vos.getKey().getIncoming().toGeometry(), vos.getKey().getOutgoing().toGeometry());
-            for (VertexOperation vo : vos.getValue()) {
-                debug("> blocked: " + vo.isBlocked());
-                debug("  cost: " + vo.cost);
-                debug("  geom: " + vo.replacement);
-                debugGeometry(Color.red, vo.replacement);
-                if (!vo.isBlocked() && (best == null || vo.cost < best.cost)) {
-                    best = vo;
-                }
-            }
-            stopDebugGeometry();
-            setDebug(null);
-        }
-
-//        for (List<CrossOperation> cos : crossoperations.values()) {
-//            for (CrossOperation co : cos) {
-//                if (!co.isBlocked() && (best == null || co.cost < best.cost)) {
-//                    best = co;
-//                }
-//            }
-//        }
         if (best == null) {
             System.out.println("Algorithm stuck");
             return false;
         }
 
         if (best.cost > frechetthreshold) {
+            // kept, the next call starts from the same state
+            nextbest = best;
             System.out.println("Frechet threshold exceeded");
             return false;
         }
@@ -1565,12 +1845,55 @@ public class IterativeSchematization {
 //                }
 //            }//        }
         //printState("POST OPERATION");
-        if (abort) {
-            System.out.println("ALGORITHM ABORTED");
-            return false;
-        } else {
-            return true;
+        return true;
+    }
+
+    /**
+     * Returns the cost of the operation the next step would perform, or
+     * infinity if there is none. Lets a caller decide whether the next step
+     * would pass a threshold without performing it.
+     */
+    public double getNextCost() {
+        if (nextbest == null) {
+            nextbest = findBest();
         }
+        return nextbest == null ? Double.POSITIVE_INFINITY : nextbest.cost;
+    }
+
+    private Operation findBest() {
+        Operation best = null;
+
+        if (debugregion != null) {
+            System.out.println("  ");
+            System.out.println("OPERATIONS");
+        }
+        for (Entry<StrokeVertex, List<VertexOperation>> vos : vertexoperations.entrySet()) {
+            setDebug(vos.getKey());
+            startDebugGeometry();
+            debug("" + vos.getKey());
+            //debugGeometry(Color.black, vos.getKey(), vos.getKey().getIncoming().toGeometry(), vos.getKey().getOutgoing().toGeometry());
+            for (VertexOperation vo : vos.getValue()) {
+                debug("> blocked: " + vo.isBlocked());
+                debug("  cost: " + vo.cost);
+                debug("  geom: " + vo.replacement);
+                debugGeometry(Color.red, vo.replacement);
+                if (!vo.isBlocked() && (best == null || vo.cost < best.cost)) {
+                    best = vo;
+                }
+            }
+            stopDebugGeometry();
+            setDebug(null);
+        }
+
+//        for (List<CrossOperation> cos : crossoperations.values()) {
+//            for (CrossOperation co : cos) {
+//                if (!co.isBlocked() && (best == null || co.cost < best.cost)) {
+//                    best = co;
+//                }
+//            }
+//        }
+
+        return best;
     }
 
     private void perform(Operation operation) {
@@ -1684,9 +2007,21 @@ public class IterativeSchematization {
             }
         }
 
+        StepInverse record = undolimit > 0 && publisher == null
+                ? new StepInverse(operation, complexity, complexity - replacements.size()) : null;
+        inverse = record;
+        List<StepListener> notified = listeners;
+        if (record != null) {
+            notified = new ArrayList(listeners);
+            notified.add(record);
+        }
+
         // remove operations
         for (StrokeVertex sv : removeVertex) {
-            vertexoperations.remove(sv);
+            List<VertexOperation> ops = vertexoperations.remove(sv);
+            if (record != null && ops != null) {
+                record.removed(sv, ops);
+            }
         }
 
         // uncheck old geometry
@@ -1722,6 +2057,7 @@ public class IterativeSchematization {
 
             List<MetroConnection> jointoriginal = new ArrayList<MetroConnection>(from.getOutgoing().getOriginaledges());
             jointoriginal.addAll(to.getIncoming().getOriginaledges());
+            double[] jointcoords = StrokeArc.joinOriginalCoordinates(from.getOutgoing(), to.getIncoming());
 
             // find extensibles
             Set<Triple<StrokeArc, Vector, Vector>> extensibles = new HashSet();
@@ -1753,6 +2089,11 @@ public class IterativeSchematization {
             } else {
                 newarc = new StrokeArc(from, to, replacement.getSecond(), jointvirtual, jointoriginal);
             }
+            newarc.setOriginalCoordinates(jointcoords);
+
+            for (StepListener listener : notified) {
+                listener.replacing(mid, newarc, extensibles);
+            }
 
             from.setOutgoing(newarc);
             to.setIncoming(newarc);
@@ -1784,26 +2125,8 @@ public class IterativeSchematization {
             }
             mid.getStroke().getVertices().remove(mid);
 
-            // update store
-            if (store != null) {
-                if (mid.getCross() == null) {
-                    store.removeStation(complexity, operation.cost, mid);
-                } else {
-                    store.updateCross(complexity, operation.cost, mid.getCross());
-                }
-
-                for (StrokeCross sc : newarc.getVirtuals()) {
-                    if (sc != mid.getCross()) {
-                        store.updateCross(complexity, operation.cost, sc);
-                    }
-
-                }
-                store.replaceArc(complexity, operation.cost, midInc, midOut, newarc);
-
-                for (Triple<StrokeArc, Vector, Vector> exttrip : extensibles) {
-                    store.replaceArc(complexity, operation.cost, exttrip.getFirst(), null, exttrip.getFirst());
-                }
-
+            for (StepListener listener : notified) {
+                listener.replaced(complexity, operation.cost, mid, midInc, midOut, newarc, extensibles);
             }
         }
 
@@ -1820,9 +2143,28 @@ public class IterativeSchematization {
             recheckTopology(op);
         }
 
+        // the operations of the new vertices are dropped as a whole when undoing
+        inverse = null;
+
         // add operations
         for (StrokeVertex sv : addVertex) {
-            vertexoperations.put(sv, makeOperations(sv));
+            List<VertexOperation> ops = makeOperations(sv);
+            vertexoperations.put(sv, ops);
+            if (record != null) {
+                record.added(sv, ops);
+            }
+        }
+
+        for (StepListener listener : notified) {
+            listener.committed(complexity, operation.cost);
+        }
+
+        undone.clear();
+        if (record != null) {
+            performed.push(record);
+            if (performed.size() > undolimit) {
+                performed.removeLast();
+            }
         }
     }
 
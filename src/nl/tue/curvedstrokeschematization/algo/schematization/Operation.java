@@ -12,8 +12,8 @@ package nl.tue.curvedstrokeschematization.algo.schematization;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 import nl.tue.geometrycore.geometry.curved.CircularArc;
 
 /**
@@ -26,28 +26,125 @@ public class Operation {
     // cost
     protected double cost;
     // interactions
-    protected Set<StrokeArc> startExtension = new HashSet();
-    protected Set<StrokeArc> endExtension = new HashSet();
-    protected Set<StrokeArc> fixedCrosses = new HashSet();
-    protected ArrayList<CircularArc> extensions = new ArrayList<CircularArc>();
+    protected CompactSet<StrokeArc> startExtension = new CompactSet();
+    protected CompactSet<StrokeArc> endExtension = new CompactSet();
+    protected CompactSet<StrokeArc> fixedCrosses = new CompactSet();
+    // allocated on the first extension, as most operations have none
+    private ArrayList<CircularArc> extensions = null;
     
     // topology verification
-    protected Set<StrokeArc> relatedArcBlocked = new HashSet();
-    protected Set<StrokeArc> unrelatedArcBlocked = new HashSet();
-    protected Set<StrokeCross> crossBlocked = new HashSet();
+    // NB: modify only via the block/unblock methods, to keep the counter in sync
+    protected CompactSet<StrokeArc> relatedArcBlocked = new CompactSet();
+    protected CompactSet<StrokeArc> unrelatedArcBlocked = new CompactSet();
+    protected CompactSet<StrokeCross> crossBlocked = new CompactSet();
+    // total size of the three sets above
+    private int blocked = 0;
 
     protected boolean isBlocked() {
-        return !relatedArcBlocked.isEmpty() || !unrelatedArcBlocked.isEmpty() ||!crossBlocked.isEmpty();
+        return blocked > 0;
+    }
+
+    protected void blockRelated(StrokeArc arc) {
+        if (relatedArcBlocked.add(arc)) {
+            blocked++;
+        }
+    }
+
+    protected boolean unblockRelated(StrokeArc arc) {
+        if (relatedArcBlocked.remove(arc)) {
+            blocked--;
+            return true;
+        }
+        return false;
+    }
+
+    protected void blockUnrelated(StrokeArc arc) {
+        if (unrelatedArcBlocked.add(arc)) {
+            blocked++;
+        }
+    }
+
+    protected boolean unblockUnrelated(StrokeArc arc) {
+        if (unrelatedArcBlocked.remove(arc)) {
+            blocked--;
+            return true;
+        }
+        return false;
+    }
+
+    protected void blockCross(StrokeCross sc) {
+        if (crossBlocked.add(sc)) {
+            blocked++;
+        }
+    }
+
+    protected void addExtension(CircularArc arc) {
+        if (extensions == null) {
+            extensions = new ArrayList(2);
+        }
+        extensions.add(arc);
+    }
+
+    protected List<CircularArc> getExtensions() {
+        return extensions == null ? Collections.<CircularArc>emptyList() : extensions;
+    }
+
+    // whether the arc occurs in the interactions, i.e. whether unchecking it changes them
+    protected boolean involves(StrokeArc arc) {
+        return startExtension.contains(arc) || endExtension.contains(arc) || fixedCrosses.contains(arc)
+                || relatedArcBlocked.contains(arc) || unrelatedArcBlocked.contains(arc);
+    }
+
+    // an operation holding a copy of the interactions, to swap them back when a step is undone
+    protected Operation copyInteractions() {
+        Operation copy = new Operation();
+        copy.startExtension = startExtension.copy();
+        copy.endExtension = endExtension.copy();
+        copy.fixedCrosses = fixedCrosses.copy();
+        copy.extensions = extensions == null ? null : new ArrayList(extensions);
+        copy.relatedArcBlocked = relatedArcBlocked.copy();
+        copy.unrelatedArcBlocked = unrelatedArcBlocked.copy();
+        copy.crossBlocked = crossBlocked.copy();
+        copy.blocked = blocked;
+        return copy;
+    }
+
+    protected void swapInteractions(Operation other) {
+        CompactSet<StrokeArc> arcs = startExtension;
+        startExtension = other.startExtension;
+        other.startExtension = arcs;
+        arcs = endExtension;
+        endExtension = other.endExtension;
+        other.endExtension = arcs;
+        arcs = fixedCrosses;
+        fixedCrosses = other.fixedCrosses;
+        other.fixedCrosses = arcs;
+        ArrayList<CircularArc> exts = extensions;
+        extensions = other.extensions;
+        other.extensions = exts;
+        arcs = relatedArcBlocked;
+        relatedArcBlocked = other.relatedArcBlocked;
+        other.relatedArcBlocked = arcs;
+        arcs = unrelatedArcBlocked;
+        unrelatedArcBlocked = other.unrelatedArcBlocked;
+        other.unrelatedArcBlocked = arcs;
+        CompactSet<StrokeCross> crosses = crossBlocked;
+        crossBlocked = other.crossBlocked;
+        other.crossBlocked = crosses;
+        int b = blocked;
+        blocked = other.blocked;
+        other.blocked = b;
     }
 
     protected void clear() {
         startExtension.clear();
         endExtension.clear();
         fixedCrosses.clear();
-        extensions.clear();
+        extensions = null;
         
         relatedArcBlocked.clear();
         unrelatedArcBlocked.clear();
         crossBlocked.clear();
+        blocked = 0;
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.schematization;
+
+import nl.tue.curvedstrokeschematization.algo.frechetdistance.implementations.polyhedral.PolyhedralFrechetDistance;
+import nl.tue.curvedstrokeschematization.algo.frechetdistance.util.PolyhedralDistanceFunction;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import java.util.function.Supplier;
+
+/**
+ * The settings from which each IterativeSchematization of a run is created,
+ * such that they can be shipped to the workers of a distributed run.
+ */
+public class SchematizationSettings {
+
+    public final int angles;
+    public final int numCandidates;
+    public final double straightreduc;
+    public final double eps;
+    public final double crossdist;
+    public final double proxytolerance;
+
+    public SchematizationSettings(int angles, int numCandidates, double straightreduc, double eps, double crossdist, double proxytolerance) {
+        this.angles = angles;
+        this.numCandidates = numCandidates;
+        this.straightreduc = straightreduc;
+        this.eps = eps;
+        this.crossdist = crossdist;
+        this.proxytolerance = proxytolerance;
+    }
+
+    /**
+     * Creates a new algorithm per call, with a compact store if requested.
+     */
+    public Supplier<IterativeSchematization> algorithms(boolean useStore) {
+        return () -> {
+            IterativeSchematization algorithm = new IterativeSchematization(
+                    // high degree
+                    true,
+                    // no store, a compact one is set below if needed
+                    false,
+                    crossdist,
+                    angles,
+                    numCandidates,
+                    straightreduc,
+                    new PolyhedralFrechetDistance(PolyhedralDistanceFunction.epsApproximation2D(eps)));
+            algorithm.setProxyTolerance(proxytolerance, eps);
+            if (useStore) {
+                algorithm.setStore(new SchematizationStore(true));
+            }
+            return algorithm;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "a " + angles + ", nc " + numCandidates + ", s " + straightreduc + ", eps " + eps + ", cd " + crossdist + ", pt " + proxytolerance;
+    }
+}
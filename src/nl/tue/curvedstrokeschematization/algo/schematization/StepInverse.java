@@ -0,0 +1,232 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.schematization;
+
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.data.Triple;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import nl.tue.geometrycore.geometry.Vector;
+
+/**
+ * The inverse of a step of IterativeSchematization, recorded while the step
+ * is performed: the replaced vertices and their arcs, the previous positions
+ * of moved extension endpoints, the previous states of the affected crosses
+ * and operations, and the operations of the vertices whose operations were
+ * replaced. Undoing and redoing the step exchange these states with the
+ * current ones, in time proportional to the changes of the step.
+ */
+class StepInverse implements StepListener {
+
+    final Operation operation;
+    // the complexity before and after the step
+    final int before, after;
+    // per replacement, in order
+    private final List<StrokeVertex> mids;
+    private final List<Integer> indices;
+    private final List<StrokeArc> incoming, outgoing, newarcs;
+    // per replacement, the other crosses and the extended arcs updated in the store
+    private final List<List<StrokeCross>> crosses;
+    private final List<List<StrokeArc>> extended;
+    // the store nodes of the step while it is undone, in the order of the store changes
+    private final Deque<Object> nodes;
+    // the states before the step, or after it while it is undone
+    private final Map<StrokeVertex, Vector> positions;
+    private final Map<StrokeCross, StrokeCross> states;
+    private final Map<Operation, Operation> interactions;
+    private final Map<StrokeVertex, List<VertexOperation>> removed, added;
+    // the index of the vertex of the replacement being performed
+    private int index;
+
+    StepInverse(Operation operation, int before, int after) {
+        this.operation = operation;
+        this.before = before;
+        this.after = after;
+        mids = new ArrayList();
+        indices = new ArrayList();
+        incoming = new ArrayList();
+        outgoing = new ArrayList();
+        newarcs = new ArrayList();
+        crosses = new ArrayList();
+        extended = new ArrayList();
+        nodes = new ArrayDeque();
+        positions = new LinkedHashMap();
+        states = new LinkedHashMap();
+        interactions = new HashMap();
+        removed = new HashMap();
+        added = new HashMap();
+    }
+
+    List<StrokeVertex> getMids() {
+        return mids;
+    }
+
+    List<StrokeArc> getNewArcs() {
+        return newarcs;
+    }
+
+    Iterable<StrokeVertex> getMoved() {
+        return positions.keySet();
+    }
+
+    @Override
+    public void replacing(StrokeVertex mid, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+        for (Triple<StrokeArc, Vector, Vector> ext : extensions) {
+            if (ext.getSecond() != null) {
+                move(ext.getFirst().getStart());
+            }
+            if (ext.getThird() != null) {
+                move(ext.getFirst().getEnd());
+            }
+        }
+        for (StrokeCross sc : newarc.getVirtuals()) {
+            cross(sc);
+        }
+        index = mid.getStroke().getVertices().indexOf(mid);
+    }
+
+    @Override
+    public void replaced(int complexity, double cost, StrokeVertex mid, StrokeArc inc, StrokeArc out, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+        List<StrokeCross> others = new ArrayList();
+        for (StrokeCross sc : newarc.getVirtuals()) {
+            if (sc != mid.getCross()) {
+                others.add(sc);
+            }
+        }
+        List<StrokeArc> exts = new ArrayList();
+        for (Triple<StrokeArc, Vector, Vector> ext : extensions) {
+            exts.add(ext.getFirst());
+        }
+        mids.add(mid);
+        indices.add(index);
+        incoming.add(inc);
+        outgoing.add(out);
+        newarcs.add(newarc);
+        crosses.add(others);
+        extended.add(exts);
+    }
+
+    @Override
+    public void committed(int complexity, double cost) {
+    }
+
+    // before the vertex moves
+    void move(StrokeVertex sv) {
+        if (!positions.containsKey(sv)) {
+            positions.put(sv, new Vector(sv));
+        }
+    }
+
+    // before the cross changes
+    void cross(StrokeCross sc) {
+        if (!states.containsKey(sc)) {
+            states.put(sc, new StrokeCross(sc));
+        }
+    }
+
+    // before the interactions of the operation change
+    void touch(Operation op) {
+        if (!interactions.containsKey(op)) {
+            interactions.put(op, op.copyInteractions());
+        }
+    }
+
+    void removed(StrokeVertex sv, List<VertexOperation> ops) {
+        removed.put(sv, ops);
+    }
+
+    void added(StrokeVertex sv, List<VertexOperation> ops) {
+        added.put(sv, ops);
+    }
+
+    void undo(Map<StrokeVertex, List<VertexOperation>> vertexoperations, SchematizationStore store) {
+        for (Map.Entry<Operation, Operation> entry : interactions.entrySet()) {
+            entry.getKey().swapInteractions(entry.getValue());
+        }
+        for (StrokeVertex sv : added.keySet()) {
+            vertexoperations.remove(sv);
+        }
+        vertexoperations.putAll(removed);
+
+        for (int i = mids.size() - 1; i >= 0; i--) {
+            StrokeVertex mid = mids.get(i);
+            if (store != null) {
+                List<StrokeArc> exts = extended.get(i);
+                for (int j = exts.size() - 1; j >= 0; j--) {
+                    nodes.push(store.revertArc(exts.get(j), null, exts.get(j)));
+                }
+                nodes.push(store.revertArc(incoming.get(i), outgoing.get(i), newarcs.get(i)));
+                List<StrokeCross> others = crosses.get(i);
+                for (int j = others.size() - 1; j >= 0; j--) {
+                    nodes.push(store.revertCross(others.get(j)));
+                }
+                nodes.push(mid.getCross() == null ? store.revertStation(mid) : store.revertCross(mid.getCross()));
+            }
+            mid.getStroke().getVertices().add(indices.get(i), mid);
+            incoming.get(i).getStart().setOutgoing(incoming.get(i));
+            outgoing.get(i).getEnd().setIncoming(outgoing.get(i));
+        }
+
+        swapStates();
+    }
+
+    void redo(Map<StrokeVertex, List<VertexOperation>> vertexoperations, SchematizationStore store) {
+        for (int i = 0; i < mids.size(); i++) {
+            StrokeVertex mid = mids.get(i);
+            mid.getStroke().getVertices().remove(mid);
+            incoming.get(i).getStart().setOutgoing(newarcs.get(i));
+            outgoing.get(i).getEnd().setIncoming(newarcs.get(i));
+            if (store != null) {
+                if (mid.getCross() == null) {
+                    store.reapplyStation(mid, (SchematizationStore.StationNode) nodes.pop());
+                } else {
+                    store.reapplyCross(mid.getCross(), (SchematizationStore.StationNode) nodes.pop());
+                }
+                for (StrokeCross sc : crosses.get(i)) {
+                    store.reapplyCross(sc, (SchematizationStore.StationNode) nodes.pop());
+                }
+                store.reapplyArc(incoming.get(i), outgoing.get(i), newarcs.get(i), (SchematizationStore.ConnectionNode) nodes.pop());
+                for (StrokeArc ext : extended.get(i)) {
+                    store.reapplyArc(ext, null, ext, (SchematizationStore.ConnectionNode) nodes.pop());
+                }
+            }
+        }
+
+        swapStates();
+
+        for (StrokeVertex sv : removed.keySet()) {
+            vertexoperations.remove(sv);
+        }
+        vertexoperations.putAll(added);
+        for (Map.Entry<Operation, Operation> entry : interactions.entrySet()) {
+            entry.getKey().swapInteractions(entry.getValue());
+        }
+    }
+
+    private void swapStates() {
+        for (Map.Entry<StrokeVertex, Vector> entry : positions.entrySet()) {
+            Vector current = new Vector(entry.getKey());
+            entry.getKey().set(entry.getValue());
+            entry.setValue(current);
+        }
+        for (Map.Entry<StrokeCross, StrokeCross> entry : states.entrySet()) {
+            entry.getKey().swap(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.schematization;
+
+import nl.tue.curvedstrokeschematization.algo.store.NetworkHistory;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.StepPublisher;
+import nl.tue.curvedstrokeschematization.data.Triple;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.Collection;
+import nl.tue.geometrycore.geometry.Vector;
+
+/**
+ * Observes the changes of the network made by a step of
+ * IterativeSchematization. A step performs one or more replacements, each of
+ * which replaces the two arcs at a vertex by one arc and may move the
+ * endpoints of extended arcs; the extensions are given as triples of the
+ * extended arc and its new start and end, either of which is null if that end
+ * does not move.
+ */
+interface StepListener {
+
+    /**
+     * Before the replacement: the vertex is still on its stroke, the extended
+     * arcs have their old endpoints and the crosses on the new arc their old
+     * state.
+     */
+    void replacing(StrokeVertex mid, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions);
+
+    /**
+     * After the replacement: the vertex is removed, the endpoints of the
+     * extended arcs have moved and the crosses are updated. The complexity is
+     * that after the step.
+     */
+    void replaced(int complexity, double cost, StrokeVertex mid, StrokeArc incoming, StrokeArc outgoing, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions);
+
+    /**
+     * After all replacements of the step.
+     */
+    void committed(int complexity, double cost);
+
+    static class History implements StepListener {
+
+        private final NetworkHistory history;
+
+        History(NetworkHistory history) {
+            this.history = history;
+        }
+
+        @Override
+        public void replacing(StrokeVertex mid, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+        }
+
+        @Override
+        public void replaced(int complexity, double cost, StrokeVertex mid, StrokeArc incoming, StrokeArc outgoing, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+            for (Triple<StrokeArc, Vector, Vector> ext : extensions) {
+                if (ext.getSecond() != null) {
+                    history.recordMove(ext.getFirst().getStart());
+                }
+                if (ext.getThird() != null) {
+                    history.recordMove(ext.getFirst().getEnd());
+                }
+            }
+            history.recordReplacement(mid, newarc);
+        }
+
+        @Override
+        public void committed(int complexity, double cost) {
+            history.commit();
+        }
+    }
+
+    static class Store implements StepListener {
+
+        private final SchematizationStore store;
+
+        Store(SchematizationStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void replacing(StrokeVertex mid, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+        }
+
+        @Override
+        public void replaced(int complexity, double cost, StrokeVertex mid, StrokeArc incoming, StrokeArc outgoing, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+            if (mid.getCross() == null) {
+                store.removeStation(complexity, cost, mid);
+            } else {
+                store.updateCross(complexity, cost, mid.getCross());
+            }
+            for (StrokeCross sc : newarc.getVirtuals()) {
+                if (sc != mid.getCross()) {
+                    store.updateCross(complexity, cost, sc);
+                }
+            }
+            store.replaceArc(complexity, cost, incoming, outgoing, newarc);
+            for (Triple<StrokeArc, Vector, Vector> ext : extensions) {
+                store.replaceArc(complexity, cost, ext.getFirst(), null, ext.getFirst());
+            }
+        }
+
+        @Override
+        public void committed(int complexity, double cost) {
+        }
+    }
+
+    static class Publisher implements StepListener {
+
+        private final StepPublisher publisher;
+
+        Publisher(StepPublisher publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void replacing(StrokeVertex mid, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+        }
+
+        @Override
+        public void replaced(int complexity, double cost, StrokeVertex mid, StrokeArc incoming, StrokeArc outgoing, StrokeArc newarc, Collection<Triple<StrokeArc, Vector, Vector>> extensions) {
+            publisher.arcReplaced(complexity, cost, mid, newarc);
+            for (Triple<StrokeArc, Vector, Vector> ext : extensions) {
+                if (ext.getSecond() != null) {
+                    publisher.extensionApplied(complexity, cost, ext.getFirst().getStart(), true);
+                }
+                if (ext.getThird() != null) {
+                    publisher.extensionApplied(complexity, cost, ext.getFirst().getEnd(), false);
+                }
+            }
+            if (mid.getCross() != null) {
+                publisher.crossMoved(complexity, cost, mid.getCross());
+            }
+            for (StrokeCross sc : newarc.getVirtuals()) {
+                if (sc != mid.getCross()) {
+                    publisher.crossMoved(complexity, cost, sc);
+                }
+            }
+            publisher.vertexRemoved(complexity, cost, mid);
+        }
+
+        @Override
+        public void committed(int complexity, double cost) {
+            publisher.commit(complexity, cost);
+        }
+    }
+}
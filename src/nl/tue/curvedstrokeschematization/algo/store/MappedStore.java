@@ -0,0 +1,354 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.algo.schematization.FullCircleArc;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.geometry.curved.CircularArc;
+
+/**
+ * Read-only view of a store written by SchematizationStore.write, queried
+ * directly on the memory-mapped file. Nodes are identified by their record
+ * index; a query returns the indices of the station and connection records,
+ * whose fields are read from the mapping on access. Processes that map the
+ * same file share its pages, and queries may run concurrently as the buffers
+ * are only read through absolute accessors. The file is mapped in segments of
+ * 1 GB, so it is not limited to the 2 GB of a single mapping.
+ *
+ * Layout (big-endian): a header of HEADER bytes with the counts, the station
+ * records (STATION bytes each: complexity, parent, cost, child, id string,
+ * disk x, y and radius, head of the chain, flags), the connection records
+ * (CONNECTION bytes each: complexity, parent, cost, first child and count,
+ * start, end, center, flags, first virtual and count, first connection id
+ * and count), the child, virtual and connection id references, the string
+ * table (long offsets and UTF-8 bytes) and the timelines of stations and
+ * connections by complexity and by negated cost.
+ */
+public class MappedStore {
+
+    public static final int MAGIC = 0x53535452;
+    public static final int VERSION = 3;
+
+    static final int HEADER = 64;
+    static final long STATION = 56;
+    static final long CONNECTION = 96;
+
+    // the file is mapped in segments of SEGMENT bytes, each overlapping the
+    // next by 8 bytes such that a value never spans two segments
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT = 1L << SEGMENT_BITS;
+
+    static final int CROSS = 1;
+    static final int COUNTERCLOCKWISE = 1;
+    static final int FULLCIRCLE = 2;
+
+    /**
+     * Record indices of the stations and connections at some level.
+     */
+    public static class Result {
+
+        public final int[] stations;
+        public final int[] connections;
+
+        Result(int[] stations, int[] connections) {
+            this.stations = stations;
+            this.connections = connections;
+        }
+    }
+
+    private final ByteBuffer[] segments;
+    private final int maxComplexity;
+    private final int stationCount, connectionCount;
+    private final long stations, connections, children, virtuals, connectionids, strings, stringbytes;
+    private final Timeline stationsByComplexity, connectionsByComplexity, stationsByCost, connectionsByCost;
+
+    private MappedStore(ByteBuffer[] segments) throws IOException {
+        this.segments = segments;
+        if (getInt(0) != MAGIC) {
+            throw new IOException("Not a store file");
+        }
+        int version = getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported store version " + version);
+        }
+        maxComplexity = getInt(8);
+        stationCount = getInt(12);
+        connectionCount = getInt(16);
+        int childCount = getInt(20);
+        int virtualCount = getInt(24);
+        int connectionidCount = getInt(28);
+        int stringCount = getInt(32);
+
+        stations = HEADER;
+        connections = stations + stationCount * STATION;
+        children = connections + connectionCount * CONNECTION;
+        virtuals = children + 4L * childCount;
+        connectionids = virtuals + 4L * virtualCount;
+        strings = connectionids + 4L * connectionidCount;
+        stringbytes = strings + 8L * (stringCount + 1);
+
+        long offset = stringbytes + getLong(36);
+        stationsByComplexity = new Timeline(offset);
+        connectionsByComplexity = new Timeline(stationsByComplexity.end);
+        stationsByCost = new Timeline(connectionsByComplexity.end);
+        connectionsByCost = new Timeline(stationsByCost.end);
+    }
+
+    public static MappedStore open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * SEGMENT;
+                // the mapping stays valid after the channel is closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT + 8, size - position));
+            }
+            return new MappedStore(segments);
+        }
+    }
+
+    public int getMaximumComplexity() {
+        return maxComplexity;
+    }
+
+    public Result query(int maxcomplexity) {
+        return new Result(stationsByComplexity.query(maxcomplexity), connectionsByComplexity.query(maxcomplexity));
+    }
+
+    public Result query(double maxcost) {
+        return new Result(stationsByCost.query(-maxcost), connectionsByCost.query(-maxcost));
+    }
+
+    // stations
+    public int getStationCount() {
+        return stationCount;
+    }
+
+    public int getStationAppearsAtComplexity(int station) {
+        return getInt(stations + station * STATION);
+    }
+
+    public int getStationParent(int station) {
+        return getInt(stations + station * STATION + 4);
+    }
+
+    public double getStationAppearsAtCost(int station) {
+        return getDouble(stations + station * STATION + 8);
+    }
+
+    public int getStationChild(int station) {
+        return getInt(stations + station * STATION + 16);
+    }
+
+    public String getStationId(int station) {
+        int string = getInt(stations + station * STATION + 20);
+        return string < 0 ? null : getString(string);
+    }
+
+    public Vector getDiskCenter(int station) {
+        long r = stations + station * STATION;
+        return new Vector(getDouble(r + 24), getDouble(r + 32));
+    }
+
+    public double getDiskRadius(int station) {
+        return getDouble(stations + station * STATION + 40);
+    }
+
+    // connections
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public int getConnectionAppearsAtComplexity(int connection) {
+        return getInt(connections + connection * CONNECTION);
+    }
+
+    public int getConnectionParent(int connection) {
+        return getInt(connections + connection * CONNECTION + 4);
+    }
+
+    public double getConnectionAppearsAtCost(int connection) {
+        return getDouble(connections + connection * CONNECTION + 8);
+    }
+
+    public int[] getConnectionChildren(int connection) {
+        long r = connections + connection * CONNECTION;
+        return ints(children, getInt(r + 16), getInt(r + 20));
+    }
+
+    public CircularArc getArc(int connection) {
+        long r = connections + connection * CONNECTION;
+        Vector start = new Vector(getDouble(r + 24), getDouble(r + 32));
+        Vector end = new Vector(getDouble(r + 40), getDouble(r + 48));
+        double cx = getDouble(r + 56);
+        Vector center = Double.isNaN(cx) ? null : new Vector(cx, getDouble(r + 64));
+        int flags = getInt(r + 72);
+        if ((flags & FULLCIRCLE) != 0) {
+            return new FullCircleArc(center, start, (flags & COUNTERCLOCKWISE) == 0);
+        }
+        return new CircularArc(center, start, end, (flags & COUNTERCLOCKWISE) != 0);
+    }
+
+    public String[] getConnectionIds(int connection) {
+        long r = connections + connection * CONNECTION;
+        int[] ids = ints(connectionids, getInt(r + 84), getInt(r + 88));
+        String[] result = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = getString(ids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * The interchange records of the virtual crosses of a connection at the
+     * given complexity, as SchematizationStore.ConnectionNode.getVirtualCrosses
+     * after a query at that complexity.
+     */
+    public int[] getVirtualCrosses(int connection, int complexity) {
+        long r = connections + connection * CONNECTION;
+        int[] nodes = ints(virtuals, getInt(r + 76), getInt(r + 80));
+        int n = 0;
+        for (int sn : nodes) {
+            if (sn < 0) {
+                continue;
+            }
+            // newest node of the chain, not older than sn, that is current at this complexity
+            int lo = getInt(stations + sn * STATION + 48);
+            int hi = sn;
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                if (complexity < getStationAppearsAtComplexity(mid)) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            if ((getInt(stations + lo * STATION + 52) & CROSS) != 0) {
+                nodes[n++] = lo;
+            }
+        }
+        int[] result = new int[n];
+        System.arraycopy(nodes, 0, result, 0, n);
+        return result;
+    }
+
+    private String getString(int string) {
+        long from = getLong(strings + 8L * string);
+        long to = getLong(strings + 8L * string + 8);
+        byte[] bytes = new byte[(int) (to - from)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(stringbytes + from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int[] ints(long section, int first, int count) {
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = getInt(section + 4L * (first + i));
+        }
+        return result;
+    }
+
+    private byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT - 1)));
+    }
+
+    private int getInt(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getInt((int) (position & (SEGMENT - 1)));
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position & (SEGMENT - 1)));
+    }
+
+    private double getDouble(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getDouble((int) (position & (SEGMENT - 1)));
+    }
+
+    // see SchematizationStore.Timeline
+    private class Timeline {
+
+        final int events, checkpoints;
+        final long keys, nodes, starts, offsets, data, end;
+
+        Timeline(long offset) {
+            events = getInt(offset);
+            checkpoints = getInt(offset + 4);
+            keys = offset + 8;
+            nodes = keys + 8L * events;
+            starts = nodes + 4L * events;
+            offsets = starts + 4L * checkpoints;
+            data = offsets + 4L * (checkpoints + 1);
+            end = data + 4L * getInt(offsets + 4L * checkpoints);
+        }
+
+        int[] query(double level) {
+            int lo = 0;
+            int hi = events;
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                if (getDouble(keys + 8L * mid) >= level) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            // the last checkpoint taken at or before event lo
+            int c = 0;
+            int d = checkpoints - 1;
+            while (c < d) {
+                int mid = (c + d + 1) / 2;
+                if (getInt(starts + 4L * mid) <= lo) {
+                    c = mid;
+                } else {
+                    d = mid - 1;
+                }
+            }
+            int start = getInt(starts + 4L * c);
+
+            Set<Integer> left = new HashSet();
+            for (int i = start; i < lo; i++) {
+                int node = getInt(nodes + 4L * i);
+                if (node < 0) {
+                    left.add(~node);
+                }
+            }
+            int from = getInt(offsets + 4L * c);
+            int to = getInt(offsets + 4L * c + 4);
+            int[] result = new int[to - from + lo - start];
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                int node = getInt(data + 4L * i);
+                if (!left.contains(node)) {
+                    result[n++] = node;
+                }
+            }
+            for (int i = start; i < lo; i++) {
+                int node = getInt(nodes + 4L * i);
+                if (node >= 0 && !left.contains(node)) {
+                    result[n++] = node;
+                }
+            }
+            int[] trimmed = new int[n];
+            System.arraycopy(result, 0, trimmed, 0, n);
+            return trimmed;
+        }
+    }
+}
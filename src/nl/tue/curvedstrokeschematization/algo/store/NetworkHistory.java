@@ -0,0 +1,459 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.algo.schematization.FullCircleArc;
+import nl.tue.curvedstrokeschematization.data.metro.MetroConnection;
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.geometry.curved.CircularArc;
+
+/**
+ * Versions of a stroke network during schematization. The network as it was
+ * at initialization is kept as a frozen copy, and every step appends the
+ * changes it made: the removed vertices with the geometry of their
+ * replacement arcs, the moved vertices and the resulting state of the
+ * affected crosses. Steps never create vertices, strokes or crosses, so these
+ * are referred to by their index in the initial network.
+ *
+ * Taking a snapshot only records the current version, and memory grows with
+ * the number of changes. A snapshot is turned into an independent network by
+ * replaying its steps on a copy of the initial network; the result can be
+ * written out or schematized further by another algorithm (a fork), while the
+ * original schematization continues. A replica is such a network that is
+ * advanced to later versions by replaying only the steps in between.
+ *
+ * Recording happens on the thread of the schematization. Materializing and
+ * advancing replicas may happen on any thread, as reading the initial network
+ * does not change it; a replica should be used by one thread at a time.
+ */
+public class NetworkHistory {
+
+    static final byte STRAIGHT = 0;
+    static final byte ARC = 1;
+    static final byte CIRCLE = 2;
+
+    /**
+     * A version of the network, cheap to take and to keep.
+     */
+    public class Snapshot {
+
+        private final int version;
+
+        private Snapshot(int version) {
+            this.version = version;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public StrokeNetwork materialize() {
+            return NetworkHistory.this.materialize(version);
+        }
+    }
+
+    /**
+     * An independent network at some version, which can be advanced to later
+     * versions. Versions dropped by truncate can not be reached; a replica
+     * beyond the truncated version no longer follows the history.
+     */
+    public class Replica {
+
+        private final StrokeNetwork network;
+        private final List<StrokeVertex> vertices;
+        private final List<Stroke> strokes;
+        private final List<StrokeCross> crosses;
+        private int version;
+
+        private Replica() {
+            StrokeNetwork from;
+            synchronized (NetworkHistory.this) {
+                from = base;
+            }
+            vertices = new ArrayList();
+            strokes = new ArrayList();
+            crosses = new ArrayList();
+            network = copy(from, vertices, strokes, crosses);
+            version = 0;
+        }
+
+        public StrokeNetwork getNetwork() {
+            return network;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public void advance(Snapshot snapshot) {
+            advance(snapshot.getVersion());
+        }
+
+        /**
+         * Applies the steps up to the given version, which may not be earlier
+         * than the current version of the replica.
+         */
+        public void advance(int target) {
+            if (target < version) {
+                throw new IllegalArgumentException("Replica at version " + version + " can not go back to " + target);
+            }
+            List<Step> replay;
+            synchronized (NetworkHistory.this) {
+                replay = new ArrayList(steps.subList(version, target));
+            }
+            for (Step step : replay) {
+                apply(step, vertices, strokes, crosses);
+            }
+            version = target;
+        }
+    }
+
+    private static class Step {
+
+        // per replacement: the removed vertex and the geometry of the new arc
+        int[] mids;
+        byte[] kinds;
+        double[] geometry;
+        // per moved vertex: its index and new position
+        int[] moved;
+        double[] positions;
+        // per affected cross: its index, the positions per stroke, the intersections and the disc
+        int[] crosses;
+        int[][] posstrokes;
+        double[][] pos;
+        double[][] intersections;
+        double[] discs;
+    }
+
+    private StrokeNetwork base;
+    private Map<StrokeVertex, Integer> vertexindex;
+    private Map<Stroke, Integer> strokeindex;
+    private Map<StrokeCross, Integer> crossindex;
+    private final List<Step> steps;
+    // the step being recorded
+    private List<StrokeVertex> mids;
+    private List<StrokeArc> arcs;
+    private Set<StrokeVertex> moved;
+    private Set<StrokeCross> crosses;
+
+    public NetworkHistory() {
+        steps = new ArrayList();
+    }
+
+    public synchronized void initialize(StrokeNetwork network) {
+        steps.clear();
+        vertexindex = new HashMap();
+        strokeindex = new HashMap();
+        crossindex = new HashMap();
+        for (Stroke s : network.getStrokes()) {
+            strokeindex.put(s, strokeindex.size());
+            for (StrokeVertex sv : s.getVertices()) {
+                vertexindex.put(sv, vertexindex.size());
+            }
+        }
+        for (StrokeCross sc : network.getCrosses()) {
+            crossindex.put(sc, crossindex.size());
+        }
+        base = copy(network, null, null, null);
+        mids = new ArrayList();
+        arcs = new ArrayList();
+        moved = new LinkedHashSet();
+        crosses = new LinkedHashSet();
+    }
+
+    public synchronized boolean isInitialized() {
+        return base != null;
+    }
+
+    public synchronized int getVersion() {
+        return steps.size();
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(steps.size());
+    }
+
+    /**
+     * Drops the versions after the given one, when steps are undone.
+     * Snapshots of dropped versions can no longer be materialized.
+     */
+    public synchronized void truncate(int version) {
+        steps.subList(version, steps.size()).clear();
+    }
+
+    public void recordReplacement(StrokeVertex mid, StrokeArc newarc) {
+        mids.add(mid);
+        arcs.add(newarc);
+        if (mid.getCross() != null) {
+            crosses.add(mid.getCross());
+        }
+        crosses.addAll(newarc.getVirtuals());
+    }
+
+    public void recordMove(StrokeVertex sv) {
+        moved.add(sv);
+    }
+
+    /**
+     * Closes the step being recorded, reading the final state of the affected
+     * crosses and vertices.
+     */
+    public void commit() {
+        Step step = new Step();
+
+        int n = mids.size();
+        step.mids = new int[n];
+        step.kinds = new byte[n];
+        step.geometry = new double[3 * n];
+        for (int i = 0; i < n; i++) {
+            StrokeArc arc = arcs.get(i);
+            step.mids[i] = vertexindex.get(mids.get(i));
+            step.kinds[i] = shape(arc);
+            if (arc.getCenter() != null) {
+                step.geometry[3 * i] = arc.getCenter().getX();
+                step.geometry[3 * i + 1] = arc.getCenter().getY();
+                step.geometry[3 * i + 2] = arc.isClockwise() ? 1 : 0;
+            }
+        }
+
+        step.moved = new int[moved.size()];
+        step.positions = new double[2 * moved.size()];
+        int i = 0;
+        for (StrokeVertex sv : moved) {
+            step.moved[i] = vertexindex.get(sv);
+            step.positions[2 * i] = sv.getX();
+            step.positions[2 * i + 1] = sv.getY();
+            i++;
+        }
+
+        int m = crosses.size();
+        step.crosses = new int[m];
+        step.posstrokes = new int[m][];
+        step.pos = new double[m][];
+        step.intersections = new double[m][];
+        step.discs = new double[3 * m];
+        i = 0;
+        for (StrokeCross sc : crosses) {
+            step.crosses[i] = crossindex.get(sc);
+            List<Stroke> strokes = sc.getStrokes();
+            List<Stroke> positioned = new ArrayList();
+            for (Stroke s : strokes) {
+                if (sc.getVirtualPos(s) != null) {
+                    positioned.add(s);
+                }
+            }
+            step.posstrokes[i] = new int[positioned.size()];
+            step.pos[i] = new double[2 * positioned.size()];
+            for (int j = 0; j < positioned.size(); j++) {
+                Vector v = sc.getVirtualPos(positioned.get(j));
+                step.posstrokes[i][j] = strokeindex.get(positioned.get(j));
+                step.pos[i][2 * j] = v.getX();
+                step.pos[i][2 * j + 1] = v.getY();
+            }
+            List<Vector> inters = sc.getIntersections();
+            step.intersections[i] = new double[2 * inters.size()];
+            for (int j = 0; j < inters.size(); j++) {
+                step.intersections[i][2 * j] = inters.get(j).getX();
+                step.intersections[i][2 * j + 1] = inters.get(j).getY();
+            }
+            step.discs[3 * i] = sc.getSmallestDisc().getCenter().getX();
+            step.discs[3 * i + 1] = sc.getSmallestDisc().getCenter().getY();
+            step.discs[3 * i + 2] = sc.getSmallestDisc().getRadius();
+            i++;
+        }
+
+        mids.clear();
+        arcs.clear();
+        moved.clear();
+        crosses.clear();
+
+        synchronized (this) {
+            steps.add(step);
+        }
+    }
+
+    /**
+     * Builds an independent copy of the network as it was at the given
+     * version.
+     */
+    public StrokeNetwork materialize(int version) {
+        Replica replica = new Replica();
+        replica.advance(version);
+        return replica.getNetwork();
+    }
+
+    /**
+     * Creates a replica at the initial version.
+     */
+    public Replica replica() {
+        return new Replica();
+    }
+
+    private static void apply(Step step, List<StrokeVertex> vertices, List<Stroke> strokes, List<StrokeCross> crosses) {
+        for (int i = 0; i < step.mids.length; i++) {
+            replace(vertices.get(step.mids[i]), step.kinds[i], step.geometry[3 * i], step.geometry[3 * i + 1], step.geometry[3 * i + 2] != 0);
+        }
+
+        for (int i = 0; i < step.moved.length; i++) {
+            vertices.get(step.moved[i]).set(new Vector(step.positions[2 * i], step.positions[2 * i + 1]));
+        }
+
+        for (int i = 0; i < step.crosses.length; i++) {
+            setCross(crosses.get(step.crosses[i]), strokes, step.posstrokes[i], step.pos[i], step.intersections[i],
+                    step.discs[3 * i], step.discs[3 * i + 1], step.discs[3 * i + 2]);
+        }
+    }
+
+    static byte shape(StrokeArc arc) {
+        if (arc.getCenter() == null) {
+            return STRAIGHT;
+        }
+        return arc.getStart() == arc.getEnd() ? CIRCLE : ARC;
+    }
+
+    // replaces the arcs at the vertex by one of the given shape and removes the vertex, as in IterativeSchematization.perform
+    static StrokeArc replace(StrokeVertex mid, byte shape, double cx, double cy, boolean clockwise) {
+        StrokeVertex from = mid.getPrevious();
+        StrokeVertex to = mid.getNext();
+
+        List<StrokeCross> jointvirtual = new ArrayList(from.getOutgoing().getVirtuals());
+        jointvirtual.addAll(to.getIncoming().getVirtuals());
+        if (mid.getCross() != null) {
+            jointvirtual.add(mid.getCross());
+        }
+        List<MetroConnection> jointoriginal = new ArrayList(from.getOutgoing().getOriginaledges());
+        jointoriginal.addAll(to.getIncoming().getOriginaledges());
+        double[] jointcoords = StrokeArc.joinOriginalCoordinates(from.getOutgoing(), to.getIncoming());
+
+        StrokeArc newarc;
+        if (shape == STRAIGHT) {
+            newarc = new StrokeArc(from, to, new CircularArc(null, from, to, false), jointvirtual, jointoriginal);
+        } else if (shape == CIRCLE) {
+            newarc = new StrokeArc(from, new FullCircleArc(new Vector(cx, cy), from, clockwise), jointvirtual, jointoriginal);
+        } else {
+            newarc = new StrokeArc(from, to, new CircularArc(new Vector(cx, cy), from, to, !clockwise), jointvirtual, jointoriginal);
+        }
+        newarc.setOriginalCoordinates(jointcoords);
+        from.setOutgoing(newarc);
+        to.setIncoming(newarc);
+
+        for (StrokeCross sc : jointvirtual) {
+            sc.getConcrete().remove(newarc.getStroke());
+            sc.getVirtual().put(newarc.getStroke(), newarc);
+        }
+        mid.getStroke().getVertices().remove(mid);
+        return newarc;
+    }
+
+    // sets the positions per stroke (indices into strokes), the intersections and the disc of the cross
+    static void setCross(StrokeCross sc, List<Stroke> strokes, int[] posstrokes, double[] pos, double[] intersections, double cx, double cy, double r) {
+        for (int j = 0; j < posstrokes.length; j++) {
+            sc.addVirtualPos(strokes.get(posstrokes[j]), new Vector(pos[2 * j], pos[2 * j + 1]));
+        }
+        sc.getIntersections().clear();
+        for (int j = 0; j < intersections.length; j += 2) {
+            sc.getIntersections().add(new Vector(intersections[j], intersections[j + 1]));
+        }
+        sc.getSmallestDisc().setCenter(new Vector(cx, cy));
+        sc.getSmallestDisc().setRadius(r);
+    }
+
+    // copies the network, sharing the metro stations and connections; the lists receive the copied objects in index order
+    static StrokeNetwork copy(StrokeNetwork network, List<StrokeVertex> vertexlist, List<Stroke> strokelist, List<StrokeCross> crosslist) {
+        StrokeNetwork copy = new StrokeNetwork();
+
+        Map<StrokeCross, StrokeCross> crossmap = new HashMap();
+        for (StrokeCross sc : network.getCrosses()) {
+            StrokeCross cc = new StrokeCross(sc.getOriginal());
+            crossmap.put(sc, cc);
+            copy.addCross(cc);
+            if (crosslist != null) {
+                crosslist.add(cc);
+            }
+        }
+
+        Map<StrokeVertex, StrokeVertex> vertexmap = new HashMap();
+        Map<Stroke, Stroke> strokemap = new HashMap();
+        for (Stroke s : network.getStrokes()) {
+            List<StrokeVertex> svs = new ArrayList();
+            for (StrokeVertex sv : s.getVertices()) {
+                StrokeVertex cv = new StrokeVertex(sv.getOriginal());
+                cv.set(sv);
+                if (sv.getCross() != null) {
+                    cv.setCross(crossmap.get(sv.getCross()));
+                }
+                vertexmap.put(sv, cv);
+                svs.add(cv);
+            }
+            if (vertexlist != null) {
+                vertexlist.addAll(svs);
+            }
+            Stroke cs = new Stroke(svs, s.isCircular());
+            strokemap.put(s, cs);
+            copy.addStroke(cs);
+            if (strokelist != null) {
+                strokelist.add(cs);
+            }
+        }
+
+        Map<StrokeArc, StrokeArc> arcmap = new HashMap();
+        for (StrokeArc arc : network.getArcs()) {
+            StrokeVertex start = vertexmap.get(arc.getStart());
+            StrokeVertex end = vertexmap.get(arc.getEnd());
+            List<StrokeCross> virtuals = new ArrayList();
+            for (StrokeCross sc : arc.getVirtuals()) {
+                virtuals.add(crossmap.get(sc));
+            }
+            StrokeArc ca;
+            if (arc.getCenter() != null && arc.getStart() == arc.getEnd()) {
+                ca = new StrokeArc(start, new FullCircleArc(arc.getCenter(), start, arc.isClockwise()), virtuals, arc.getOriginaledges());
+            } else {
+                ca = new StrokeArc(start, end, new CircularArc(arc.getCenter(), start, end, !arc.isClockwise()), virtuals, arc.getOriginaledges());
+            }
+            ca.setOriginalCoordinates(arc.getOriginalCoordinates());
+            start.setOutgoing(ca);
+            end.setIncoming(ca);
+            arcmap.put(arc, ca);
+        }
+
+        for (StrokeCross sc : network.getCrosses()) {
+            StrokeCross cc = crossmap.get(sc);
+            for (Map.Entry<Stroke, StrokeVertex> entry : sc.getConcrete().entrySet()) {
+                cc.addStroke(strokemap.get(entry.getKey()), vertexmap.get(entry.getValue()));
+            }
+            for (Map.Entry<Stroke, StrokeArc> entry : sc.getVirtual().entrySet()) {
+                cc.getVirtual().put(strokemap.get(entry.getKey()), arcmap.get(entry.getValue()));
+            }
+            for (Stroke s : sc.getStrokes()) {
+                if (sc.getVirtualPos(s) != null) {
+                    cc.addVirtualPos(strokemap.get(s), sc.getVirtualPos(s).clone());
+                }
+            }
+            for (Vector v : sc.getIntersections()) {
+                cc.getIntersections().add(v.clone());
+            }
+            cc.getSmallestDisc().setCenter(sc.getSmallestDisc().getCenter().clone());
+            cc.getSmallestDisc().setRadius(sc.getSmallestDisc().getRadius());
+        }
+
+        return copy;
+    }
+}
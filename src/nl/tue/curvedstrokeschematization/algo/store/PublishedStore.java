@@ -0,0 +1,49 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore.QueryResult;
+
+/**
+ * A frozen SchematizationStore that can be queried from several threads
+ * without locking. Obtained by SchematizationStore.freeze, after which the
+ * store and its index no longer change; as the store is reached through a
+ * final field, it is safely published to any thread that sees this object.
+ * Queries do not touch the nodes: the virtual crosses of a result are kept in
+ * the result and read through QueryResult.getVirtualCrosses.
+ */
+public final class PublishedStore {
+
+    private final SchematizationStore store;
+
+    PublishedStore(SchematizationStore store) {
+        this.store = store;
+    }
+
+    public int getMaximumComplexity() {
+        return store.getMaximumComplexity();
+    }
+
+    public int getMinimumComplexity() {
+        return store.getMinimumComplexity();
+    }
+
+    public QueryResult query(int maxcomplexity) {
+        return store.queryFrozen(maxcomplexity, false);
+    }
+
+    /**
+     * Returns the network at the last step whose cost is at most the given
+     * cost, with the virtual crosses resolved by cost as well.
+     */
+    public QueryResult query(double maxcost) {
+        return store.queryFrozen(maxcost, true);
+    }
+}
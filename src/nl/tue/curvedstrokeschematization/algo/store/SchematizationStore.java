@@ -17,11 +17,22 @@ import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
 import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import nl.tue.geometrycore.geometry.Vector;
 import nl.tue.geometrycore.geometry.curved.Circle;
 import nl.tue.geometrycore.geometry.curved.CircularArc;
@@ -46,28 +57,55 @@ public class SchematizationStore {
         private List<StationNode> virtuals;
         private List<StrokeCross> realVirtuals;
         private Stroke stroke;
+        // compact mode: the row in the arc columns and the range in the edge
+        // array, continued from wrapstart if it wraps around a circular stroke
+        private int arcindex;
+        private int edgestart, edgecount, wrapstart, wrapcount;
 
         public CircularArc getArc() {
-            return arc;
+            if (arc != null) {
+                return arc;
+            }
+            Vector start = new Vector(arcs[0][arcindex], arcs[1][arcindex]);
+            Vector end = new Vector(arcs[2][arcindex], arcs[3][arcindex]);
+            Vector center = Double.isNaN(arcs[4][arcindex]) ? null : new Vector(arcs[4][arcindex], arcs[5][arcindex]);
+            if ((arcflags[arcindex] & MappedStore.FULLCIRCLE) != 0) {
+                return new FullCircleArc(center, start, (arcflags[arcindex] & MappedStore.COUNTERCLOCKWISE) == 0);
+            }
+            return new CircularArc(center, start, end, (arcflags[arcindex] & MappedStore.COUNTERCLOCKWISE) != 0);
         }
 
         public List<MetroConnection> getConnections() {
-            return connections;
+            if (connections != null) {
+                return connections;
+            }
+            List<MetroConnection> result = new ArrayList(edgecount + wrapcount);
+            for (int i = edgestart; i < edgestart + edgecount; i++) {
+                result.add(edgetable.get(edges[i]));
+            }
+            for (int i = wrapstart; i < wrapstart + wrapcount; i++) {
+                result.add(edgetable.get(edges[i]));
+            }
+            return result;
+        }
+
+        private void convertVirtuals(double complexity, Map<StationNode, StrokeCross> crosses) {
+            realVirtuals = resolveVirtuals(complexity, false, crosses);
         }
 
-        private void convertVirtuals(double complexity) {
-            realVirtuals = new ArrayList<StrokeCross>();
+        // the virtual crosses at the given complexity or cost, without changing the node;
+        // crosses shares the materialized crosses of compact nodes within one result
+        private List<StrokeCross> resolveVirtuals(double level, boolean bycost, Map<StationNode, StrokeCross> crosses) {
+            List<StrokeCross> result = new ArrayList<StrokeCross>();
             for (StationNode sn : virtuals)
             {
-                StationNode trav = sn;
-                while (trav.parent != null && complexity < trav.parent.appearsAtComplexity) {
-                    trav = trav.parent;
-                }
-                if (trav.cross != null) {
+                StationNode trav = bycost ? sn.newestAtCost(level) : sn.newestBefore(level);
+                if (trav.isCross()) {
                     // station actually exists...
-                    realVirtuals.add(trav.cross);
+                    result.add(trav.getCross(crosses));
                 }
             }
+            return result;
         }
         
         public List<StrokeCross> getVirtualCrosses() {
@@ -91,6 +129,84 @@ public class SchematizationStore {
         private Circle mindisk;
         private List<Vector> points;
         private StrokeCross cross;
+        // compact mode: the strokes whose virtual position changed with this
+        // node, and their new positions (NaN when removed)
+        private Stroke[] posstrokes;
+        private double[] pos;
+        // the chain of this interchange from newest to oldest, and the position of this node in it
+        private StationNode[] chain;
+        private int chainindex;
+
+        // the node reached by walking to newer nodes while the complexity is below theirs
+        private StationNode newestBefore(double complexity) {
+            if (chain == null) {
+                StationNode trav = this;
+                while (trav.parent != null && complexity < trav.parent.appearsAtComplexity) {
+                    trav = trav.parent;
+                }
+                return trav;
+            }
+            // appearsAtComplexity does not decrease along the chain
+            int lo = 0;
+            int hi = chainindex;
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                if (complexity < chain[mid].appearsAtComplexity) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return chain[lo];
+        }
+
+        // the initial node of an interchange is not a virtual cross
+        private boolean isCross() {
+            return cross != null || (posstrokes != null && child != null);
+        }
+
+        // the node reached by walking to newer nodes while their cost is at most the given cost
+        private StationNode newestAtCost(double cost) {
+            StationNode trav = this;
+            while (trav.parent != null && trav.parent.appearsAtCost <= cost) {
+                trav = trav.parent;
+            }
+            return trav;
+        }
+
+        // in compact mode, rebuilds the cross from the disk and the position changes of this node and older ones
+        private StrokeCross getCross(Map<StationNode, StrokeCross> crosses) {
+            if (cross != null) {
+                return cross;
+            }
+            return crosses.computeIfAbsent(this, sn -> {
+                List<StationNode> older = new ArrayList();
+                for (StationNode trav = this; trav != null; trav = trav.child) {
+                    older.add(trav);
+                }
+                Map<Stroke, Vector> positions = new HashMap();
+                for (int i = older.size() - 1; i >= 0; i--) {
+                    StationNode trav = older.get(i);
+                    if (trav.posstrokes == null) {
+                        continue;
+                    }
+                    for (int j = 0; j < trav.posstrokes.length; j++) {
+                        if (Double.isNaN(trav.pos[2 * j])) {
+                            positions.remove(trav.posstrokes[j]);
+                        } else {
+                            positions.put(trav.posstrokes[j], new Vector(trav.pos[2 * j], trav.pos[2 * j + 1]));
+                        }
+                    }
+                }
+                StrokeCross sc = new StrokeCross(station);
+                for (Map.Entry<Stroke, Vector> entry : positions.entrySet()) {
+                    sc.addVirtualPos(entry.getKey(), entry.getValue());
+                }
+                sc.getSmallestDisc().setCenter(mindisk.getCenter().clone());
+                sc.getSmallestDisc().setRadius(mindisk.getRadius());
+                return sc;
+            });
+        }
 
         public Circle getMindisk() {
             return mindisk;
@@ -109,17 +225,301 @@ public class SchematizationStore {
 
         public List<StationNode> stations;
         public List<ConnectionNode> connections;
+        // the virtual crosses of the connections at the level of this result
+        private Map<ConnectionNode, List<StrokeCross>> virtualCrosses;
+
+        /**
+         * The virtual crosses of a connection of this result. Unlike
+         * ConnectionNode.getVirtualCrosses, this is not affected by later
+         * queries.
+         */
+        public List<StrokeCross> getVirtualCrosses(ConnectionNode cn) {
+            return virtualCrosses != null ? virtualCrosses.get(cn) : cn.getVirtualCrosses();
+        }
     }
+    /**
+     * The nodes of the store by the range of levels in which they are part of
+     * a query result. Levels are keys that decrease as the schematization
+     * proceeds; a node is part of the result at level q if lo < q <= hi.
+     * Sweeping the events (a node enters at hi and leaves at lo) in order of
+     * decreasing key, the set of nodes is checkpointed once at least
+     * max(sqrt(events), size of the previous checkpoint) events have passed
+     * since the previous one, such that the checkpoints take O(events) space
+     * in total. A query starts from the last checkpoint before its level and
+     * applies the events since, in O(checkpoint + sqrt(events) + log events)
+     * time.
+     */
+    private static class Timeline<T> {
+
+        private final double[] keys;
+        private final Object[] nodes;
+        private final boolean[] enters;
+        private final int[] starts;
+        private final Object[][] checkpoints;
+
+        Timeline(List<T> list, List<Double> lo, List<Double> hi) {
+            int n = list.size();
+            Integer[] order = new Integer[2 * n];
+            for (int i = 0; i < 2 * n; i++) {
+                order[i] = i;
+            }
+            // event 2i: node i enters, event 2i+1: node i leaves
+            Arrays.sort(order, (a, b) -> -Double.compare(
+                    a % 2 == 0 ? hi.get(a / 2) : lo.get(a / 2),
+                    b % 2 == 0 ? hi.get(b / 2) : lo.get(b / 2)));
+
+            keys = new double[2 * n];
+            nodes = new Object[2 * n];
+            enters = new boolean[2 * n];
+            for (int i = 0; i < 2 * n; i++) {
+                int e = order[i];
+                keys[i] = e % 2 == 0 ? hi.get(e / 2) : lo.get(e / 2);
+                nodes[i] = list.get(e / 2);
+                enters[i] = e % 2 == 0;
+            }
+
+            // a checkpoint of s nodes is followed by at least s events, so
+            // each checkpoint is at most twice the events before it
+            int block = Math.max(16, (int) Math.sqrt(2 * n));
+            List<Integer> at = new ArrayList();
+            List<Object[]> taken = new ArrayList();
+            Set<Object> alive = new LinkedHashSet();
+            int next = 0;
+            for (int i = 0; i < 2 * n; i++) {
+                if (i == next) {
+                    at.add(i);
+                    taken.add(alive.toArray());
+                    next = i + Math.max(block, alive.size());
+                }
+                if (enters[i]) {
+                    alive.add(nodes[i]);
+                } else {
+                    alive.remove(nodes[i]);
+                }
+            }
+            if (at.isEmpty()) {
+                at.add(0);
+                taken.add(new Object[0]);
+            }
+            starts = new int[at.size()];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = at.get(i);
+            }
+            checkpoints = taken.toArray(new Object[taken.size()][]);
+        }
+
+        // number of events with a key of at least the level
+        int count(double level) {
+            int lo = 0;
+            int hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                if (keys[mid] >= level) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // the last checkpoint taken at or before the event
+        int checkpoint(int event) {
+            int lo = 0;
+            int hi = starts.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) / 2;
+                if (starts[mid] <= event) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+
+        List<T> query(double level) {
+            int lo = count(level);
+            int c = checkpoint(lo);
+            int start = starts[c];
+
+            Set<Object> left = new HashSet();
+            for (int i = start; i < lo; i++) {
+                if (!enters[i]) {
+                    left.add(nodes[i]);
+                }
+            }
+            List<T> result = new ArrayList();
+            for (Object node : checkpoints[c]) {
+                if (!left.contains(node)) {
+                    result.add((T) node);
+                }
+            }
+            for (int i = start; i < lo; i++) {
+                if (enters[i] && !left.contains(nodes[i])) {
+                    result.add((T) nodes[i]);
+                }
+            }
+            return result;
+        }
+
+        // events as keys and node indices (complemented for leaving), then the
+        // events at which the checkpoints are taken and the checkpoints
+        void write(DataOutputStream out, Map<Object, Integer> index) throws IOException {
+            out.writeInt(keys.length);
+            out.writeInt(checkpoints.length);
+            for (double key : keys) {
+                out.writeDouble(key);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                int node = index.get(nodes[i]);
+                out.writeInt(enters[i] ? node : ~node);
+            }
+            for (int start : starts) {
+                out.writeInt(start);
+            }
+            int offset = 0;
+            for (Object[] checkpoint : checkpoints) {
+                out.writeInt(offset);
+                offset += checkpoint.length;
+            }
+            out.writeInt(offset);
+            for (Object[] checkpoint : checkpoints) {
+                for (Object node : checkpoint) {
+                    out.writeInt(index.get(node));
+                }
+            }
+        }
+
+        // the nodes that are part of the result at the second level but not the first, and vice versa
+        void delta(double from, double to, List<T> appeared, List<T> disappeared) {
+            int a = count(from);
+            int b = count(to);
+            // +1 appears, -1 disappears; a node crossed both ways cancels
+            Map<Object, Integer> change = new LinkedHashMap();
+            if (b > a) {
+                for (int i = a; i < b; i++) {
+                    change.merge(nodes[i], enters[i] ? 1 : -1, Integer::sum);
+                }
+            } else {
+                for (int i = a - 1; i >= b; i--) {
+                    change.merge(nodes[i], enters[i] ? -1 : 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<Object, Integer> entry : change.entrySet()) {
+                if (entry.getValue() > 0) {
+                    appeared.add((T) entry.getKey());
+                } else if (entry.getValue() < 0) {
+                    disappeared.add((T) entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * The changes between two levels of the store.
+     */
+    public class Delta {
+
+        public List<StationNode> addedStations = new ArrayList();
+        public List<StationNode> removedStations = new ArrayList();
+        public List<ConnectionNode> addedConnections = new ArrayList();
+        public List<ConnectionNode> removedConnections = new ArrayList();
+
+        public boolean isEmpty() {
+            return addedStations.isEmpty() && removedStations.isEmpty()
+                    && addedConnections.isEmpty() && removedConnections.isEmpty();
+        }
+    }
+
+    /**
+     * A position in the store that moves between complexities, reporting only
+     * the nodes that change. A cursor sees the store as it was when the cursor
+     * was created.
+     */
+    public class Cursor {
+
+        private final Timeline<StationNode> stations;
+        private final Timeline<ConnectionNode> connections;
+        private int complexity;
+
+        private Cursor(int complexity) {
+            buildIndex();
+            this.stations = stationsByComplexity;
+            this.connections = connectionsByComplexity;
+            this.complexity = complexity;
+        }
+
+        public int getComplexity() {
+            return complexity;
+        }
+
+        public Delta moveTo(int target) {
+            Delta delta = delta(stations, connections, complexity, target);
+            complexity = target;
+            return delta;
+        }
+
+        public Delta moveBy(int levels) {
+            return moveTo(complexity + levels);
+        }
+    }
+
     private Map<StrokeArc, ConnectionNode> connectionMap;
     private Map<StrokeVertex, StationNode> stationMap;
     private Map<StrokeCross, StationNode> interchangeMap;
     private int maxComplexity;
+    // built on the first query after a change
+    private Timeline<StationNode> stationsByComplexity, stationsByCost;
+    private Timeline<ConnectionNode> connectionsByComplexity, connectionsByCost;
+    // compact mode: arcs as columns of start x/y, end x/y and center x/y with
+    // their flags, the original edges of the initial arcs in stroke order as
+    // one array of indices into the edge table, and the virtual positions last
+    // recorded per interchange to store only their changes
+    private final boolean compact;
+    private double[][] arcs;
+    private byte[] arcflags;
+    private int arccount;
+    private int[] edges;
+    private int edgecount;
+    private List<MetroConnection> edgetable;
+    private Map<MetroConnection, Integer> edgeindex;
+    private Map<StrokeCross, Map<Stroke, Vector>> positions;
+    private boolean frozen;
 
     public SchematizationStore() {
+        this(false);
+    }
+
+    /**
+     * In compact mode, the store does not copy the interchanges, arcs and
+     * connection lists for every level: an interchange level keeps its
+     * smallest disk and the virtual positions that changed, arcs are kept in
+     * primitive columns and the connection lists are ranges of a single
+     * edge-index array: the edges of the initial arcs are laid out stroke by
+     * stroke, such that a merged arc covers the adjacent ranges of its
+     * children and nothing is copied. The arcs, connection lists and virtual crosses of a
+     * query result are then built on access; the virtual crosses have their
+     * positions and disk, but no concrete vertices or virtual arcs.
+     */
+    public SchematizationStore(boolean compact) {
+        this.compact = compact;
         connectionMap = new HashMap();
         stationMap = new HashMap();
         interchangeMap = new HashMap();
         maxComplexity = -1;
+        if (compact) {
+            arcs = new double[6][16];
+            arcflags = new byte[16];
+            edges = new int[16];
+            edgetable = new ArrayList();
+            edgeindex = new HashMap();
+            positions = new HashMap();
+        }
+    }
+
+    public boolean isCompact() {
+        return compact;
     }
 
     public int getMaximumComplexity() {
@@ -131,10 +531,18 @@ public class SchematizationStore {
     }
 
     public void clear() {
+        invalidate();
         connectionMap.clear();
         stationMap.clear();
         interchangeMap.clear();
         maxComplexity = -1;
+        if (compact) {
+            arccount = 0;
+            edgecount = 0;
+            edgetable.clear();
+            edgeindex.clear();
+            positions.clear();
+        }
     }
 
     public boolean isInitialized() {
@@ -172,12 +580,16 @@ public class SchematizationStore {
             sn.child = null;
             sn.station = sc.getOriginal();
             sn.mindisk = sc.getSmallestDisc().clone();
-            sn.points = new ArrayList(); // TODO
+            sn.points = compact ? null : new ArrayList(); // TODO
+            if (compact) {
+                recordPositions(sn, sc);
+            }
 
             interchangeMap.put(sc, sn);
         }
 
         maxComplexity = 0;
+        // arcs stroke by stroke in stroke order, which lays out their edges for replaceArc
         for (StrokeArc sa : network.getArcs()) {
             ConnectionNode cn = new ConnectionNode();
 
@@ -185,8 +597,13 @@ public class SchematizationStore {
             cn.appearsAtCost = 0;
             cn.parent = null;
             cn.children = null;
-            cn.arc = sa.toGeometry().clone();
-            cn.connections = new ArrayList(sa.getOriginaledges());
+            if (compact) {
+                setArc(cn, sa);
+                setConnections(cn, sa.getOriginaledges());
+            } else {
+                cn.arc = sa.toGeometry().clone();
+                cn.connections = new ArrayList(sa.getOriginaledges());
+            }
             cn.virtuals = new ArrayList();
             cn.stroke = sa.getStroke();
 
@@ -197,6 +614,8 @@ public class SchematizationStore {
     }
 
     public void removeStation(int newcomplexity, double operationcost, StrokeVertex sv) {
+        invalidate();
+
         StationNode old = stationMap.get(sv);
 
         StationNode sn = new StationNode();
@@ -214,6 +633,8 @@ public class SchematizationStore {
     }
 
     public void replaceArc(int newcomplexity, double operationcost, StrokeArc oldArc1, StrokeArc oldArc2, StrokeArc newArc) {
+        invalidate();
+
         ConnectionNode old1 = connectionMap.remove(oldArc1);
         ConnectionNode old2 = oldArc2 == null ? null : connectionMap.remove(oldArc2);
 
@@ -233,18 +654,25 @@ public class SchematizationStore {
             cn.children.add(old2);
             old2.parent = cn;
         }
-        if (newArc.toGeometry() instanceof FullCircleArc) {
+        if (compact) {
+            setArc(cn, newArc);
+            joinConnections(cn, old1, old2);
+            assert cn.edgecount + cn.wrapcount == newArc.getOriginaledges().size();
+        } else if (newArc.toGeometry() instanceof FullCircleArc) {
             cn.arc = new FullCircleArc(newArc.getCenter(), newArc.getStart(), newArc.isClockwise());
+            cn.connections = new ArrayList(newArc.getOriginaledges());
         } else {
             cn.arc = newArc.toGeometry().clone();
+            cn.connections = new ArrayList(newArc.getOriginaledges());
         }
-        cn.connections = new ArrayList(newArc.getOriginaledges());
         cn.stroke = oldArc1.getStroke();
 
         connectionMap.put(newArc, cn);
     }
 
     public void updateCross(int newcomplexity, double operationcost, StrokeCross sc) {
+        invalidate();
+
         StationNode old = interchangeMap.get(sc);
 
         StationNode sn = new StationNode();
@@ -256,104 +684,581 @@ public class SchematizationStore {
         old.parent = sn;
         sn.station = old.station;
         sn.mindisk = sc.getSmallestDisc().clone();
-        sn.points = new ArrayList(); // TODO
-        sn.cross = new StrokeCross(sc);
+        if (compact) {
+            recordPositions(sn, sc);
+        } else {
+            sn.points = new ArrayList(); // TODO
+            sn.cross = new StrokeCross(sc);
+        }
 
         interchangeMap.put(sc, sn);
     }
 
-    public QueryResult query(int maxcomplexity) {
-        QueryResult result = new QueryResult();
+    /**
+     * Takes back the last removeStation for the vertex and returns the node
+     * it added, to give to reapplyStation when the step is redone. Changes
+     * must be taken back in reverse order.
+     */
+    public StationNode revertStation(StrokeVertex sv) {
+        invalidate();
 
-        // gather stations
-        result.stations = new ArrayList();
-        for (StationNode sn : stationMap.values()) {
-            StationNode trav = sn;
-            while (maxcomplexity > trav.appearsAtComplexity) {
-                trav = trav.child;
+        StationNode sn = stationMap.get(sv);
+        sn.child.parent = null;
+        stationMap.put(sv, sn.child);
+        return sn;
+    }
+
+    public void reapplyStation(StrokeVertex sv, StationNode sn) {
+        invalidate();
+
+        sn.child.parent = sn;
+        stationMap.put(sv, sn);
+    }
+
+    /**
+     * Takes back the last updateCross for the cross and returns the node it
+     * added.
+     */
+    public StationNode revertCross(StrokeCross sc) {
+        invalidate();
+
+        StationNode sn = interchangeMap.get(sc);
+        sn.child.parent = null;
+        interchangeMap.put(sc, sn.child);
+        if (compact) {
+            // the last recorded positions of the changed strokes are those of older nodes
+            Map<Stroke, Vector> last = positions.get(sc);
+            for (Stroke s : sn.posstrokes) {
+                last.remove(s);
+                for (StationNode trav = sn.child; trav != null; trav = trav.child) {
+                    int j = Arrays.asList(trav.posstrokes).indexOf(s);
+                    if (j >= 0) {
+                        if (!Double.isNaN(trav.pos[2 * j])) {
+                            last.put(s, new Vector(trav.pos[2 * j], trav.pos[2 * j + 1]));
+                        }
+                        break;
+                    }
+                }
             }
-            if (trav.station != null) {
-                // station actually exists...
-                result.stations.add(trav);
+        }
+        return sn;
+    }
+
+    public void reapplyCross(StrokeCross sc, StationNode sn) {
+        invalidate();
+
+        sn.child.parent = sn;
+        interchangeMap.put(sc, sn);
+        if (compact) {
+            Map<Stroke, Vector> last = positions.get(sc);
+            for (int j = 0; j < sn.posstrokes.length; j++) {
+                if (Double.isNaN(sn.pos[2 * j])) {
+                    last.remove(sn.posstrokes[j]);
+                } else {
+                    last.put(sn.posstrokes[j], new Vector(sn.pos[2 * j], sn.pos[2 * j + 1]));
+                }
             }
         }
-        for (StationNode sn : interchangeMap.values()) {
-            StationNode trav = sn;
-            while (maxcomplexity > trav.appearsAtComplexity) {
-                trav = trav.child;
+    }
+
+    /**
+     * Takes back the last replaceArc with the given arcs and returns the node
+     * it added.
+     */
+    public ConnectionNode revertArc(StrokeArc oldArc1, StrokeArc oldArc2, StrokeArc newArc) {
+        invalidate();
+
+        ConnectionNode cn = connectionMap.remove(newArc);
+        ConnectionNode old1 = cn.children.get(0);
+        old1.parent = null;
+        connectionMap.put(oldArc1, old1);
+        if (oldArc2 != null) {
+            ConnectionNode old2 = cn.children.get(1);
+            old2.parent = null;
+            connectionMap.put(oldArc2, old2);
+        }
+        return cn;
+    }
+
+    public void reapplyArc(StrokeArc oldArc1, StrokeArc oldArc2, StrokeArc newArc, ConnectionNode cn) {
+        invalidate();
+
+        connectionMap.remove(oldArc1);
+        if (oldArc2 != null) {
+            connectionMap.remove(oldArc2);
+        }
+        for (ConnectionNode child : cn.children) {
+            child.parent = cn;
+        }
+        connectionMap.put(newArc, cn);
+    }
+
+    private void setArc(ConnectionNode cn, StrokeArc sa) {
+        if (arccount == arcflags.length) {
+            for (int i = 0; i < arcs.length; i++) {
+                arcs[i] = Arrays.copyOf(arcs[i], 2 * arccount);
             }
-            if (trav.station != null) {
-                // station actually exists...
-                result.stations.add(trav);
+            arcflags = Arrays.copyOf(arcflags, 2 * arccount);
+        }
+        CircularArc arc = sa.toGeometry();
+        boolean fullcircle = arc instanceof FullCircleArc;
+        Vector center = fullcircle ? sa.getCenter() : arc.getCenter();
+        Vector start = fullcircle ? sa.getStart() : arc.getStart();
+        Vector end = fullcircle ? sa.getStart() : arc.getEnd();
+        arcs[0][arccount] = start.getX();
+        arcs[1][arccount] = start.getY();
+        arcs[2][arccount] = end.getX();
+        arcs[3][arccount] = end.getY();
+        arcs[4][arccount] = center == null ? Double.NaN : center.getX();
+        arcs[5][arccount] = center == null ? Double.NaN : center.getY();
+        arcflags[arccount] = (byte) ((fullcircle ? MappedStore.FULLCIRCLE : 0)
+                | ((fullcircle ? !sa.isClockwise() : arc.isCounterclockwise()) ? MappedStore.COUNTERCLOCKWISE : 0));
+        cn.arcindex = arccount++;
+    }
+
+    private void setConnections(ConnectionNode cn, List<MetroConnection> connections) {
+        while (edgecount + connections.size() > edges.length) {
+            edges = Arrays.copyOf(edges, 2 * edges.length);
+        }
+        cn.edgestart = edgecount;
+        cn.edgecount = connections.size();
+        for (MetroConnection mc : connections) {
+            Integer index = edgeindex.get(mc);
+            if (index == null) {
+                index = edgetable.size();
+                edgetable.add(mc);
+                edgeindex.put(mc, index);
             }
+            edges[edgecount++] = index;
         }
+    }
 
-        // gather connections
-        result.connections = new ArrayList();
-        for (ConnectionNode cn : connectionMap.values()) {
-            LinkedList<ConnectionNode> travs = new LinkedList();
-            travs.add(cn);
-            while (!travs.isEmpty()) {
-                ConnectionNode trav = travs.removeFirst();
+    // the edges of the first child followed by those of the second, which
+    // continue its range or wrap around to the start of the stroke
+    private void joinConnections(ConnectionNode cn, ConnectionNode first, ConnectionNode second) {
+        cn.edgestart = first.edgestart;
+        cn.edgecount = first.edgecount;
+        cn.wrapstart = first.wrapstart;
+        cn.wrapcount = first.wrapcount;
+        if (second == null) {
+            return;
+        }
+        if (cn.wrapcount > 0) {
+            cn.wrapcount += second.edgecount;
+        } else if (second.edgestart == cn.edgestart + cn.edgecount) {
+            cn.edgecount += second.edgecount;
+            cn.wrapstart = second.wrapstart;
+            cn.wrapcount = second.wrapcount;
+        } else {
+            cn.wrapstart = second.edgestart;
+            cn.wrapcount = second.edgecount;
+        }
+    }
 
-                if (maxcomplexity > trav.appearsAtComplexity) {
-                    // queue children
-                    travs.addAll(trav.children);
-                } else {
-                    // add it!
-                    trav.convertVirtuals(maxcomplexity);
-                    result.connections.add(trav);
-                }
+    // the virtual positions of the cross that differ from those last recorded for it
+    private void recordPositions(StationNode sn, StrokeCross sc) {
+        Map<Stroke, Vector> last = positions.get(sc);
+        if (last == null) {
+            last = new HashMap();
+            positions.put(sc, last);
+        }
+        List<Stroke> changed = new ArrayList();
+        List<Vector> values = new ArrayList();
+        for (Stroke s : sc.getStrokes()) {
+            Vector v = sc.getVirtualPos(s);
+            if (v != null && !v.equals(last.get(s))) {
+                changed.add(s);
+                values.add(v.clone());
+            }
+        }
+        for (Stroke s : last.keySet()) {
+            if (sc.getVirtualPos(s) == null) {
+                changed.add(s);
+                values.add(null);
             }
         }
+        sn.posstrokes = changed.toArray(new Stroke[changed.size()]);
+        sn.pos = new double[2 * changed.size()];
+        for (int i = 0; i < changed.size(); i++) {
+            Vector v = values.get(i);
+            sn.pos[2 * i] = v == null ? Double.NaN : v.getX();
+            sn.pos[2 * i + 1] = v == null ? Double.NaN : v.getY();
+            if (v == null) {
+                last.remove(changed.get(i));
+            } else {
+                last.put(changed.get(i), v);
+            }
+        }
+    }
+
+    public QueryResult query(int maxcomplexity) {
+        buildIndex();
+
+        QueryResult result = new QueryResult();
+        result.stations = stationsByComplexity.query(maxcomplexity);
+        result.connections = connectionsByComplexity.query(maxcomplexity);
+        Map<StationNode, StrokeCross> crosses = new HashMap();
+        result.virtualCrosses = new HashMap();
+        for (ConnectionNode cn : result.connections) {
+            cn.convertVirtuals(maxcomplexity, crosses);
+            result.virtualCrosses.put(cn, cn.realVirtuals);
+        }
+        return result;
+    }
 
+    /**
+     * Turns the finished store into an immutable one for concurrent queries.
+     * The store can no longer be changed afterwards; it can still be queried
+     * and written, but only the returned store is safe to query from several
+     * threads.
+     */
+    public PublishedStore freeze() {
+        buildIndex();
+        frozen = true;
+        return new PublishedStore(this);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    // a query that leaves the nodes untouched, for the published store
+    QueryResult queryFrozen(double level, boolean bycost) {
+        QueryResult result = new QueryResult();
+        result.stations = bycost ? stationsByCost.query(-level) : stationsByComplexity.query(level);
+        result.connections = bycost ? connectionsByCost.query(-level) : connectionsByComplexity.query(level);
+        Map<StationNode, StrokeCross> crosses = new HashMap();
+        result.virtualCrosses = new HashMap();
+        for (ConnectionNode cn : result.connections) {
+            result.virtualCrosses.put(cn, cn.resolveVirtuals(level, bycost, crosses));
+        }
         return result;
     }
 
+    /**
+     * Returns the nodes that appear and disappear when going from the query
+     * result at one complexity to that at another, in time proportional to
+     * the number of changes between them. Added connections have their
+     * virtual crosses converted for the target complexity.
+     */
+    public Delta delta(int fromComplexity, int toComplexity) {
+        buildIndex();
+        return delta(stationsByComplexity, connectionsByComplexity, fromComplexity, toComplexity);
+    }
+
+    private static int checkCount(long count, String what) throws IOException {
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("The store has " + count + " " + what + ", more than the " + Integer.MAX_VALUE + " its layout can index");
+        }
+        return (int) count;
+    }
+
+    public Cursor cursor(int complexity) {
+        return new Cursor(complexity);
+    }
+
+    private Delta delta(Timeline<StationNode> stations, Timeline<ConnectionNode> connections, int from, int to) {
+        Delta delta = new Delta();
+        stations.delta(from, to, delta.addedStations, delta.removedStations);
+        connections.delta(from, to, delta.addedConnections, delta.removedConnections);
+        Map<StationNode, StrokeCross> crosses = new HashMap();
+        for (ConnectionNode cn : delta.addedConnections) {
+            cn.convertVirtuals(to, crosses);
+        }
+        return delta;
+    }
+
+    /**
+     * Returns the network at the last step whose cost, taken as the maximum
+     * over the operations so far, is at most the given cost.
+     */
     public QueryResult query(double maxcost) {
+        buildIndex();
+
         QueryResult result = new QueryResult();
+        result.stations = stationsByCost.query(-maxcost);
+        result.connections = connectionsByCost.query(-maxcost);
+        return result;
+    }
 
-        // gather stations
-        result.stations = new ArrayList();
-        for (StationNode sn : stationMap.values()) {
-            StationNode trav = sn;
-            while (maxcost > trav.appearsAtCost) {
-                trav = trav.child;
+    /**
+     * Writes the store in the layout read by MappedStore: a header, the
+     * station and connection nodes as fixed-size records, the child,
+     * virtual-cross and connection-id references, a string table and the
+     * four timelines. The connection ids are written once per initial arc;
+     * a merged connection refers to the range covering its children. Fails
+     * if a count does not fit the int fields of the layout.
+     */
+    public void write(File file) throws IOException {
+        buildIndex();
+
+        List<ConnectionNode> connections = new ArrayList();
+        Map<Object, Integer> connectionindex = new HashMap();
+        ArrayDeque<ConnectionNode> queue = new ArrayDeque(connectionMap.values());
+        while (!queue.isEmpty()) {
+            ConnectionNode cn = queue.poll();
+            connectionindex.put(cn, connections.size());
+            connections.add(cn);
+            if (cn.children != null) {
+                queue.addAll(cn.children);
             }
-            if (trav.station != null) {
-                // station actually exists...
-                result.stations.add(trav);
+        }
+
+        // stations chain by chain, from newest to oldest, including the
+        // chains of virtual crosses that are no longer in the maps
+        List<StationNode> stations = new ArrayList();
+        Map<Object, Integer> stationindex = new HashMap();
+        Map<StationNode, Integer> chainhead = new HashMap();
+        List<StationNode> heads = new ArrayList(stationMap.values());
+        heads.addAll(interchangeMap.values());
+        for (ConnectionNode cn : connections) {
+            for (StationNode sn : cn.virtuals) {
+                if (sn != null) {
+                    while (sn.parent != null) {
+                        sn = sn.parent;
+                    }
+                    heads.add(sn);
+                }
             }
         }
-        for (StationNode sn : interchangeMap.values()) {
-            StationNode trav = sn;
-            while (maxcost > trav.appearsAtCost) {
-                trav = trav.child;
+        for (StationNode head : heads) {
+            if (stationindex.containsKey(head)) {
+                continue;
             }
-            if (trav.station != null) {
-                // station actually exists...
-                result.stations.add(trav);
+            for (StationNode trav = head; trav != null; trav = trav.child) {
+                stationindex.put(trav, stations.size());
+                chainhead.put(trav, stationindex.get(head));
+                stations.add(trav);
             }
         }
 
-        // gather connections
-        result.connections = new ArrayList();
-        for (ConnectionNode cn : connectionMap.values()) {
-            LinkedList<ConnectionNode> travs = new LinkedList();
-            travs.add(cn);
-            while (!travs.isEmpty()) {
-                ConnectionNode trav = travs.removeFirst();
-
-                if (maxcost > trav.appearsAtCost) {
-                    // queue children
-                    travs.addAll(trav.children);
+        // the connection ids of a node are those of its children in order, so
+        // laying out the ids of the initial arcs in depth-first order of the
+        // merge trees makes the ids of every node a range in that layout
+        int[] idstart = new int[connections.size()];
+        int[] idcount = new int[connections.size()];
+        List<ConnectionNode> leaves = new ArrayList();
+        long connectionids = 0;
+        ArrayDeque<ConnectionNode> stack = new ArrayDeque();
+        for (ConnectionNode root : connections) {
+            if (root.parent != null) {
+                continue;
+            }
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                ConnectionNode cn = stack.peek();
+                int i = connectionindex.get(cn);
+                if (idcount[i] < 0) {
+                    // all children done
+                    stack.pop();
+                    idcount[i] = checkCount(connectionids - idstart[i], "connection ids");
+                } else if (cn.children == null) {
+                    stack.pop();
+                    idstart[i] = checkCount(connectionids, "connection ids");
+                    idcount[i] = cn.getConnections().size();
+                    connectionids += idcount[i];
+                    leaves.add(cn);
                 } else {
-                    // add it!
-                    result.connections.add(trav);
+                    idstart[i] = checkCount(connectionids, "connection ids");
+                    idcount[i] = -1;
+                    for (int c = cn.children.size() - 1; c >= 0; c--) {
+                        stack.push(cn.children.get(c));
+                    }
                 }
             }
         }
+        checkCount(connectionids, "connection ids");
 
-        return result;
+        List<String> strings = new ArrayList();
+        Map<String, Integer> stringindex = new HashMap();
+        long children = 0;
+        long virtuals = 0;
+        for (StationNode sn : stations) {
+            if (sn.station != null) {
+                stringindex.computeIfAbsent(sn.station.getId(), id -> {
+                    strings.add(id);
+                    return strings.size() - 1;
+                });
+            }
+        }
+        for (ConnectionNode cn : connections) {
+            children += cn.children == null ? 0 : cn.children.size();
+            virtuals += cn.virtuals.size();
+        }
+        checkCount(children, "children");
+        checkCount(virtuals, "virtual crosses");
+        for (ConnectionNode cn : leaves) {
+            for (MetroConnection mc : cn.getConnections()) {
+                stringindex.computeIfAbsent(mc.getId(), id -> {
+                    strings.add(id);
+                    return strings.size() - 1;
+                });
+            }
+        }
+        List<byte[]> encoded = new ArrayList();
+        long stringbytes = 0;
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            stringbytes += bytes.length;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MappedStore.MAGIC);
+            out.writeInt(MappedStore.VERSION);
+            out.writeInt(maxComplexity);
+            out.writeInt(stations.size());
+            out.writeInt(connections.size());
+            out.writeInt((int) children);
+            out.writeInt((int) virtuals);
+            out.writeInt((int) connectionids);
+            out.writeInt(strings.size());
+            out.writeLong(stringbytes);
+            for (int i = 44; i < MappedStore.HEADER; i += 4) {
+                out.writeInt(0);
+            }
+
+            for (StationNode sn : stations) {
+                out.writeInt(sn.appearsAtComplexity);
+                out.writeInt(sn.parent == null ? -1 : stationindex.get(sn.parent));
+                out.writeDouble(sn.appearsAtCost);
+                out.writeInt(sn.child == null ? -1 : stationindex.get(sn.child));
+                out.writeInt(sn.station == null ? -1 : stringindex.get(sn.station.getId()));
+                out.writeDouble(sn.mindisk == null ? Double.NaN : sn.mindisk.getCenter().getX());
+                out.writeDouble(sn.mindisk == null ? Double.NaN : sn.mindisk.getCenter().getY());
+                out.writeDouble(sn.mindisk == null ? Double.NaN : sn.mindisk.getRadius());
+                out.writeInt(chainhead.get(sn));
+                out.writeInt(sn.isCross() ? MappedStore.CROSS : 0);
+            }
+
+            int child = 0;
+            int virtual = 0;
+            for (ConnectionNode cn : connections) {
+                int count = cn.children == null ? 0 : cn.children.size();
+                out.writeInt(cn.appearsAtComplexity);
+                out.writeInt(cn.parent == null ? -1 : connectionindex.get(cn.parent));
+                out.writeDouble(cn.appearsAtCost);
+                out.writeInt(child);
+                out.writeInt(count);
+                CircularArc arc = cn.getArc();
+                out.writeDouble(arc.getStart().getX());
+                out.writeDouble(arc.getStart().getY());
+                out.writeDouble(arc.getEnd().getX());
+                out.writeDouble(arc.getEnd().getY());
+                out.writeDouble(arc.getCenter() == null ? Double.NaN : arc.getCenter().getX());
+                out.writeDouble(arc.getCenter() == null ? Double.NaN : arc.getCenter().getY());
+                out.writeInt((arc.isCounterclockwise() ? MappedStore.COUNTERCLOCKWISE : 0)
+                        | (arc instanceof FullCircleArc ? MappedStore.FULLCIRCLE : 0));
+                out.writeInt(virtual);
+                out.writeInt(cn.virtuals.size());
+                int i = connectionindex.get(cn);
+                assert idcount[i] == cn.getConnections().size();
+                out.writeInt(idstart[i]);
+                out.writeInt(idcount[i]);
+                out.writeInt(0);
+                child += count;
+                virtual += cn.virtuals.size();
+            }
+
+            for (ConnectionNode cn : connections) {
+                if (cn.children != null) {
+                    for (ConnectionNode c : cn.children) {
+                        out.writeInt(connectionindex.get(c));
+                    }
+                }
+            }
+            for (ConnectionNode cn : connections) {
+                for (StationNode sn : cn.virtuals) {
+                    out.writeInt(sn == null ? -1 : stationindex.get(sn));
+                }
+            }
+            for (ConnectionNode cn : leaves) {
+                for (MetroConnection mc : cn.getConnections()) {
+                    out.writeInt(stringindex.get(mc.getId()));
+                }
+            }
+
+            long offset = 0;
+            for (byte[] bytes : encoded) {
+                out.writeLong(offset);
+                offset += bytes.length;
+            }
+            out.writeLong(offset);
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+
+            stationsByComplexity.write(out, stationindex);
+            connectionsByComplexity.write(out, connectionindex);
+            stationsByCost.write(out, stationindex);
+            connectionsByCost.write(out, connectionindex);
+        }
+    }
+
+    private void invalidate() {
+        if (frozen) {
+            throw new IllegalStateException("The store is frozen");
+        }
+        stationsByComplexity = null;
+        stationsByCost = null;
+        connectionsByComplexity = null;
+        connectionsByCost = null;
+    }
+
+    private void buildIndex() {
+        if (stationsByComplexity != null) {
+            return;
+        }
+
+        // stations: a node is current from its own level up to the level of its parent
+        List<StationNode> stations = new ArrayList();
+        List<Double> complexitylo = new ArrayList();
+        List<Double> complexityhi = new ArrayList();
+        List<Double> costlo = new ArrayList();
+        List<Double> costhi = new ArrayList();
+        List<StationNode> heads = new ArrayList(stationMap.values());
+        heads.addAll(interchangeMap.values());
+        for (StationNode head : heads) {
+            List<StationNode> chain = new ArrayList();
+            for (StationNode trav = head; trav != null; trav = trav.child) {
+                chain.add(trav);
+                if (trav.station == null) {
+                    continue;
+                }
+                stations.add(trav);
+                complexitylo.add(trav.parent == null ? Double.NEGATIVE_INFINITY : (double) trav.parent.appearsAtComplexity);
+                complexityhi.add((double) trav.appearsAtComplexity);
+                costlo.add(trav.parent == null ? Double.NEGATIVE_INFINITY : -trav.parent.appearsAtCost);
+                costhi.add(-trav.appearsAtCost);
+            }
+            StationNode[] array = chain.toArray(new StationNode[chain.size()]);
+            for (int i = 0; i < array.length; i++) {
+                array[i].chain = array;
+                array[i].chainindex = i;
+            }
+        }
+        stationsByComplexity = new Timeline(stations, complexitylo, complexityhi);
+        stationsByCost = new Timeline(stations, costlo, costhi);
+
+        // connections: likewise, with the parent in the tree
+        List<ConnectionNode> connections = new ArrayList();
+        complexitylo.clear();
+        complexityhi.clear();
+        costlo.clear();
+        costhi.clear();
+        ArrayDeque<ConnectionNode> queue = new ArrayDeque(connectionMap.values());
+        while (!queue.isEmpty()) {
+            ConnectionNode cn = queue.poll();
+            connections.add(cn);
+            complexitylo.add(cn.parent == null ? Double.NEGATIVE_INFINITY : (double) cn.parent.appearsAtComplexity);
+            complexityhi.add((double) cn.appearsAtComplexity);
+            costlo.add(cn.parent == null ? Double.NEGATIVE_INFINITY : -cn.parent.appearsAtCost);
+            costhi.add(-cn.appearsAtCost);
+            if (cn.children != null) {
+                queue.addAll(cn.children);
+            }
+        }
+        connectionsByComplexity = new Timeline(connections, complexitylo, complexityhi);
+        connectionsByCost = new Timeline(connections, costlo, costhi);
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+
+/**
+ * A change made by a step of the schematization, as published by
+ * StepPublisher. Events do not refer to the live network: vertices, strokes
+ * and crosses are given by their index in the network at initialization
+ * (strokes in order, vertices in stroke order, crosses in order), and
+ * geometry by value, such that events can be consumed on other threads and
+ * replayed on a copy of the initial network.
+ *
+ * Every step publishes, per replaced vertex, an ARC_REPLACED event, an
+ * EXTENSION_APPLIED event per moved endpoint of an extended arc, a
+ * CROSS_MOVED event per affected cross and a VERTEX_REMOVED event, and
+ * finally a STEP_COMMITTED event. All events of a step carry the complexity
+ * after the step and the cost of its operation.
+ */
+public class StepEvent {
+
+    public enum Kind {
+        /**
+         * The network as it is at initialization, an independent copy.
+         */
+        INITIALIZED,
+        /**
+         * The arcs at a vertex were replaced by one arc: shape (as in
+         * NetworkHistory), center x and y, and clockwise.
+         */
+        ARC_REPLACED,
+        /**
+         * An endpoint of an extended arc moved to x and y; atstart tells
+         * whether it is the start of the arc.
+         */
+        EXTENSION_APPLIED,
+        /**
+         * The state of a cross after the replacement: the positions on its
+         * strokes, its intersections and its disc.
+         */
+        CROSS_MOVED,
+        /**
+         * The vertex was removed by the replacement.
+         */
+        VERTEX_REMOVED,
+        /**
+         * The step is complete.
+         */
+        STEP_COMMITTED
+    }
+
+    public final Kind kind;
+    public final int step;
+    public final int complexity;
+    public final double cost;
+    // ARC_REPLACED, EXTENSION_APPLIED and VERTEX_REMOVED: the vertex; CROSS_MOVED: the cross
+    public final int index;
+    // ARC_REPLACED: the shape and center; EXTENSION_APPLIED: the position and end
+    public final byte shape;
+    public final double x, y;
+    public final boolean flag;
+    // CROSS_MOVED: the strokes with a position, the positions, intersections and disc (x, y, radius)
+    public final int[] strokes;
+    public final double[] positions;
+    public final double[] intersections;
+    public final double[] disc;
+    // INITIALIZED
+    public final StrokeNetwork network;
+
+    StepEvent(Kind kind, int step, int complexity, double cost, int index, byte shape, double x, double y, boolean flag,
+            int[] strokes, double[] positions, double[] intersections, double[] disc, StrokeNetwork network) {
+        this.kind = kind;
+        this.step = step;
+        this.complexity = complexity;
+        this.cost = cost;
+        this.index = index;
+        this.shape = shape;
+        this.x = x;
+        this.y = y;
+        this.flag = flag;
+        this.strokes = strokes;
+        this.positions = positions;
+        this.intersections = intersections;
+        this.disc = disc;
+        this.network = network;
+    }
+
+    public static StepEvent initialized(StrokeNetwork network, int complexity) {
+        return new StepEvent(Kind.INITIALIZED, 0, complexity, 0, -1, (byte) 0, 0, 0, false, null, null, null, null, network);
+    }
+
+    public static StepEvent arcReplaced(int step, int complexity, double cost, int vertex, byte shape, double cx, double cy, boolean clockwise) {
+        return new StepEvent(Kind.ARC_REPLACED, step, complexity, cost, vertex, shape, cx, cy, clockwise, null, null, null, null, null);
+    }
+
+    public static StepEvent extensionApplied(int step, int complexity, double cost, int vertex, double x, double y, boolean atstart) {
+        return new StepEvent(Kind.EXTENSION_APPLIED, step, complexity, cost, vertex, (byte) 0, x, y, atstart, null, null, null, null, null);
+    }
+
+    public static StepEvent crossMoved(int step, int complexity, double cost, int cross, int[] strokes, double[] positions, double[] intersections, double[] disc) {
+        return new StepEvent(Kind.CROSS_MOVED, step, complexity, cost, cross, (byte) 0, 0, 0, false, strokes, positions, intersections, disc, null);
+    }
+
+    public static StepEvent vertexRemoved(int step, int complexity, double cost, int vertex) {
+        return new StepEvent(Kind.VERTEX_REMOVED, step, complexity, cost, vertex, (byte) 0, 0, 0, false, null, null, null, null, null);
+    }
+
+    public static StepEvent stepCommitted(int step, int complexity, double cost) {
+        return new StepEvent(Kind.STEP_COMMITTED, step, complexity, cost, -1, (byte) 0, 0, 0, false, null, null, null, null, null);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import nl.tue.geometrycore.geometry.Vector;
+
+/**
+ * Publishes the steps of a schematization as StepEvents to subscribers that
+ * consume them asynchronously. Each subscriber has a buffer of the given
+ * capacity; the schematization continues while every subscriber keeps up
+ * within its buffer, and waits for the slowest one otherwise. Events are only
+ * built while there are subscribers, which should subscribe before the
+ * schematization is initialized to receive the initial network.
+ *
+ * The publishing methods are called by IterativeSchematization on its own
+ * thread; close the publisher when the schematization is done. By default,
+ * subscribers run on threads of the publisher's own, as they typically block
+ * on file I/O, which should not take threads from the common pool; closing
+ * the publisher shuts these down once the subscribers have completed.
+ */
+public class StepPublisher extends SubmissionPublisher<StepEvent> {
+
+    private Map<StrokeVertex, Integer> vertexindex;
+    private Map<Stroke, Integer> strokeindex;
+    private Map<StrokeCross, Integer> crossindex;
+    private int step;
+    // the executor created by the publisher itself, null if it was given
+    private final ExecutorService owned;
+
+    public StepPublisher() {
+        this(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StepPublisher");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    private StepPublisher(ExecutorService owned) {
+        super(owned, 1024);
+        this.owned = owned;
+    }
+
+    public StepPublisher(Executor executor, int buffer) {
+        super(executor, buffer);
+        this.owned = null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (owned != null) {
+            // lets the subscribers finish their buffers and completion
+            owned.shutdown();
+        }
+    }
+
+    @Override
+    public void closeExceptionally(Throwable error) {
+        super.closeExceptionally(error);
+        if (owned != null) {
+            owned.shutdown();
+        }
+    }
+
+    public void initialize(StrokeNetwork network, int complexity) {
+        vertexindex = new HashMap();
+        strokeindex = new HashMap();
+        crossindex = new HashMap();
+        for (Stroke s : network.getStrokes()) {
+            strokeindex.put(s, strokeindex.size());
+            for (StrokeVertex sv : s.getVertices()) {
+                vertexindex.put(sv, vertexindex.size());
+            }
+        }
+        for (StrokeCross sc : network.getCrosses()) {
+            crossindex.put(sc, crossindex.size());
+        }
+        step = 0;
+        if (hasSubscribers()) {
+            submit(StepEvent.initialized(NetworkHistory.copy(network, null, null, null), complexity));
+        }
+    }
+
+    /**
+     * Continues publishing for the network of the replay, as if it had been
+     * initialized with the network the replay started from: indices refer to
+     * that network and steps are numbered on. No INITIALIZED event is
+     * published.
+     */
+    public void resume(StepReplay replay) {
+        vertexindex = new HashMap();
+        strokeindex = new HashMap();
+        crossindex = new HashMap();
+        for (StrokeVertex sv : replay.getVertices()) {
+            vertexindex.put(sv, vertexindex.size());
+        }
+        for (Stroke s : replay.getStrokes()) {
+            strokeindex.put(s, strokeindex.size());
+        }
+        for (StrokeCross sc : replay.getCrosses()) {
+            crossindex.put(sc, crossindex.size());
+        }
+        step = replay.getSteps();
+    }
+
+    public void arcReplaced(int complexity, double cost, StrokeVertex mid, StrokeArc newarc) {
+        if (hasSubscribers()) {
+            Vector center = newarc.getCenter();
+            submit(StepEvent.arcReplaced(step, complexity, cost, vertexindex.get(mid), NetworkHistory.shape(newarc),
+                    center == null ? 0 : center.getX(), center == null ? 0 : center.getY(), newarc.isClockwise()));
+        }
+    }
+
+    public void extensionApplied(int complexity, double cost, StrokeVertex moved, boolean atstart) {
+        if (hasSubscribers()) {
+            submit(StepEvent.extensionApplied(step, complexity, cost, vertexindex.get(moved), moved.getX(), moved.getY(), atstart));
+        }
+    }
+
+    public void crossMoved(int complexity, double cost, StrokeCross sc) {
+        if (!hasSubscribers()) {
+            return;
+        }
+        List<Stroke> positioned = new ArrayList();
+        for (Stroke s : sc.getStrokes()) {
+            if (sc.getVirtualPos(s) != null) {
+                positioned.add(s);
+            }
+        }
+        int[] strokes = new int[positioned.size()];
+        double[] positions = new double[2 * positioned.size()];
+        for (int j = 0; j < strokes.length; j++) {
+            Vector v = sc.getVirtualPos(positioned.get(j));
+            strokes[j] = strokeindex.get(positioned.get(j));
+            positions[2 * j] = v.getX();
+            positions[2 * j + 1] = v.getY();
+        }
+        List<Vector> inters = sc.getIntersections();
+        double[] intersections = new double[2 * inters.size()];
+        for (int j = 0; j < inters.size(); j++) {
+            intersections[2 * j] = inters.get(j).getX();
+            intersections[2 * j + 1] = inters.get(j).getY();
+        }
+        double[] disc = {sc.getSmallestDisc().getCenter().getX(), sc.getSmallestDisc().getCenter().getY(), sc.getSmallestDisc().getRadius()};
+        submit(StepEvent.crossMoved(step, complexity, cost, crossindex.get(sc), strokes, positions, intersections, disc));
+    }
+
+    public void vertexRemoved(int complexity, double cost, StrokeVertex mid) {
+        if (hasSubscribers()) {
+            submit(StepEvent.vertexRemoved(step, complexity, cost, vertexindex.get(mid)));
+        }
+    }
+
+    public void commit(int complexity, double cost) {
+        if (hasSubscribers()) {
+            submit(StepEvent.stepCommitted(step, complexity, cost));
+        }
+        step++;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.algo.store;
+
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import nl.tue.geometrycore.geometry.Vector;
+
+/**
+ * Applies StepEvents to the network they were published for, as it was at
+ * initialization, and optionally records them in a store as
+ * IterativeSchematization would have. The network is changed in place.
+ */
+public class StepReplay {
+
+    private final StrokeNetwork network;
+    private final SchematizationStore store;
+    private final List<StrokeVertex> vertices;
+    private final List<Stroke> strokes;
+    private final List<StrokeCross> crosses;
+    private int steps;
+    private int complexity;
+    // the replacement being replayed
+    private StrokeArc midInc, midOut, newarc;
+    private final Set<StrokeArc> extended;
+
+    public StepReplay(StrokeNetwork network, SchematizationStore store) {
+        this.network = network;
+        this.store = store;
+        vertices = new ArrayList();
+        strokes = new ArrayList();
+        crosses = new ArrayList();
+        for (Stroke s : network.getStrokes()) {
+            strokes.add(s);
+            vertices.addAll(s.getVertices());
+        }
+        crosses.addAll(network.getCrosses());
+        extended = new LinkedHashSet();
+        if (store != null) {
+            store.initialize(network);
+            complexity = store.getMaximumComplexity();
+        } else {
+            for (StrokeArc arc : network.getArcs()) {
+                complexity++;
+            }
+        }
+    }
+
+    public StrokeNetwork getNetwork() {
+        return network;
+    }
+
+    public SchematizationStore getStore() {
+        return store;
+    }
+
+    List<StrokeVertex> getVertices() {
+        return vertices;
+    }
+
+    List<Stroke> getStrokes() {
+        return strokes;
+    }
+
+    List<StrokeCross> getCrosses() {
+        return crosses;
+    }
+
+    /**
+     * The complexity after the steps committed so far.
+     */
+    public int getComplexity() {
+        return complexity;
+    }
+
+    /**
+     * The number of steps committed so far.
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    public void apply(StepEvent event) {
+        switch (event.kind) {
+            case ARC_REPLACED: {
+                StrokeVertex mid = vertices.get(event.index);
+                midInc = mid.getIncoming();
+                midOut = mid.getOutgoing();
+                newarc = NetworkHistory.replace(mid, event.shape, event.x, event.y, event.flag);
+                extended.clear();
+                break;
+            }
+            case EXTENSION_APPLIED: {
+                StrokeVertex sv = vertices.get(event.index);
+                sv.set(new Vector(event.x, event.y));
+                extended.add(event.flag ? sv.getOutgoing() : sv.getIncoming());
+                break;
+            }
+            case CROSS_MOVED:
+                NetworkHistory.setCross(crosses.get(event.index), strokes, event.strokes, event.positions, event.intersections,
+                        event.disc[0], event.disc[1], event.disc[2]);
+                break;
+            case VERTEX_REMOVED:
+                if (store != null) {
+                    // as in IterativeSchematization.perform
+                    StrokeVertex mid = vertices.get(event.index);
+                    if (mid.getCross() == null) {
+                        store.removeStation(event.complexity, event.cost, mid);
+                    } else {
+                        store.updateCross(event.complexity, event.cost, mid.getCross());
+                    }
+                    for (StrokeCross sc : newarc.getVirtuals()) {
+                        if (sc != mid.getCross()) {
+                            store.updateCross(event.complexity, event.cost, sc);
+                        }
+                    }
+                    store.replaceArc(event.complexity, event.cost, midInc, midOut, newarc);
+                    for (StrokeArc arc : extended) {
+                        store.replaceArc(event.complexity, event.cost, arc, null, arc);
+                    }
+                }
+                midInc = null;
+                midOut = null;
+                newarc = null;
+                extended.clear();
+                break;
+            case STEP_COMMITTED:
+                steps++;
+                complexity = event.complexity;
+                break;
+            default:
+                break;
+        }
+    }
+}
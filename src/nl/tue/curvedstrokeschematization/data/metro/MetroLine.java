@@ -10,22 +10,30 @@
 package nl.tue.curvedstrokeschematization.data.metro;
 
 import java.awt.Color;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Arthur van Goethem (a.i.v.goethem@tue.nl)
  */
 public class MetroLine
 {
+    private static final AtomicInteger counter = new AtomicInteger();
+
     String label;
     Color color;
     ArrayList<MetroConnection> connections;
+    // identifies the line in the line filters of stations
+    final int index;
     
     public MetroLine(String label, Color color)
     {
         this.label = label;
         this.color = color;
         connections = new ArrayList<MetroConnection>();
+        index = counter.getAndIncrement();
     }
     
     public String getLabel()
@@ -76,48 +84,55 @@ public class MetroLine
     {
         if (connections.size() == 0)
             return;
-         
-        //O(n^2)
-        ArrayList<MetroConnection> sortedConnections     = new ArrayList<MetroConnection>();
-        ArrayList<MetroConnection> fullSortedConnections = new ArrayList<MetroConnection>();
         
-        sortedConnections.add(connections.get(0));
-        connections.remove(0);
-        MetroStation startStation = sortedConnections.get(0).getBeginStation();
-        MetroStation endStation = sortedConnections.get(0).getEndStation();
-        while (connections.size() > 0)
+        // a chain is extended by the first remaining connection (in list order) at
+        // either of its ends; per station, a cursor skips the connections already used
+        int n = connections.size();
+        HashMap<MetroStation, Incidences> incidences = new HashMap<MetroStation, Incidences>();
+        for (int i = 0; i < n; i++)
         {
-            int sizeBefore = connections.size();
-            for (int i = 0; i < connections.size(); i++)
+            incidences(incidences, connections.get(i).getBeginStation()).add(i);
+            incidences(incidences, connections.get(i).getEndStation()).add(i);
+        }
+        boolean[] used = new boolean[n];
+        
+        ArrayDeque<MetroConnection> sortedConnections = new ArrayDeque<MetroConnection>();
+        ArrayList<MetroConnection> fullSortedConnections = new ArrayList<MetroConnection>();
+        int first = 0;
+        int remaining = n;
+        while (remaining > 0)
+        {
+            while (used[first])
+                first++;
+            MetroConnection start = connections.get(first);
+            used[first] = true;
+            remaining--;
+            sortedConnections.add(start);
+            MetroStation startStation = start.getBeginStation();
+            MetroStation endStation = start.getEndStation();
+            
+            while (remaining > 0)
             {
-                if (connections.get(i).getBeginStation() == startStation || connections.get(i).getEndStation() == startStation)
+                int i = Math.min(incidences.get(startStation).first(used), incidences.get(endStation).first(used));
+                if (i == Integer.MAX_VALUE)
+                    break;
+                MetroConnection mc = connections.get(i);
+                used[i] = true;
+                remaining--;
+                if (mc.getBeginStation() == startStation || mc.getEndStation() == startStation)
                 {
-                    sortedConnections.add(0, connections.get(i));
-                    startStation = connections.get(i).theOther(startStation);
-                    connections.remove(i);                
-                    i = -1;
+                    sortedConnections.addFirst(mc);
+                    startStation = mc.theOther(startStation);
                 }
-                else if (connections.get(i).getBeginStation() == endStation || connections.get(i).getEndStation() == endStation)
+                else
                 {
-                    sortedConnections.add(connections.get(i));
-                    endStation = connections.get(i).theOther(endStation);
-                    connections.remove(i);                
-                    i = -1;                
+                    sortedConnections.addLast(mc);
+                    endStation = mc.theOther(endStation);
                 }
             }
-            int sizeAfter = connections.size();
-            
-            if (sizeBefore == sizeAfter)
-            {
-                fullSortedConnections.addAll(sortedConnections);
-                sortedConnections.clear();
-                sortedConnections.add(connections.get(0));
-                connections.remove(0);
-                startStation = sortedConnections.get(0).getBeginStation();
-                endStation   = sortedConnections.get(0).getEndStation();
-            }
+            fullSortedConnections.addAll(sortedConnections);
+            sortedConnections.clear();
         }
-        fullSortedConnections.addAll(sortedConnections);
         connections = fullSortedConnections;
         
         if (connections.size() > 1)
@@ -135,6 +150,30 @@ public class MetroLine
         }
     }
     
+    private static Incidences incidences(HashMap<MetroStation, Incidences> incidences, MetroStation ms)
+    {
+        Incidences inc = incidences.get(ms);
+        if (inc == null)
+        {
+            inc = new Incidences();
+            incidences.put(ms, inc);
+        }
+        return inc;
+    }
+    
+    // indices of the connections at a station, in increasing order
+    private static class Incidences extends ArrayList<Integer>
+    {
+        int next = 0;
+        
+        int first(boolean[] used)
+        {
+            while (next < size() && used[get(next)])
+                next++;
+            return next < size() ? get(next) : Integer.MAX_VALUE;
+        }
+    }
+    
     public String outputLine()
     {
         ArrayList<MetroStation> stations = getStations();
@@ -10,10 +10,15 @@
 package nl.tue.curvedstrokeschematization.data.metro;
 
 import java.awt.Color;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import nl.tue.geometrycore.geometry.Vector;
 
 /**
@@ -38,12 +43,8 @@ public class MetroNetwork {
             connections.put(id, connection);
         }
 
-        if (!vA.getLines().contains(line)) {
-            vA.getLines().add(line);
-        }
-        if (!vB.getLines().contains(line)) {
-            vB.getLines().add(line);
-        }
+        vA.addLine(line);
+        vB.addLine(line);
 
         connection.getLines().add(line);
         line.addConnection(connection);
@@ -95,6 +96,82 @@ public class MetroNetwork {
         return lines.values();
     }
 
+    public Set<Map.Entry<String, MetroLine>> getLineEntries() {
+        return lines.entrySet();
+    }
+
+    /**
+     * Splits the network into its connected components. The components share
+     * the station, connection and line objects with this network; a line that
+     * spans several components is added to each of them.
+     */
+    public List<MetroNetwork> getComponents() {
+        Map<MetroLine, String> lineIds = new HashMap();
+        for (Map.Entry<String, MetroLine> entry : lines.entrySet()) {
+            lineIds.put(entry.getValue(), entry.getKey());
+        }
+
+        List<MetroStation> order = new ArrayList(stations.values());
+        order.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+
+        List<MetroNetwork> components = new ArrayList();
+        Set<MetroStation> visited = new HashSet();
+        for (MetroStation root : order) {
+            if (!visited.add(root)) {
+                continue;
+            }
+
+            MetroNetwork component = new MetroNetwork();
+            Deque<MetroStation> queue = new ArrayDeque();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                MetroStation ms = queue.poll();
+                component.stations.put(ms.getId(), ms);
+                for (MetroConnection mc : ms.getConnections()) {
+                    component.connections.put(mc.getId(), mc);
+                    for (MetroLine ml : mc.getLines()) {
+                        component.lines.put(lineIds.get(ml), ml);
+                    }
+                    MetroStation other = mc.theOther(ms);
+                    if (visited.add(other)) {
+                        queue.add(other);
+                    }
+                }
+            }
+            components.add(component);
+        }
+        return components;
+    }
+
+    /**
+     * Adds the stations, connections and lines of another network, sharing
+     * the objects, e.g. to join components again.
+     */
+    public void addAll(MetroNetwork other) {
+        stations.putAll(other.stations);
+        connections.putAll(other.connections);
+        lines.putAll(other.lines);
+    }
+
+    /**
+     * Trims the adjacency lists of the stations, connections and lines to
+     * their sizes, and drops the neighbour index of stations whose degree
+     * has become low, for large networks read from files.
+     */
+    public void trimToSize() {
+        for (MetroStation ms : stations.values()) {
+            ms.trimToSize();
+        }
+        for (MetroConnection mc : connections.values()) {
+            if (mc.lines != null) {
+                mc.lines.trimToSize();
+            }
+        }
+        for (MetroLine ml : lines.values()) {
+            ml.connections.trimToSize();
+        }
+    }
+
     public void finish() {
         for (MetroLine l : lines.values()) {
             l.sortConnections();
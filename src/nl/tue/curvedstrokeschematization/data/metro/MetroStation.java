@@ -10,6 +10,7 @@
 package nl.tue.curvedstrokeschematization.data.metro;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import nl.tue.geometrycore.geometry.Vector;
 
 /**
@@ -17,11 +18,18 @@ import nl.tue.geometrycore.geometry.Vector;
  */
 public class MetroStation extends Vector {
 
+    private static final int INDEX_DEGREE = 8;
+
     int index;
     String id;
     String label;
     ArrayList<MetroConnection> connections;
+    // a connection to each neighbour, verified on use as connections may be rerouted;
+    // only kept for stations of high degree, as scanning a few connections is cheaper
+    HashMap<MetroStation, MetroConnection> neighbours;
     ArrayList<MetroLine> lines;
+    // filter on the lines at this station: bit (index mod 64) is set for each line
+    long linemask;
     boolean planarizationStation;
 
     public MetroStation(int index, Vector pos, String id, String label, boolean planarizationStation) {
@@ -31,7 +39,9 @@ public class MetroStation extends Vector {
         this.label = label;
         this.planarizationStation = planarizationStation;
         connections = new ArrayList<MetroConnection>();
+        neighbours = null;
         lines = new ArrayList<MetroLine>();
+        linemask = 0;
     }
 
     public boolean isPlanarizationStation() {
@@ -55,38 +65,92 @@ public class MetroStation extends Vector {
     }
 
     public MetroConnection getConnectionTo(MetroStation m) {
-        for (MetroConnection c : connections) {
-            if ((c.getBeginStation() == this && c.getEndStation() == m)
-                    || (c.getEndStation() == this && c.getBeginStation() == m)) {
-                return c;
-            }
+        MetroConnection c = findConnectionTo(m);
+        if (c == null) {
+            System.out.println("ERROR: no connection to metro station");
         }
-        System.out.println("ERROR: no connection to metro station");
-        return null;
+        return c;
     }
 
     public void addConnection(MetroConnection m) {
         connections.add(m);
+        if (neighbours != null) {
+            MetroStation other = m.getBeginStation() == this ? m.getEndStation() : m.getBeginStation();
+            if (!connects(neighbours.get(other), other)) {
+                neighbours.put(other, m);
+            }
+        } else if (connections.size() > INDEX_DEGREE) {
+            indexNeighbours();
+        }
         if (m.getLines() != null) {
             for (MetroLine ml : m.getLines()) {
-                if (!lines.contains(ml)) {
-                    lines.add(ml);
-                }
+                addLine(ml);
             }
         }
     }
 
     public void removeConnectionTo(MetroStation m) {
-        for (int i = 0; i < connections.size(); i++) {
-            MetroConnection mc = connections.get(i);
-            if (mc.theOther(this) == m) {
-                connections.remove(mc);
-                return;
+        MetroConnection mc = findConnectionTo(m);
+        if (mc != null) {
+            connections.remove(mc);
+            if (neighbours != null) {
+                neighbours.remove(m);
             }
+            return;
         }
         assert false : "Connection not found";
     }
 
+    private MetroConnection findConnectionTo(MetroStation m) {
+        if (neighbours != null) {
+            MetroConnection c = neighbours.get(m);
+            if (connects(c, m)) {
+                return c;
+            }
+        }
+        // no index, or it is stale or misses a parallel connection
+        for (MetroConnection mc : connections) {
+            if (connects(mc, m)) {
+                if (neighbours != null) {
+                    neighbours.put(m, mc);
+                }
+                return mc;
+            }
+        }
+        return null;
+    }
+
+    private void indexNeighbours() {
+        neighbours = new HashMap<MetroStation, MetroConnection>();
+        for (MetroConnection mc : connections) {
+            MetroStation other = mc.theOther(this);
+            if (!neighbours.containsKey(other)) {
+                neighbours.put(other, mc);
+            }
+        }
+    }
+
+    void trimToSize() {
+        connections.trimToSize();
+        lines.trimToSize();
+        if (connections.size() <= INDEX_DEGREE) {
+            neighbours = null;
+        }
+    }
+
+    private boolean connects(MetroConnection c, MetroStation m) {
+        return c != null && ((c.getBeginStation() == this && c.getEndStation() == m)
+                || (c.getEndStation() == this && c.getBeginStation() == m));
+    }
+
+    public void addLine(MetroLine ml) {
+        long bit = 1L << (ml.index & 63);
+        if ((linemask & bit) == 0 || !lines.contains(ml)) {
+            linemask |= bit;
+            lines.add(ml);
+        }
+    }
+
     public ArrayList<MetroLine> getLines() {
         return lines;
     }
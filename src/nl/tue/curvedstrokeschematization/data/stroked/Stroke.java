@@ -10,6 +10,7 @@
 package nl.tue.curvedstrokeschematization.data.stroked;
 
 import java.util.List;
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
 
 /**
  *
@@ -18,17 +19,39 @@ import java.util.List;
  */
 public class Stroke {
 
-    private List<StrokeVertex> vertices;
+    private StrokeVertexList vertices;
     private boolean circular;
 
     public Stroke(List<StrokeVertex> vertices, boolean circular) {
-        this.vertices = vertices;
+        this.vertices = new StrokeVertexList(vertices);
         this.circular = circular;
         for (StrokeVertex sv : vertices) {
             sv.setStroke(this);
         }
     }
 
+    /**
+     * Replaces the vertices of this stroke, for instance after (parts of) the
+     * stroke were simplified as separate strokes. The strokes that had the
+     * vertices must have been released.
+     */
+    public void resetVertices(List<StrokeVertex> vertices) {
+        this.vertices.release();
+        this.vertices = new StrokeVertexList(vertices);
+        for (StrokeVertex sv : vertices) {
+            sv.setStroke(this);
+        }
+    }
+
+    /**
+     * Hands the vertices of this stroke over, such that new strokes can be
+     * made of them. Its vertex list can still be read by position, but the
+     * stroke should no longer be used.
+     */
+    public void release() {
+        vertices.release();
+    }
+
     public boolean isCircular() {
         return circular;
     }
@@ -52,12 +75,11 @@ public class Stroke {
     }
     
     public boolean contains(StrokeVertex sv) {
-        for (StrokeVertex v : vertices)
-        {
-            if (v == sv)
-                return true;
-        }
-        return false;
+        return vertices.contains(sv);
+    }
+
+    public boolean containsOriginal(MetroStation station) {
+        return vertices.containsOriginal(station);
     }
 
     public int getArcCount() {
@@ -38,6 +38,8 @@ public class StrokeArc implements GeometryConvertable<CircularArc> {
     private CircularArc arc = null;
     // interchange stations along the arc
     private List<StrokeCross> virtuals;
+    // packed x,y coordinates of the original stations from start to end, built lazily
+    private volatile double[] originalcoords = null;
 
     public StrokeArc(StrokeVertex point, FullCircleArc fca, List<StrokeCross> virtuals, List<MetroConnection> originaledges) {
         this.start = point;
@@ -72,6 +74,41 @@ public class StrokeArc implements GeometryConvertable<CircularArc> {
         return originaledges;
     }
 
+    public double[] getOriginalCoordinates() {
+        double[] coords = originalcoords;
+        if (coords == null) {
+            // filled before it is published, as arcs may be read concurrently
+            coords = new double[2 * (originaledges.size() + 1)];
+            MetroStation station = start.getOriginal();
+            coords[0] = station.getX();
+            coords[1] = station.getY();
+            int i = 2;
+            for (MetroConnection connect : originaledges) {
+                station = connect.theOther(station);
+                coords[i++] = station.getX();
+                coords[i++] = station.getY();
+            }
+            originalcoords = coords;
+        }
+        return coords;
+    }
+
+    public void setOriginalCoordinates(double[] originalcoords) {
+        this.originalcoords = originalcoords;
+    }
+
+    public static double[] joinOriginalCoordinates(StrokeArc first, StrokeArc second) {
+        return joinOriginalCoordinates(first.getOriginalCoordinates(), second.getOriginalCoordinates());
+    }
+
+    public static double[] joinOriginalCoordinates(double[] a, double[] b) {
+        // the end of the first is the start of the second
+        double[] joint = new double[a.length + b.length - 2];
+        System.arraycopy(a, 0, joint, 0, a.length);
+        System.arraycopy(b, 2, joint, a.length, b.length - 2);
+        return joint;
+    }
+
     @Override
     public CircularArc toGeometry() {
         if (arc == null) {
@@ -201,6 +238,16 @@ public class StrokeArc implements GeometryConvertable<CircularArc> {
             mc.setEndStation(tempstation);
         }
         Collections.reverse(originaledges);
+        if (originalcoords != null) {
+            for (int i = 0, j = originalcoords.length - 2; i < j; i += 2, j -= 2) {
+                double x = originalcoords[i];
+                double y = originalcoords[i + 1];
+                originalcoords[i] = originalcoords[j];
+                originalcoords[i + 1] = originalcoords[j + 1];
+                originalcoords[j] = x;
+                originalcoords[j + 1] = y;
+            }
+        }
         arc = null;
         return this;
     }
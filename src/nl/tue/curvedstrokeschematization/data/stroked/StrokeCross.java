@@ -477,6 +477,29 @@ public class StrokeCross {
         }
     }
 
+    /**
+     * Exchanges the state of this cross with that of the given copy of it, to
+     * take back a change and to redo it again.
+     */
+    public void swap(StrokeCross copy) {
+        assert copy.original == original;
+        Map<Stroke, StrokeVertex> c = concrete;
+        concrete = copy.concrete;
+        copy.concrete = c;
+        Map<Stroke, StrokeArc> v = virtual;
+        virtual = copy.virtual;
+        copy.virtual = v;
+        Map<Stroke, Vector> p = virtualPos;
+        virtualPos = copy.virtualPos;
+        copy.virtualPos = p;
+        ArrayList<Vector> i = intersections;
+        intersections = copy.intersections;
+        copy.intersections = i;
+        Circle d = centerDisc;
+        centerDisc = copy.centerDisc;
+        copy.centerDisc = d;
+    }
+
     public void addVirtualPos(Stroke s, Vector v) {
         virtualPos.put(s, v);
     }
@@ -12,6 +12,8 @@ package nl.tue.curvedstrokeschematization.data.stroked;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  *
@@ -36,6 +38,10 @@ public class StrokeNetwork {
         strokes.remove(s);
     }
 
+    public void removeStrokes(Set<Stroke> remove) {
+        strokes.removeAll(remove);
+    }
+
     public void removeCross(StrokeCross sc) {
         crosses.remove(sc);
         for (StrokeVertex sv : sc.getConcreteVertices())
@@ -55,31 +61,23 @@ public class StrokeNetwork {
                 return new Iterator<StrokeVertex>() {
 
                     // indicates current
-                    int stroke = 0;
-                    int vertex = -1;
+                    int stroke = -1;
+                    Iterator<StrokeVertex> vertices = null;
 
                     public boolean hasNext() {
-                        if (stroke < strokes.size() - 1) {
-                            // there is another stroke
-                            return true;
-                        } else if (stroke > strokes.size() - 1) {
-                            // no more strokes
-                            return false;
-                        } else { // stroke == strokes.size() - 1
-                            // current stroke has a next vertex
-                            return vertex < strokes.get(stroke).getVertices().size() - 1;
+                        while ((vertices == null || !vertices.hasNext()) && stroke < strokes.size() - 1) {
+                            // continue with the vertices of the next stroke
+                            stroke++;
+                            vertices = strokes.get(stroke).getVertices().iterator();
                         }
+                        return vertices != null && vertices.hasNext();
                     }
 
                     public StrokeVertex next() {
-                        if (vertex < strokes.get(stroke).getVertices().size() - 1) {
-                            vertex++;
-                        } else {
-                            stroke++;
-                            vertex = 0;
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
                         }
-
-                        return strokes.get(stroke).getVertices().get(vertex);
+                        return vertices.next();
                     }
 
                     public void remove() {
@@ -96,32 +94,27 @@ public class StrokeNetwork {
             public Iterator<StrokeArc> iterator() {
                 return new Iterator<StrokeArc>() {
 
-                    // indicates current
-                    int stroke = 0;
-                    int arc = -1;
+                    // indicates current, an arc is the outgoing arc of a vertex
+                    int stroke = -1;
+                    Iterator<StrokeVertex> vertices = null;
+                    int remaining = 0;
 
                     public boolean hasNext() {
-                        if (stroke < strokes.size() - 1) {
-                            // there is another stroke
-                            return true;
-                        } else if (stroke > strokes.size() - 1) {
-                            // no more strokes
-                            return false;
-                        } else { // stroke == strokes.size() - 1
-                            // current stroke has a next vertex
-                            return arc < strokes.get(stroke).getArcCount() - 1;
+                        while (remaining == 0 && stroke < strokes.size() - 1) {
+                            // continue with the arcs of the next stroke
+                            stroke++;
+                            vertices = strokes.get(stroke).getVertices().iterator();
+                            remaining = Math.max(0, strokes.get(stroke).getArcCount());
                         }
+                        return remaining > 0;
                     }
 
                     public StrokeArc next() {
-                        if (arc < strokes.get(stroke).getArcCount() - 1) {
-                            arc++;
-                        } else {
-                            stroke++;
-                            arc = 0;
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
                         }
-
-                        return strokes.get(stroke).getArc(arc);
+                        remaining--;
+                        return vertices.next().getOutgoing();
                     }
 
                     public void remove() {
@@ -136,6 +129,11 @@ public class StrokeNetwork {
         crosses.add(cross);
     }
 
+    public void addAll(StrokeNetwork other) {
+        strokes.addAll(other.strokes);
+        crosses.addAll(other.crosses);
+    }
+
     public List<StrokeCross> getCrosses() {
         return crosses;
     }
@@ -24,6 +24,9 @@ public class StrokeVertex extends Vector {
     private Stroke stroke;
     private StrokeCross cross;
     private StrokeArc incoming, outgoing;
+    // the StrokeVertexList that owns this vertex, and the position in its slots
+    StrokeVertexList list = null;
+    int slot = -1;
 
     public StrokeVertex(MetroStation original) {
         super(original);
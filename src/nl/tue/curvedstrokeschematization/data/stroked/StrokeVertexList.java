@@ -0,0 +1,381 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.data.stroked;
+
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Vertex list of a stroke. Vertices occupy fixed slots; removal leaves a
+ * tombstone that is skipped by a Fenwick tree over the live slots. This gives
+ * O(1) membership tests and O(log n) removal and positional access, while
+ * iteration is amortized O(1) with a cursor per iterator. Reads do not change
+ * the list, so it may be read by several threads at once. The order along the
+ * stroke itself is maintained by the incoming/outgoing arcs of the vertices.
+ *
+ * A vertex is owned by at most one list, which records its slot in it.
+ * Adding a vertex that another list owns is rejected; to hand the vertices of
+ * a stroke to new strokes (merging, tiling), release its list first. A
+ * released list keeps its contents for positional access, but no longer
+ * tracks the vertices, and membership queries on it are rejected.
+ */
+class StrokeVertexList extends AbstractList<StrokeVertex> {
+
+    private StrokeVertex[] slots;
+    // fenwick tree over the live flags of the slots (1-based)
+    private int[] tree;
+    // number of slots in use, including tombstones
+    private int used;
+    // number of live vertices
+    private int size;
+    // whether the vertices were handed to other lists
+    private boolean released = false;
+    // lazily built set of the original stations on this stroke
+    private volatile Set<MetroStation> originals = null;
+
+    StrokeVertexList(Collection<StrokeVertex> vertices) {
+        slots = new StrokeVertex[Math.max(4, vertices.size())];
+        tree = new int[slots.length + 1];
+        used = 0;
+        size = 0;
+        for (StrokeVertex sv : vertices) {
+            checkFree(sv);
+        }
+        for (StrokeVertex sv : vertices) {
+            slots[used] = sv;
+            own(sv, used);
+            used++;
+        }
+        size = used;
+        rebuildTree();
+    }
+
+    /**
+     * Gives up the ownership of the vertices, such that they can be added to
+     * other lists.
+     */
+    void release() {
+        if (released) {
+            return;
+        }
+        for (int i = 0; i < used; i++) {
+            if (slots[i] != null && slots[i].list == this) {
+                slots[i].list = null;
+            }
+        }
+        released = true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public StrokeVertex get(int index) {
+        return slots[findSlot(index)];
+    }
+
+    @Override
+    public StrokeVertex set(int index, StrokeVertex sv) {
+        int s = findSlot(index);
+        StrokeVertex old = slots[s];
+        if (old == sv) {
+            return old;
+        }
+        checkFree(sv);
+        disown(old);
+        slots[s] = sv;
+        own(sv, s);
+        Set<MetroStation> originals = this.originals;
+        if (originals != null) {
+            originals.remove(old.getOriginal());
+            originals.add(sv.getOriginal());
+        }
+        return old;
+    }
+
+    @Override
+    public void add(int index, StrokeVertex sv) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        checkFree(sv);
+
+        if (index == size) {
+            if (used == slots.length) {
+                compact(Math.max(2 * size, 4));
+            }
+            slots[used] = sv;
+            own(sv, used);
+            treeAdd(used, 1);
+            used++;
+        } else if (!released && sv.slot >= 0 && sv.slot < used && slots[sv.slot] == null && prefixCount(sv.slot) == index) {
+            // a removal being undone: the vertex goes back into its own slot
+            slots[sv.slot] = sv;
+            own(sv, sv.slot);
+            treeAdd(sv.slot, 1);
+        } else {
+            // other insertions in the middle do not occur along the algorithm, just rebuild
+            StrokeVertex[] old = slots;
+            int oldUsed = used;
+            slots = new StrokeVertex[Math.max(2 * (size + 1), 4)];
+            used = 0;
+            int live = 0;
+            for (int i = 0; i < oldUsed; i++) {
+                if (old[i] == null) {
+                    continue;
+                }
+                if (live == index) {
+                    slots[used] = sv;
+                    own(sv, used);
+                    used++;
+                }
+                slots[used] = old[i];
+                own(old[i], used);
+                used++;
+                live++;
+            }
+            tree = new int[slots.length + 1];
+            rebuildTree();
+        }
+
+        size++;
+        modCount++;
+        Set<MetroStation> originals = this.originals;
+        if (originals != null) {
+            originals.add(sv.getOriginal());
+        }
+    }
+
+    @Override
+    public StrokeVertex remove(int index) {
+        int s = findSlot(index);
+        StrokeVertex sv = slots[s];
+        removeSlot(s);
+        return sv;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int s = slotOf(o);
+        if (s < 0) {
+            return false;
+        }
+        removeSlot(s);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return slotOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        int s = slotOf(o);
+        return s < 0 ? -1 : prefixCount(s);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < used; i++) {
+            if (slots[i] != null) {
+                disown(slots[i]);
+                slots[i] = null;
+            }
+        }
+        used = 0;
+        size = 0;
+        tree = new int[slots.length + 1];
+        originals = null;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<StrokeVertex> iterator() {
+        return new Iterator<StrokeVertex>() {
+
+            // the next slot to look at, and the number of vertices returned
+            int cursor = 0;
+            int returned = 0;
+            final int expected = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return returned < size;
+            }
+
+            @Override
+            public StrokeVertex next() {
+                if (modCount != expected) {
+                    throw new ConcurrentModificationException();
+                }
+                if (returned >= size) {
+                    throw new NoSuchElementException();
+                }
+                while (slots[cursor] == null) {
+                    cursor++;
+                }
+                returned++;
+                return slots[cursor++];
+            }
+        };
+    }
+
+    boolean containsOriginal(MetroStation station) {
+        // built on a local first, so concurrent readers never see a partial set
+        Set<MetroStation> originals = this.originals;
+        if (originals == null) {
+            originals = new HashSet();
+            for (int i = 0; i < used; i++) {
+                if (slots[i] != null) {
+                    originals.add(slots[i].getOriginal());
+                }
+            }
+            this.originals = originals;
+        }
+        return originals.contains(station);
+    }
+
+    // returns the slot of the given vertex in this list, or -1 if it is not owned by this list
+    private int slotOf(Object o) {
+        if (released) {
+            throw new IllegalStateException("The vertices of this list were released");
+        }
+        if (!(o instanceof StrokeVertex)) {
+            return -1;
+        }
+        StrokeVertex sv = (StrokeVertex) o;
+        return sv.list == this ? sv.slot : -1;
+    }
+
+    private void checkFree(StrokeVertex sv) {
+        if (!released && sv.list != null && sv.list != this) {
+            throw new IllegalArgumentException("The vertex is owned by another stroke, release that stroke first");
+        }
+        if (!released && sv.list == this && slots[sv.slot] == sv) {
+            throw new IllegalArgumentException("The vertex is already on this stroke");
+        }
+    }
+
+    private void own(StrokeVertex sv, int s) {
+        if (!released) {
+            sv.list = this;
+            sv.slot = s;
+        }
+    }
+
+    private void disown(StrokeVertex sv) {
+        if (sv.list == this) {
+            sv.list = null;
+        }
+    }
+
+    private void removeSlot(int s) {
+        StrokeVertex sv = slots[s];
+        slots[s] = null;
+        disown(sv);
+        treeAdd(s, -1);
+        size--;
+        modCount++;
+
+        Set<MetroStation> originals = this.originals;
+        if (originals != null) {
+            originals.remove(sv.getOriginal());
+        }
+
+        while (used > 0 && slots[used - 1] == null) {
+            used--;
+        }
+        if (used > 32 && size < used / 2) {
+            compact(slots.length);
+        }
+    }
+
+    private int findSlot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        // descend the fenwick tree to find the (index+1)-th live slot
+        int pos = 0;
+        int rem = index + 1;
+        int step = Integer.highestOneBit(slots.length);
+        while (step > 0) {
+            int next = pos + step;
+            if (next <= slots.length && tree[next] < rem) {
+                pos = next;
+                rem -= tree[next];
+            }
+            step >>= 1;
+        }
+        return pos;
+    }
+
+    // number of live slots before slot s
+    private int prefixCount(int s) {
+        int count = 0;
+        for (int i = s; i > 0; i -= i & -i) {
+            count += tree[i];
+        }
+        return count;
+    }
+
+    private void treeAdd(int s, int delta) {
+        for (int i = s + 1; i <= slots.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    private void rebuildTree() {
+        for (int i = 1; i < tree.length; i++) {
+            tree[i] = 0;
+        }
+        for (int i = 0; i < used; i++) {
+            if (slots[i] != null) {
+                tree[i + 1]++;
+            }
+        }
+        for (int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    private void compact(int capacity) {
+        StrokeVertex[] old = slots;
+        int oldUsed = used;
+        slots = new StrokeVertex[Math.max(capacity, 4)];
+        used = 0;
+        for (int i = 0; i < oldUsed; i++) {
+            if (old[i] != null) {
+                slots[used] = old[i];
+                own(old[i], used);
+                used++;
+            }
+        }
+        tree = new int[slots.length + 1];
+        rebuildTree();
+    }
+}
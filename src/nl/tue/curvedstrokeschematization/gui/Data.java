@@ -48,6 +48,8 @@ public class Data {
     public static int default_numCandidates = 3;
     public static double default_straightFDfactor = 1.0;
     public static boolean default_allowhighdegree = true;
+    public static double default_proxytolerance = 0;
+    public static int default_undolimit = 10000;
     protected MetroNetwork input;
     protected StrokeNetwork schematization;
     protected IterativeSchematization algorithm;
@@ -168,6 +170,8 @@ public class Data {
                 anglesteps, numCandidates,
                 straightfactor,
                 new PolyhedralFrechetDistance(PolyhedralDistanceFunction.epsApproximation2D(eps)));
+        algorithm.setProxyTolerance(default_proxytolerance, eps);
+        algorithm.setUndoLimit(default_undolimit);
         initializeAlgorithm();
     }
 
@@ -231,6 +235,25 @@ public class Data {
         }
     }
 
+    public void undoSchematizationSteps(int k, int redraw) {
+        if (schematization != null) {
+
+            rendering = null;
+            int r = redraw;
+            while (k > 0 && algorithm.undoStep()) {
+                algorithmstuck = false;
+                k--;
+                r--;
+                if (r == 0) {
+                    r = redraw;
+                    draw.repaintNow();
+                }
+            }
+
+            onDataChange();
+        }
+    }
+
     public void performSchematizationComplexity(int k, int redraw) {
         if (schematization != null) {
 
@@ -35,6 +35,7 @@ public class SidePanel extends TabbedSidePanel {
     private JButton buttonInitSchematization;
     private JButton buttonInitAlgorithm;
     private JButton buttonPerformSteps;
+    private JButton buttonUndoSteps;
     private JButton buttonMergeStrokeAngle;
     private JButton buttonMergeStrokeLine;
     private JButton buttonQuery;
@@ -58,6 +59,7 @@ public class SidePanel extends TabbedSidePanel {
         buttonMergeStrokeAngle.setEnabled(data.schematization != null);
         buttonMergeStrokeLine.setEnabled(data.schematization != null);
         buttonPerformSteps.setEnabled(!data.algorithmstuck);
+        buttonUndoSteps.setEnabled(data.schematization != null && data.algorithm.canUndo());
         buttonRunComplexity.setEnabled(!data.algorithmstuck);
         buttonRender.setEnabled(data.schematization != null);
 
@@ -213,6 +215,10 @@ public class SidePanel extends TabbedSidePanel {
             data.performSchematizationSteps((Integer) spinnerSteps.getValue(), (Integer) spinnerRedraw.getValue());
         });
 
+        buttonUndoSteps = tab.addButton("Step back", (e) -> {
+            data.undoSchematizationSteps((Integer) spinnerSteps.getValue(), (Integer) spinnerRedraw.getValue());
+        });
+
         tab.makeSplit(4, 2);
         tab.addLabel("# arcs");
         spinnerNumArcs = tab.addIntegerSpinner(4, 1, Integer.MAX_VALUE, 1, null);
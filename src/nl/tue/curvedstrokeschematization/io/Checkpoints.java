@@ -0,0 +1,274 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.io;
+
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.StepEvent;
+import nl.tue.curvedstrokeschematization.algo.store.StepReplay;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodic checkpoints of a schematization in a directory, such that a run
+ * can be resumed after it was interrupted. A subscriber of the StepPublisher
+ * of the run writes the initial network once as the base, and then every
+ * given number of steps or seconds a delta with the events of the steps since
+ * the previous checkpoint, in the record format of StepLog. A delta is written
+ * to a temporary file and then moved into place, so a checkpoint is either
+ * complete or absent.
+ *
+ * Restoring replays the deltas on the base into the network and optionally a
+ * store; the operations of the schematization are derived from the network
+ * and are recomputed by IterativeSchematization.resume. A resumed run that
+ * publishes to a new Checkpoints in the same directory appends its deltas.
+ */
+public class Checkpoints implements Flow.Subscriber<StepEvent> {
+
+    public static final int MAGIC = 0x43484B50;
+    public static final int VERSION = 1;
+
+    private static final String BASE = "base.bin";
+    private static final String DELTA = "delta-";
+
+    private final File directory;
+    private final MetroNetwork network;
+    private final int everysteps;
+    private final long everynanos;
+    private final CountDownLatch done;
+    private Flow.Subscription subscription;
+    // the events since the last checkpoint
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream buffer;
+    private int firststep, steps, delta;
+    private long last;
+    private volatile IOException error;
+
+    /**
+     * Writes a checkpoint after the given number of steps or seconds since
+     * the previous one, whichever comes first; the network is the metro
+     * network the schematized stroke network was constructed from.
+     */
+    public Checkpoints(File directory, MetroNetwork network, int everysteps, double everyseconds) {
+        this.directory = directory;
+        this.network = network;
+        this.everysteps = everysteps;
+        this.everynanos = (long) (everyseconds * 1e9);
+        this.done = new CountDownLatch(1);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        directory.mkdirs();
+        delta = deltas(directory).size();
+        bytes = new ByteArrayOutputStream();
+        buffer = new DataOutputStream(bytes);
+        firststep = -1;
+        last = System.nanoTime();
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(StepEvent event) {
+        if (error != null) {
+            // failed; events sent before the cancellation still arrive
+            return;
+        }
+        try {
+            if (event.kind == StepEvent.Kind.INITIALIZED) {
+                writeBase(event);
+                return;
+            }
+            if (firststep < 0) {
+                firststep = event.step;
+            }
+            StepLog.write(buffer, event, network);
+            if (event.kind == StepEvent.Kind.STEP_COMMITTED) {
+                steps++;
+                if (steps >= everysteps || System.nanoTime() - last >= everynanos) {
+                    writeDelta();
+                }
+            }
+        } catch (IOException ex) {
+            error = ex;
+            subscription.cancel();
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Logger.getLogger(Checkpoints.class.getName()).log(Level.SEVERE, null, throwable);
+        done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+        if (error != null) {
+            return;
+        }
+        try {
+            if (steps > 0) {
+                writeDelta();
+            }
+        } catch (IOException ex) {
+            error = ex;
+        }
+        done.countDown();
+    }
+
+    /**
+     * Waits until the publisher is closed and the last checkpoint is written.
+     */
+    public void await() throws IOException {
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeBase(StepEvent event) throws IOException {
+        // a new run: earlier checkpoints no longer apply
+        for (File f : deltas(directory)) {
+            Files.delete(f.toPath());
+        }
+        delta = 0;
+        ByteArrayOutputStream base = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(base);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(event.complexity);
+        NetworkCache.write(out, network, event.network);
+        out.flush();
+        commit(base, new File(directory, BASE));
+        last = System.nanoTime();
+    }
+
+    private void writeDelta() throws IOException {
+        buffer.flush();
+        ByteArrayOutputStream header = new ByteArrayOutputStream(bytes.size() + 16);
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(firststep);
+        out.writeInt(steps);
+        bytes.writeTo(out);
+        out.flush();
+        commit(header, new File(directory, String.format("%s%06d.bin", DELTA, delta)));
+
+        delta++;
+        bytes.reset();
+        firststep = -1;
+        steps = 0;
+        last = System.nanoTime();
+    }
+
+    // writes the bytes to a temporary file, forces them to disk and moves the file into place
+    private void commit(ByteArrayOutputStream data, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            data.writeTo(out);
+            out.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the delta files in order
+    private static List<File> deltas(File directory) {
+        List<File> deltas = new ArrayList();
+        for (int i = 0;; i++) {
+            File f = new File(directory, String.format("%s%06d.bin", DELTA, i));
+            if (!f.exists()) {
+                return deltas;
+            }
+            deltas.add(f);
+        }
+    }
+
+    /**
+     * The state restored from the checkpoints: the metro network and the
+     * replay holding the stroke network, the store and the number of steps.
+     */
+    public static class Restored {
+
+        public final MetroNetwork network;
+        public final StepReplay replay;
+
+        Restored(MetroNetwork network, StepReplay replay) {
+            this.network = network;
+            this.replay = replay;
+        }
+    }
+
+    /**
+     * Restores the state at the last checkpoint in the directory. If a store
+     * is given, it is initialized and receives the replayed steps.
+     */
+    public static Restored restore(File directory, SchematizationStore store) throws IOException {
+        NetworkCache.Entry entry;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, BASE))))) {
+            readHeader(in);
+            in.readInt();
+            entry = NetworkCache.read(in);
+        }
+        StepReplay replay = new StepReplay(entry.stroked, store);
+
+        NetworkCache.Entry[] unused = new NetworkCache.Entry[1];
+        for (File f : deltas(directory)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                readHeader(in);
+                int firststep = in.readInt();
+                int steps = in.readInt();
+                if (firststep != replay.getSteps()) {
+                    throw new IOException("Checkpoint " + f.getName() + " does not continue step " + replay.getSteps());
+                }
+                int target = firststep + steps;
+                StepEvent event;
+                while (replay.getSteps() < target && (event = StepLog.read(in, unused)) != null) {
+                    replay.apply(event);
+                }
+                if (replay.getSteps() < target) {
+                    throw new IOException("Checkpoint " + f.getName() + " is incomplete");
+                }
+            }
+        }
+        return new Restored(entry.network, replay);
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.io;
+
+import nl.tue.curvedstrokeschematization.algo.NetworkConstruction;
+import nl.tue.curvedstrokeschematization.data.metro.MetroConnection;
+import nl.tue.curvedstrokeschematization.data.metro.MetroLine;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeCross;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeNetwork;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.tue.geometrycore.geometry.Vector;
+
+/**
+ * On-disk cache of preprocessed networks: the planarized metro network and
+ * the stroke network after construction and merging, such that repeated runs
+ * on the same input can go straight to the schematization.
+ *
+ * Entries are keyed by a SHA-256 hash of the input file contents, the
+ * construction options, the version of the construction
+ * (NetworkConstruction.VERSION) and the version of the cache format. An entry stores the stations, lines and connections,
+ * followed by the strokes with their vertices, the arcs (geometry, original
+ * edges and virtual crosses) and the crosses, all referring to each other by
+ * index.
+ */
+public class NetworkCache {
+
+    public static final int MAGIC = 0x534E4343;
+    public static final int VERSION = 1;
+
+    /**
+     * A preprocessed network, ready for IterativeSchematization.init.
+     */
+    public static class Entry {
+
+        public final MetroNetwork network;
+        public final StrokeNetwork stroked;
+
+        public Entry(MetroNetwork network, StrokeNetwork stroked) {
+            this.network = network;
+            this.stroked = stroked;
+        }
+    }
+
+    private final File directory;
+
+    public NetworkCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the input and constructs the merged stroke network, or reads both
+     * from the cache if this input was processed before with the same options.
+     */
+    public Entry construct(File input, boolean fromscratch) {
+        String key;
+        try {
+            key = key(input, "fromscratch=" + fromscratch
+                    + ";merge=angle"
+                    + ";construction=" + NetworkConstruction.VERSION
+                    + ";pp=" + NetworkConstruction.parallelplanarization);
+        } catch (IOException ex) {
+            Logger.getLogger(NetworkCache.class.getName()).log(Level.SEVERE, null, ex);
+            key = null;
+        }
+
+        if (key != null) {
+            Entry entry = load(key);
+            if (entry != null) {
+                System.out.println("  loaded preprocessed network from cache");
+                return entry;
+            }
+        }
+
+        MetroNetwork network = WktIO.loadFile(input);
+        StrokeNetwork stroked = NetworkConstruction.construct(network, fromscratch);
+        NetworkConstruction.mergeStrokesAngle(stroked);
+
+        if (key != null) {
+            save(key, network, stroked);
+        }
+        return new Entry(network, stroked);
+    }
+
+    public static String key(File input, String options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(input)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        digest.update((";" + options + ";v" + VERSION).getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public Entry load(String key) {
+        File file = new File(directory, key + ".snc");
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        } catch (IOException ex) {
+            // unreadable entry, treat as a miss
+            Logger.getLogger(NetworkCache.class.getName()).log(Level.WARNING, "Ignoring cache entry " + file, ex);
+            return null;
+        }
+    }
+
+    public void save(String key, MetroNetwork network, StrokeNetwork stroked) {
+        File file = new File(directory, key + ".snc");
+        try {
+            directory.mkdirs();
+            // write aside and move, such that concurrent runs never see a partial entry
+            File temp = File.createTempFile(key, ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                write(out, network, stroked);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(NetworkCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public static void write(DataOutputStream out, MetroNetwork network, StrokeNetwork stroked) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        // stations in index order, such that reading them back assigns the same indices
+        List<MetroStation> stations = new ArrayList(network.getStations());
+        stations.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        Map<MetroStation, Integer> stationindex = new HashMap();
+        out.writeInt(stations.size());
+        for (MetroStation ms : stations) {
+            stationindex.put(ms, stationindex.size());
+            out.writeUTF(ms.getId());
+            out.writeUTF(ms.getLabel());
+            out.writeBoolean(ms.isPlanarizationStation());
+            out.writeDouble(ms.getX());
+            out.writeDouble(ms.getY());
+        }
+
+        List<MetroLine> lines = new ArrayList();
+        Map<MetroLine, Integer> lineindex = new HashMap();
+        out.writeInt(network.getLineEntries().size());
+        for (Map.Entry<String, MetroLine> entry : network.getLineEntries()) {
+            MetroLine ml = entry.getValue();
+            lineindex.put(ml, lines.size());
+            lines.add(ml);
+            out.writeUTF(entry.getKey());
+            out.writeUTF(ml.getLabel());
+            out.writeBoolean(ml.getColor() != null);
+            if (ml.getColor() != null) {
+                out.writeInt(ml.getColor().getRGB());
+            }
+        }
+
+        Map<MetroConnection, Integer> connectionindex = new HashMap();
+        out.writeInt(network.getConnections().size());
+        for (MetroConnection mc : network.getConnections()) {
+            connectionindex.put(mc, connectionindex.size());
+            out.writeUTF(mc.getId());
+            out.writeInt(stationindex.get(mc.getBeginStation()));
+            out.writeInt(stationindex.get(mc.getEndStation()));
+            out.writeInt(mc.getLines().size());
+            for (MetroLine ml : mc.getLines()) {
+                out.writeInt(lineindex.get(ml));
+            }
+        }
+
+        // the sorted order of the connections along each line
+        for (MetroLine ml : lines) {
+            out.writeInt(ml.getConnections().size());
+            for (MetroConnection mc : ml.getConnections()) {
+                out.writeInt(connectionindex.get(mc));
+            }
+        }
+
+        Map<StrokeCross, Integer> crossindex = new HashMap();
+        out.writeInt(stroked.getCrosses().size());
+        for (StrokeCross sc : stroked.getCrosses()) {
+            crossindex.put(sc, crossindex.size());
+            out.writeInt(stationindex.get(sc.getOriginal()));
+        }
+
+        Map<Stroke, Integer> strokeindex = new HashMap();
+        Map<StrokeVertex, Integer> vertexindex = new HashMap();
+        out.writeInt(stroked.getStrokes().size());
+        for (Stroke s : stroked.getStrokes()) {
+            strokeindex.put(s, strokeindex.size());
+            out.writeBoolean(s.isCircular());
+            out.writeInt(s.getVertices().size());
+            for (StrokeVertex sv : s.getVertices()) {
+                vertexindex.put(sv, vertexindex.size());
+                out.writeInt(stationindex.get(sv.getOriginal()));
+                out.writeDouble(sv.getX());
+                out.writeDouble(sv.getY());
+                out.writeInt(sv.getCross() == null ? -1 : crossindex.get(sv.getCross()));
+            }
+        }
+
+        // the outgoing arc of each vertex, in vertex order
+        Map<StrokeArc, Integer> arcindex = new HashMap();
+        for (Stroke s : stroked.getStrokes()) {
+            for (StrokeVertex sv : s.getVertices()) {
+                StrokeArc arc = sv.getOutgoing();
+                out.writeBoolean(arc != null);
+                if (arc == null) {
+                    continue;
+                }
+                arcindex.put(arc, arcindex.size());
+                out.writeInt(vertexindex.get(arc.getEnd()));
+                TileIO.writeGeometry(out, arc);
+                out.writeInt(arc.getOriginaledges().size());
+                for (MetroConnection mc : arc.getOriginaledges()) {
+                    out.writeInt(connectionindex.get(mc));
+                }
+                out.writeInt(arc.getVirtuals().size());
+                for (StrokeCross sc : arc.getVirtuals()) {
+                    out.writeInt(crossindex.get(sc));
+                }
+            }
+        }
+
+        for (StrokeCross sc : stroked.getCrosses()) {
+            out.writeInt(sc.getConcrete().size());
+            for (Map.Entry<Stroke, StrokeVertex> entry : sc.getConcrete().entrySet()) {
+                out.writeInt(strokeindex.get(entry.getKey()));
+                out.writeInt(vertexindex.get(entry.getValue()));
+            }
+            out.writeInt(sc.getVirtual().size());
+            for (Map.Entry<Stroke, StrokeArc> entry : sc.getVirtual().entrySet()) {
+                out.writeInt(strokeindex.get(entry.getKey()));
+                out.writeInt(arcindex.get(entry.getValue()));
+            }
+            List<Stroke> positioned = new ArrayList();
+            for (Stroke s : sc.getStrokes()) {
+                if (sc.getVirtualPos(s) != null) {
+                    positioned.add(s);
+                }
+            }
+            out.writeInt(positioned.size());
+            for (Stroke s : positioned) {
+                out.writeInt(strokeindex.get(s));
+                writeVector(out, sc.getVirtualPos(s));
+            }
+            out.writeInt(sc.getIntersections().size());
+            for (Vector v : sc.getIntersections()) {
+                writeVector(out, v);
+            }
+            writeVector(out, sc.getSmallestDisc().getCenter());
+            out.writeDouble(sc.getSmallestDisc().getRadius());
+        }
+    }
+
+    public static Entry read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a network cache entry");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported network cache version " + version);
+        }
+
+        MetroNetwork network = new MetroNetwork();
+
+        MetroStation[] stations = new MetroStation[in.readInt()];
+        for (int i = 0; i < stations.length; i++) {
+            String id = in.readUTF();
+            String label = in.readUTF();
+            boolean planarization = in.readBoolean();
+            stations[i] = network.addStation(new Vector(in.readDouble(), in.readDouble()), id, label, planarization);
+        }
+
+        MetroLine[] lines = new MetroLine[in.readInt()];
+        for (int i = 0; i < lines.length; i++) {
+            String id = in.readUTF();
+            String label = in.readUTF();
+            Color color = in.readBoolean() ? new Color(in.readInt(), true) : null;
+            lines[i] = network.addLine(id, label, color);
+        }
+
+        MetroConnection[] connections = new MetroConnection[in.readInt()];
+        for (int i = 0; i < connections.length; i++) {
+            String id = in.readUTF();
+            MetroStation begin = stations[in.readInt()];
+            MetroStation end = stations[in.readInt()];
+            ArrayList<MetroLine> mclines = new ArrayList();
+            int k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                mclines.add(lines[in.readInt()]);
+            }
+            connections[i] = network.addConnection(id, begin, end, mclines);
+        }
+
+        for (MetroLine ml : lines) {
+            ml.getConnections().clear();
+            int k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                ml.getConnections().add(connections[in.readInt()]);
+            }
+        }
+
+        StrokeNetwork stroked = new StrokeNetwork();
+
+        StrokeCross[] crosses = new StrokeCross[in.readInt()];
+        for (int i = 0; i < crosses.length; i++) {
+            crosses[i] = new StrokeCross(stations[in.readInt()]);
+            stroked.addCross(crosses[i]);
+        }
+
+        Stroke[] strokes = new Stroke[in.readInt()];
+        List<StrokeVertex> vertices = new ArrayList();
+        for (int i = 0; i < strokes.length; i++) {
+            boolean circular = in.readBoolean();
+            int k = in.readInt();
+            List<StrokeVertex> svs = new ArrayList();
+            for (int j = 0; j < k; j++) {
+                StrokeVertex sv = new StrokeVertex(stations[in.readInt()]);
+                sv.set(readVector(in));
+                int cross = in.readInt();
+                if (cross >= 0) {
+                    sv.setCross(crosses[cross]);
+                }
+                svs.add(sv);
+            }
+            vertices.addAll(svs);
+            strokes[i] = new Stroke(svs, circular);
+            stroked.addStroke(strokes[i]);
+        }
+
+        List<StrokeArc> arcs = new ArrayList();
+        for (StrokeVertex sv : vertices) {
+            if (!in.readBoolean()) {
+                continue;
+            }
+            StrokeVertex end = vertices.get(in.readInt());
+            StrokeArc arc = TileIO.readGeometry(in, sv, end);
+            int k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                arc.getOriginaledges().add(connections[in.readInt()]);
+            }
+            k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                arc.getVirtuals().add(crosses[in.readInt()]);
+            }
+            sv.setOutgoing(arc);
+            end.setIncoming(arc);
+            arcs.add(arc);
+        }
+
+        for (StrokeCross sc : crosses) {
+            int k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                sc.addStroke(strokes[in.readInt()], vertices.get(in.readInt()));
+            }
+            k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                sc.getVirtual().put(strokes[in.readInt()], arcs.get(in.readInt()));
+            }
+            k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                sc.addVirtualPos(strokes[in.readInt()], readVector(in));
+            }
+            k = in.readInt();
+            for (int j = 0; j < k; j++) {
+                sc.getIntersections().add(readVector(in));
+            }
+            sc.getSmallestDisc().setCenter(readVector(in));
+            sc.getSmallestDisc().setRadius(in.readDouble());
+        }
+
+        return new Entry(network, stroked);
+    }
+
+    private static void writeVector(DataOutputStream out, Vector v) throws IOException {
+        out.writeDouble(v.getX());
+        out.writeDouble(v.getY());
+    }
+
+    private static Vector readVector(DataInputStream in) throws IOException {
+        return new Vector(in.readDouble(), in.readDouble());
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.io;
+
+import nl.tue.curvedstrokeschematization.algo.schematization.FullCircleArc;
+import nl.tue.curvedstrokeschematization.algo.store.PublishedStore;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore.ConnectionNode;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore.QueryResult;
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore.StationNode;
+import nl.tue.curvedstrokeschematization.data.metro.MetroConnection;
+import nl.tue.curvedstrokeschematization.data.metro.MetroLine;
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.geometry.curved.CircularArc;
+
+/**
+ * Exports a store as a pyramid of tiles for web maps. Every zoom level is
+ * the result of a query by complexity or by cost, cut along a grid of 2^z by
+ * 2^z tiles over a square around the network. Levels are built in parallel
+ * on a frozen store; within a level, the connections are assigned to the
+ * tiles they pass through, found by cutting them at the grid lines, and every
+ * tile is clipped and written on its own, so only one tile of geometry is
+ * held per level at a time. Zoom levels range from 0 to MAXZOOM.
+ *
+ * The directory holds pyramid.bin, with the square (x, y and size) and per
+ * level the zoom, complexity and cost, and z/x/y.tile for every nonempty
+ * tile, where y counts upward from the bottom of the square. A tile has the
+ * zoom and position, a table of lines (label and RGB), the stations (label,
+ * position and radius) and the pieces of arcs (a kind, start, end, for arcs
+ * the center, and the number and indices of the lines along it as ints).
+ * Coordinates are floats relative to the lower-left corner of the tile.
+ */
+public class PyramidIO {
+
+    public static final int MAGIC = 0x5059524D;
+    public static final int VERSION = 2;
+    public static final int MAXZOOM = 30;
+
+    private static final byte STRAIGHT = 0;
+    private static final byte CLOCKWISE = 1;
+    private static final byte COUNTERCLOCKWISE = 2;
+
+    /**
+     * A zoom level and the query that gives its network.
+     */
+    public static class Level {
+
+        public final int zoom;
+        public final int complexity;
+        public final double cost;
+
+        private Level(int zoom, int complexity, double cost) {
+            if (zoom < 0 || zoom > MAXZOOM) {
+                throw new IllegalArgumentException("Zoom level " + zoom + " is not between 0 and " + MAXZOOM);
+            }
+            this.zoom = zoom;
+            this.complexity = complexity;
+            this.cost = cost;
+        }
+
+        public static Level byComplexity(int zoom, int complexity) {
+            return new Level(zoom, complexity, Double.NaN);
+        }
+
+        public static Level byCost(int zoom, double cost) {
+            return new Level(zoom, -1, cost);
+        }
+
+        QueryResult query(PublishedStore store) {
+            return Double.isNaN(cost) ? store.query(complexity) : store.query(cost);
+        }
+    }
+
+    /**
+     * Zoom levels from minzoom to maxzoom whose complexities grow
+     * geometrically from the smallest to the largest complexity of the store.
+     */
+    public static List<Level> levels(SchematizationStore store, int minzoom, int maxzoom) {
+        double low = Math.max(1, store.getMinimumComplexity());
+        double high = Math.max(low, store.getMaximumComplexity());
+        List<Level> levels = new ArrayList();
+        for (int z = minzoom; z <= maxzoom; z++) {
+            double t = maxzoom == minzoom ? 1 : (z - minzoom) / (double) (maxzoom - minzoom);
+            levels.add(Level.byComplexity(z, (int) Math.round(low * Math.pow(high / low, t))));
+        }
+        return levels;
+    }
+
+    /**
+     * Writes the pyramid of the given levels to the directory, building the
+     * levels on the given number of threads. Freezes the store.
+     */
+    public static void export(SchematizationStore store, List<Level> levels, File directory, int threads) throws IOException {
+        PublishedStore published = store.freeze();
+        directory.mkdirs();
+
+        // the square around the network at full complexity
+        double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        QueryResult full = published.query(Integer.MAX_VALUE);
+        for (ConnectionNode cn : full.connections) {
+            Piece piece = new Piece(cn.getArc());
+            double[] bounds = piece.bounds();
+            box[0] = Math.min(box[0], bounds[0]);
+            box[1] = Math.min(box[1], bounds[1]);
+            box[2] = Math.max(box[2], bounds[2]);
+            box[3] = Math.max(box[3], bounds[3]);
+        }
+        for (StationNode sn : full.stations) {
+            Vector p = sn.getMindisk().getCenter();
+            box[0] = Math.min(box[0], p.getX());
+            box[1] = Math.min(box[1], p.getY());
+            box[2] = Math.max(box[2], p.getX());
+            box[3] = Math.max(box[3], p.getY());
+        }
+        double size = Math.max(box[2] - box[0], box[3] - box[1]);
+        if (!(size > 0)) {
+            size = 1;
+        }
+        double[] square = {box[0], box[1], size};
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, "pyramid.bin"))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(square[0]);
+            out.writeDouble(square[1]);
+            out.writeDouble(square[2]);
+            out.writeInt(levels.size());
+            for (Level level : levels) {
+                out.writeInt(level.zoom);
+                out.writeInt(level.complexity);
+                out.writeDouble(level.cost);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, levels.size())));
+        try {
+            List<Future<?>> futures = new ArrayList();
+            for (Level level : levels) {
+                futures.add(pool.submit(() -> {
+                    writeLevel(published, level, square, directory);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void writeLevel(PublishedStore store, Level level, double[] square, File directory) throws IOException {
+        QueryResult result = level.query(store);
+        int n = 1 << level.zoom;
+        double tilesize = square[2] / n;
+
+        // tiles by row and column, with the stations and connections that may overlap them
+        Map<Long, List<StationNode>> stations = new TreeMap();
+        Map<Long, List<ConnectionNode>> connections = new TreeMap();
+        for (StationNode sn : result.stations) {
+            if (sn.getStation().isPlanarizationStation()) {
+                continue;
+            }
+            Vector p = sn.getMindisk().getCenter();
+            int col = clamp((int) Math.floor((p.getX() - square[0]) / tilesize), n);
+            int row = clamp((int) Math.floor((p.getY() - square[1]) / tilesize), n);
+            stations.computeIfAbsent(key(col, row), k -> new ArrayList()).add(sn);
+        }
+        for (ConnectionNode cn : result.connections) {
+            Piece piece = new Piece(cn.getArc());
+            double[] bounds = piece.bounds();
+            int c0 = clamp((int) Math.floor((bounds[0] - square[0]) / tilesize), n);
+            int r0 = clamp((int) Math.floor((bounds[1] - square[1]) / tilesize), n);
+            int c1 = clamp((int) Math.floor((bounds[2] - square[0]) / tilesize), n);
+            int r1 = clamp((int) Math.floor((bounds[3] - square[1]) / tilesize), n);
+            // cut at the grid lines inside the bounding box; between two cuts, the piece stays in one tile
+            double[] xs = new double[c1 - c0];
+            for (int col = c0 + 1; col <= c1; col++) {
+                xs[col - c0 - 1] = square[0] + col * tilesize;
+            }
+            double[] ys = new double[r1 - r0];
+            for (int row = r0 + 1; row <= r1; row++) {
+                ys[row - r0 - 1] = square[1] + row * tilesize;
+            }
+            double[] ts = piece.cuts(xs, ys);
+            Set<Long> passed = new LinkedHashSet();
+            for (int i = 0; i + 1 < ts.length; i++) {
+                double[] mid = piece.point((ts[i] + ts[i + 1]) / 2);
+                int col = clamp((int) Math.floor((mid[0] - square[0]) / tilesize), n);
+                int row = clamp((int) Math.floor((mid[1] - square[1]) / tilesize), n);
+                passed.add(key(col, row));
+            }
+            for (long tile : passed) {
+                connections.computeIfAbsent(tile, k -> new ArrayList()).add(cn);
+            }
+        }
+
+        Set<Long> tiles = new LinkedHashSet(connections.keySet());
+        tiles.addAll(stations.keySet());
+        for (long tile : tiles) {
+            int col = (int) (tile >>> 32);
+            int row = (int) tile;
+            double x0 = square[0] + col * tilesize;
+            double y0 = square[1] + row * tilesize;
+
+            List<Piece> pieces = new ArrayList();
+            List<List<MetroLine>> piecelines = new ArrayList();
+            Map<MetroLine, Integer> lineindex = new LinkedHashMap();
+            List<ConnectionNode> tileconnections = connections.getOrDefault(tile, new ArrayList());
+            for (ConnectionNode cn : tileconnections) {
+                List<Piece> clipped = new Piece(cn.getArc()).clip(x0, y0, x0 + tilesize, y0 + tilesize);
+                if (clipped.isEmpty()) {
+                    continue;
+                }
+                Set<MetroLine> lines = new LinkedHashSet();
+                for (MetroConnection mc : cn.getConnections()) {
+                    lines.addAll(mc.getLines());
+                }
+                for (MetroLine ml : lines) {
+                    lineindex.putIfAbsent(ml, lineindex.size());
+                }
+                for (Piece piece : clipped) {
+                    pieces.add(piece);
+                    piecelines.add(new ArrayList(lines));
+                }
+            }
+            List<StationNode> tilestations = stations.getOrDefault(tile, new ArrayList());
+            if (pieces.isEmpty() && tilestations.isEmpty()) {
+                continue;
+            }
+
+            File file = new File(directory, level.zoom + File.separator + col + File.separator + row + ".tile");
+            file.getParentFile().mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(level.zoom);
+                out.writeInt(col);
+                out.writeInt(row);
+
+                out.writeInt(lineindex.size());
+                for (MetroLine ml : lineindex.keySet()) {
+                    out.writeUTF(ml.getLabel() == null ? "" : ml.getLabel());
+                    out.writeInt(ml.getColor() == null ? 0 : ml.getColor().getRGB() & 0xFFFFFF);
+                }
+
+                out.writeInt(tilestations.size());
+                for (StationNode sn : tilestations) {
+                    MetroStation ms = sn.getStation();
+                    out.writeUTF(ms.getLabel() == null ? "" : ms.getLabel());
+                    out.writeFloat((float) (sn.getMindisk().getCenter().getX() - x0));
+                    out.writeFloat((float) (sn.getMindisk().getCenter().getY() - y0));
+                    out.writeFloat((float) sn.getMindisk().getRadius());
+                }
+
+                out.writeInt(pieces.size());
+                for (int i = 0; i < pieces.size(); i++) {
+                    Piece piece = pieces.get(i);
+                    out.writeByte(piece.center == null ? STRAIGHT : piece.sweep < 0 ? CLOCKWISE : COUNTERCLOCKWISE);
+                    out.writeFloat((float) (piece.sx - x0));
+                    out.writeFloat((float) (piece.sy - y0));
+                    out.writeFloat((float) (piece.ex - x0));
+                    out.writeFloat((float) (piece.ey - y0));
+                    if (piece.center != null) {
+                        out.writeFloat((float) (piece.center.getX() - x0));
+                        out.writeFloat((float) (piece.center.getY() - y0));
+                    }
+                    List<MetroLine> lines = piecelines.get(i);
+                    out.writeInt(lines.size());
+                    for (MetroLine ml : lines) {
+                        out.writeInt(lineindex.get(ml));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private static int clamp(int index, int n) {
+        return Math.max(0, Math.min(n - 1, index));
+    }
+
+    /**
+     * A segment, or an arc given by its center, radius, start angle and signed
+     * sweep (positive is counterclockwise).
+     */
+    private static class Piece {
+
+        double sx, sy, ex, ey;
+        Vector center;
+        double radius, from, sweep;
+
+        Piece(CircularArc arc) {
+            sx = arc.getStart().getX();
+            sy = arc.getStart().getY();
+            if (arc instanceof FullCircleArc) {
+                ex = sx;
+                ey = sy;
+            } else {
+                ex = arc.getEnd().getX();
+                ey = arc.getEnd().getY();
+            }
+            center = arc.getCenter();
+            if (center != null) {
+                radius = Math.hypot(sx - center.getX(), sy - center.getY());
+                from = Math.atan2(sy - center.getY(), sx - center.getX());
+                double to = Math.atan2(ey - center.getY(), ex - center.getX());
+                double ccw = normalize(to - from);
+                if (arc instanceof FullCircleArc || ccw == 0) {
+                    ccw = 2 * Math.PI;
+                }
+                sweep = arc.isCounterclockwise() ? ccw : ccw - 2 * Math.PI;
+                if (sweep == 0) {
+                    sweep = -2 * Math.PI;
+                }
+            }
+        }
+
+        Piece(Piece arc, double t0, double t1) {
+            center = arc.center;
+            radius = arc.radius;
+            from = arc.from + t0 * arc.sweep;
+            sweep = (t1 - t0) * arc.sweep;
+            if (center == null) {
+                sx = arc.sx + t0 * (arc.ex - arc.sx);
+                sy = arc.sy + t0 * (arc.ey - arc.sy);
+                ex = arc.sx + t1 * (arc.ex - arc.sx);
+                ey = arc.sy + t1 * (arc.ey - arc.sy);
+            } else {
+                sx = center.getX() + radius * Math.cos(from);
+                sy = center.getY() + radius * Math.sin(from);
+                ex = center.getX() + radius * Math.cos(from + sweep);
+                ey = center.getY() + radius * Math.sin(from + sweep);
+            }
+        }
+
+        double[] point(double t) {
+            if (center == null) {
+                return new double[]{sx + t * (ex - sx), sy + t * (ey - sy)};
+            }
+            double angle = from + t * sweep;
+            return new double[]{center.getX() + radius * Math.cos(angle), center.getY() + radius * Math.sin(angle)};
+        }
+
+        // the parameter of the given angle along the arc, or -1 if it is not on the arc
+        double parameter(double angle) {
+            double t = (sweep > 0 ? normalize(angle - from) : normalize(from - angle)) / Math.abs(sweep);
+            return t <= 1 ? t : -1;
+        }
+
+        double[] bounds() {
+            double[] bounds = {Math.min(sx, ex), Math.min(sy, ey), Math.max(sx, ex), Math.max(sy, ey)};
+            if (center != null) {
+                // the extreme points of the circle that lie on the arc
+                for (int k = 0; k < 4; k++) {
+                    if (parameter(k * Math.PI / 2) >= 0) {
+                        double[] p = point(parameter(k * Math.PI / 2));
+                        bounds[0] = Math.min(bounds[0], p[0]);
+                        bounds[1] = Math.min(bounds[1], p[1]);
+                        bounds[2] = Math.max(bounds[2], p[0]);
+                        bounds[3] = Math.max(bounds[3], p[1]);
+                    }
+                }
+            }
+            return bounds;
+        }
+
+        // the parts of this piece inside the rectangle
+        List<Piece> clip(double x0, double y0, double x1, double y1) {
+            double[] ts = cuts(new double[]{x0, x1}, new double[]{y0, y1});
+
+            List<Piece> pieces = new ArrayList();
+            double start = -1;
+            for (int i = 0; i + 1 < ts.length; i++) {
+                if (ts[i + 1] - ts[i] <= 0) {
+                    continue;
+                }
+                double[] mid = point((ts[i] + ts[i + 1]) / 2);
+                boolean inside = mid[0] >= x0 && mid[0] <= x1 && mid[1] >= y0 && mid[1] <= y1;
+                if (inside && start < 0) {
+                    start = ts[i];
+                } else if (!inside && start >= 0) {
+                    pieces.add(new Piece(this, start, ts[i]));
+                    start = -1;
+                }
+            }
+            if (start >= 0) {
+                pieces.add(start == 0 ? this : new Piece(this, start, 1));
+            }
+            return pieces;
+        }
+
+        // the sorted parameters of the ends of this piece and its crossings with the vertical and horizontal lines
+        double[] cuts(double[] xs, double[] ys) {
+            List<Double> cuts = new ArrayList();
+            cuts.add(0.0);
+            cuts.add(1.0);
+            if (center == null) {
+                for (double x : xs) {
+                    if (ex != sx) {
+                        cuts.add((x - sx) / (ex - sx));
+                    }
+                }
+                for (double y : ys) {
+                    if (ey != sy) {
+                        cuts.add((y - sy) / (ey - sy));
+                    }
+                }
+            } else {
+                for (double x : xs) {
+                    double c = (x - center.getX()) / radius;
+                    if (Math.abs(c) <= 1) {
+                        cuts.add(parameter(Math.acos(c)));
+                        cuts.add(parameter(-Math.acos(c)));
+                    }
+                }
+                for (double y : ys) {
+                    double s = (y - center.getY()) / radius;
+                    if (Math.abs(s) <= 1) {
+                        cuts.add(parameter(Math.asin(s)));
+                        cuts.add(parameter(Math.PI - Math.asin(s)));
+                    }
+                }
+            }
+            return cuts.stream().mapToDouble(Double::doubleValue).filter(t -> t >= 0 && t <= 1).sorted().toArray();
+        }
+
+        private static double normalize(double angle) {
+            double a = angle % (2 * Math.PI);
+            return a < 0 ? a + 2 * Math.PI : a;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.io;
+
+import nl.tue.curvedstrokeschematization.algo.store.SchematizationStore;
+import nl.tue.curvedstrokeschematization.algo.store.StepEvent;
+import nl.tue.curvedstrokeschematization.algo.store.StepReplay;
+import nl.tue.curvedstrokeschematization.data.metro.MetroNetwork;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only binary log of the steps of a schematization, written by a
+ * subscriber of a StepPublisher and replayed into a network and optionally a
+ * store.
+ *
+ * The log starts with a header and the initial network in the format of
+ * NetworkCache, followed by one record per event: the kind, the step, the
+ * complexity and cost, and the payload of that kind. The log is flushed after
+ * every step, and a replay ignores an incomplete step at its end, such that
+ * the log of an interrupted run can be replayed up to its last full step.
+ */
+public class StepLog {
+
+    public static final int MAGIC = 0x534C4F47;
+    public static final int VERSION = 1;
+
+    // events requested from the publisher at a time
+    private static final int BATCH = 256;
+
+    /**
+     * Writes the events it receives to a file.
+     */
+    public static class Writer implements Flow.Subscriber<StepEvent> {
+
+        private final File file;
+        private final MetroNetwork network;
+        private final CountDownLatch done;
+        private DataOutputStream out;
+        private Flow.Subscription subscription;
+        private int received;
+        private volatile IOException error;
+
+        /**
+         * The network is the metro network the schematized stroke network
+         * was constructed from.
+         */
+        public Writer(File file, MetroNetwork network) {
+            this.file = file;
+            this.network = network;
+            this.done = new CountDownLatch(1);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                subscription.request(BATCH);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        @Override
+        public void onNext(StepEvent event) {
+            if (out == null) {
+                // failed; events sent before the cancellation still arrive
+                return;
+            }
+            try {
+                write(out, event, network);
+                if (event.kind == StepEvent.Kind.STEP_COMMITTED) {
+                    out.flush();
+                }
+                received++;
+                if (received == BATCH) {
+                    received = 0;
+                    subscription.request(BATCH);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            Logger.getLogger(StepLog.class.getName()).log(Level.SEVERE, null, throwable);
+            close();
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+
+        /**
+         * Waits until the publisher is closed and the log is written.
+         */
+        public void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void fail(IOException ex) {
+            error = ex;
+            subscription.cancel();
+            close();
+        }
+
+        private void close() {
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+            } catch (IOException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+            done.countDown();
+        }
+    }
+
+    static void write(DataOutputStream out, StepEvent event, MetroNetwork network) throws IOException {
+        out.writeByte(event.kind.ordinal());
+        out.writeInt(event.step);
+        out.writeInt(event.complexity);
+        out.writeDouble(event.cost);
+        switch (event.kind) {
+            case INITIALIZED:
+                NetworkCache.write(out, network, event.network);
+                break;
+            case ARC_REPLACED:
+                out.writeInt(event.index);
+                out.writeByte(event.shape);
+                out.writeDouble(event.x);
+                out.writeDouble(event.y);
+                out.writeBoolean(event.flag);
+                break;
+            case EXTENSION_APPLIED:
+                out.writeInt(event.index);
+                out.writeDouble(event.x);
+                out.writeDouble(event.y);
+                out.writeBoolean(event.flag);
+                break;
+            case CROSS_MOVED:
+                out.writeInt(event.index);
+                out.writeInt(event.strokes.length);
+                for (int i = 0; i < event.strokes.length; i++) {
+                    out.writeInt(event.strokes[i]);
+                    out.writeDouble(event.positions[2 * i]);
+                    out.writeDouble(event.positions[2 * i + 1]);
+                }
+                out.writeInt(event.intersections.length / 2);
+                for (double d : event.intersections) {
+                    out.writeDouble(d);
+                }
+                for (double d : event.disc) {
+                    out.writeDouble(d);
+                }
+                break;
+            case VERTEX_REMOVED:
+                out.writeInt(event.index);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // the next event, or null at the end of the log; the network of INITIALIZED is read into entry
+    static StepEvent read(DataInputStream in, NetworkCache.Entry[] entry) throws IOException {
+        int kind = in.read();
+        if (kind < 0) {
+            return null;
+        }
+        if (kind >= StepEvent.Kind.values().length) {
+            throw new IOException("Corrupt step log: unknown event kind " + kind);
+        }
+        int step = in.readInt();
+        int complexity = in.readInt();
+        double cost = in.readDouble();
+        switch (StepEvent.Kind.values()[kind]) {
+            case INITIALIZED:
+                entry[0] = NetworkCache.read(in);
+                return StepEvent.initialized(entry[0].stroked, complexity);
+            case ARC_REPLACED: {
+                int vertex = in.readInt();
+                byte shape = in.readByte();
+                double x = in.readDouble();
+                double y = in.readDouble();
+                return StepEvent.arcReplaced(step, complexity, cost, vertex, shape, x, y, in.readBoolean());
+            }
+            case EXTENSION_APPLIED: {
+                int vertex = in.readInt();
+                double x = in.readDouble();
+                double y = in.readDouble();
+                return StepEvent.extensionApplied(step, complexity, cost, vertex, x, y, in.readBoolean());
+            }
+            case CROSS_MOVED: {
+                int cross = in.readInt();
+                int[] strokes = new int[in.readInt()];
+                double[] positions = new double[2 * strokes.length];
+                for (int i = 0; i < strokes.length; i++) {
+                    strokes[i] = in.readInt();
+                    positions[2 * i] = in.readDouble();
+                    positions[2 * i + 1] = in.readDouble();
+                }
+                double[] intersections = new double[2 * in.readInt()];
+                for (int i = 0; i < intersections.length; i++) {
+                    intersections[i] = in.readDouble();
+                }
+                double[] disc = {in.readDouble(), in.readDouble(), in.readDouble()};
+                return StepEvent.crossMoved(step, complexity, cost, cross, strokes, positions, intersections, disc);
+            }
+            case VERTEX_REMOVED:
+                return StepEvent.vertexRemoved(step, complexity, cost, in.readInt());
+            case STEP_COMMITTED:
+                return StepEvent.stepCommitted(step, complexity, cost);
+            default:
+                throw new IOException("Corrupt step log: unknown event kind " + kind);
+        }
+    }
+
+    /**
+     * Rebuilds the network after the given number of steps from the log
+     * (fewer if the log ends earlier). If a store is given, it is initialized
+     * and receives these steps as in the original run.
+     */
+    public static NetworkCache.Entry replay(File file, int steps, SchematizationStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a step log");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported step log version " + version);
+            }
+            NetworkCache.Entry[] entry = new NetworkCache.Entry[1];
+            StepEvent first = read(in, entry);
+            if (first == null || first.kind != StepEvent.Kind.INITIALIZED) {
+                throw new IOException("Step log without initial network");
+            }
+            StepReplay replay = new StepReplay(entry[0].stroked, store);
+
+            // events are applied per complete step
+            List<StepEvent> pending = new ArrayList();
+            try {
+                StepEvent event;
+                while (replay.getSteps() < steps && (event = read(in, entry)) != null) {
+                    pending.add(event);
+                    if (event.kind == StepEvent.Kind.STEP_COMMITTED) {
+                        for (StepEvent e : pending) {
+                            replay.apply(e);
+                        }
+                        pending.clear();
+                    }
+                }
+            } catch (EOFException ex) {
+                // incomplete last record
+            }
+            return entry[0];
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Curved Stroke Schematization
+ * Copyright (C) 2021
+ * Developed by
+ *   Arthur van Goethem (a.i.v.goethem@tue.nl)
+ *   Wouter Meulemans (w.meulemans@tue.nl)
+ *
+ * Licensed under GNU GPL v3. See provided LICENSE document for more information.
+ */
+package nl.tue.curvedstrokeschematization.io;
+
+import nl.tue.curvedstrokeschematization.algo.TiledSchematization.Tile;
+import nl.tue.curvedstrokeschematization.algo.schematization.FullCircleArc;
+import nl.tue.curvedstrokeschematization.algo.schematization.SchematizationSettings;
+import nl.tue.curvedstrokeschematization.data.metro.MetroConnection;
+import nl.tue.curvedstrokeschematization.data.metro.MetroStation;
+import nl.tue.curvedstrokeschematization.data.stroked.Stroke;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeArc;
+import nl.tue.curvedstrokeschematization.data.stroked.StrokeVertex;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.geometry.curved.CircularArc;
+import nl.tue.geometrycore.geometry.linear.Rectangle;
+
+/**
+ * Binary exchange of tiles between a coordinator and its workers.
+ *
+ * The coordinator follows its header with the algorithm settings, from which
+ * the worker creates its algorithms. A tile is written as its region, the reference box and Frechet threshold,
+ * the target, the vertex coordinates, the arcs (endpoint indices, geometry,
+ * flags and, for run arcs, the original coordinates) and the runs as lists of
+ * vertex indices. The result lists, per run, the positions of the remaining
+ * vertices and the geometry of the arcs between them.
+ */
+public class TileIO {
+
+    public static final int MAGIC = 0x54494C45;
+    public static final int VERSION = 2;
+
+    private static final byte STRAIGHT = 0;
+    private static final byte ARC = 1;
+    private static final byte CIRCLE = 2;
+
+    private static final byte FROZEN = 1;
+    private static final byte OBSTACLE = 2;
+
+    /**
+     * A tile as received by a worker.
+     */
+    public static class TileRequest {
+
+        public final Tile tile;
+        public final Rectangle reference;
+        public final double frechet;
+
+        TileRequest(Tile tile, Rectangle reference, double frechet) {
+            this.tile = tile;
+            this.reference = reference;
+            this.frechet = frechet;
+        }
+    }
+
+    public static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    public static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a tile stream");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported tile stream version " + version);
+        }
+    }
+
+    public static void writeSettings(DataOutputStream out, SchematizationSettings settings) throws IOException {
+        out.writeInt(settings.angles);
+        out.writeInt(settings.numCandidates);
+        out.writeDouble(settings.straightreduc);
+        out.writeDouble(settings.eps);
+        out.writeDouble(settings.crossdist);
+        out.writeDouble(settings.proxytolerance);
+    }
+
+    public static SchematizationSettings readSettings(DataInputStream in) throws IOException {
+        int angles = in.readInt();
+        int numCandidates = in.readInt();
+        double straightreduc = in.readDouble();
+        double eps = in.readDouble();
+        double crossdist = in.readDouble();
+        return new SchematizationSettings(angles, numCandidates, straightreduc, eps, crossdist, in.readDouble());
+    }
+
+    /**
+     * Returns the vertices of the runs, as they were written.
+     */
+    public static List<List<StrokeVertex>> writeTile(DataOutputStream out, Tile tile, Rectangle reference, double frechet) throws IOException {
+
+        List<List<StrokeVertex>> runs = new ArrayList();
+        Map<StrokeVertex, Integer> index = new HashMap();
+        List<StrokeVertex> vertices = new ArrayList();
+        List<StrokeArc> runarcs = new ArrayList();
+        for (Stroke run : tile.runs) {
+            List<StrokeVertex> rvs = new ArrayList(run.getVertices());
+            runs.add(rvs);
+            for (StrokeVertex sv : rvs) {
+                index.put(sv, vertices.size());
+                vertices.add(sv);
+            }
+            for (int i = 0; i < run.getArcCount(); i++) {
+                runarcs.add(run.getArc(i));
+            }
+        }
+
+        Set<StrokeArc> others = new LinkedHashSet(tile.frozen);
+        others.addAll(tile.obstacles);
+        for (StrokeArc arc : others) {
+            for (StrokeVertex sv : new StrokeVertex[]{arc.getStart(), arc.getEnd()}) {
+                if (!index.containsKey(sv)) {
+                    index.put(sv, vertices.size());
+                    vertices.add(sv);
+                }
+            }
+        }
+        Set<StrokeArc> obstacles = new HashSet(tile.obstacles);
+
+        writeRectangle(out, tile.region);
+        writeRectangle(out, reference);
+        out.writeDouble(frechet);
+        out.writeInt(tile.target);
+
+        out.writeInt(vertices.size());
+        for (StrokeVertex sv : vertices) {
+            out.writeDouble(sv.getX());
+            out.writeDouble(sv.getY());
+        }
+
+        out.writeInt(runarcs.size() + others.size());
+        for (StrokeArc arc : runarcs) {
+            out.writeInt(index.get(arc.getStart()));
+            out.writeInt(index.get(arc.getEnd()));
+            writeGeometry(out, arc);
+            out.writeByte(0);
+            double[] coords = arc.getOriginalCoordinates();
+            out.writeInt(coords.length);
+            for (double c : coords) {
+                out.writeDouble(c);
+            }
+        }
+        for (StrokeArc arc : others) {
+            out.writeInt(index.get(arc.getStart()));
+            out.writeInt(index.get(arc.getEnd()));
+            writeGeometry(out, arc);
+            out.writeByte((tile.frozen.contains(arc) ? FROZEN : 0) | (obstacles.contains(arc) ? OBSTACLE : 0));
+        }
+
+        out.writeInt(tile.runs.size());
+        for (int r = 0; r < runs.size(); r++) {
+            out.writeBoolean(tile.runs.get(r).isCircular());
+            out.writeInt(runs.get(r).size());
+            for (StrokeVertex sv : runs.get(r)) {
+                out.writeInt(index.get(sv));
+            }
+        }
+        out.flush();
+        return runs;
+    }
+
+    public static TileRequest readTile(DataInputStream in) throws IOException {
+
+        Rectangle region = readRectangle(in);
+        Rectangle reference = readRectangle(in);
+        double frechet = in.readDouble();
+        int target = in.readInt();
+
+        int nv = in.readInt();
+        StrokeVertex[] vertices = new StrokeVertex[nv];
+        for (int i = 0; i < nv; i++) {
+            Vector pos = new Vector(in.readDouble(), in.readDouble());
+            String id = "T" + i;
+            vertices[i] = new StrokeVertex(new MetroStation(i, pos, id, id, false));
+        }
+
+        Set<StrokeArc> frozen = new HashSet();
+        List<StrokeArc> obstacles = new ArrayList();
+        int na = in.readInt();
+        for (int i = 0; i < na; i++) {
+            StrokeVertex start = vertices[in.readInt()];
+            StrokeVertex end = vertices[in.readInt()];
+            StrokeArc arc = readGeometry(in, start, end);
+            byte flags = in.readByte();
+            if (flags == 0) {
+                double[] coords = new double[in.readInt()];
+                for (int j = 0; j < coords.length; j++) {
+                    coords[j] = in.readDouble();
+                }
+                arc.setOriginalCoordinates(coords);
+            }
+            if ((flags & FROZEN) != 0) {
+                frozen.add(arc);
+            }
+            if ((flags & OBSTACLE) != 0) {
+                obstacles.add(arc);
+            }
+            start.setOutgoing(arc);
+            end.setIncoming(arc);
+        }
+
+        int nr = in.readInt();
+        List<Stroke> runs = new ArrayList();
+        for (int r = 0; r < nr; r++) {
+            boolean circular = in.readBoolean();
+            int n = in.readInt();
+            List<StrokeVertex> rvs = new ArrayList();
+            for (int i = 0; i < n; i++) {
+                rvs.add(vertices[in.readInt()]);
+            }
+            runs.add(new Stroke(rvs, circular));
+        }
+
+        return new TileRequest(new Tile(region, runs, frozen, obstacles, target), reference, frechet);
+    }
+
+    /**
+     * Writes the simplified runs of the tile, relative to the vertices of the
+     * runs before simplification.
+     */
+    public static void writeResult(DataOutputStream out, Tile tile, List<List<StrokeVertex>> before) throws IOException {
+        for (int r = 0; r < tile.runs.size(); r++) {
+            Map<StrokeVertex, Integer> position = new HashMap();
+            List<StrokeVertex> rvs = before.get(r);
+            for (int i = 0; i < rvs.size(); i++) {
+                position.put(rvs.get(i), i);
+            }
+
+            Stroke run = tile.runs.get(r);
+            out.writeInt(run.getVertices().size());
+            for (StrokeVertex sv : run.getVertices()) {
+                out.writeInt(position.get(sv));
+            }
+            for (int i = 0; i < run.getArcCount(); i++) {
+                writeGeometry(out, run.getArc(i));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Applies the simplified runs to the tile, replacing the arcs between the
+     * remaining vertices and removing the others from the runs.
+     */
+    public static void readResult(DataInputStream in, Tile tile, List<List<StrokeVertex>> before) throws IOException {
+
+        // read everything before changing the runs
+        int[][] kept = new int[tile.runs.size()][];
+        byte[][] kinds = new byte[tile.runs.size()][];
+        double[][] geometry = new double[tile.runs.size()][];
+        for (int r = 0; r < tile.runs.size(); r++) {
+            int m = in.readInt();
+            kept[r] = new int[m];
+            for (int i = 0; i < m; i++) {
+                kept[r][i] = in.readInt();
+            }
+            int arcs = tile.runs.get(r).isCircular() ? m : m - 1;
+            kinds[r] = new byte[arcs];
+            geometry[r] = new double[3 * arcs];
+            for (int i = 0; i < arcs; i++) {
+                kinds[r][i] = in.readByte();
+                if (kinds[r][i] != STRAIGHT) {
+                    geometry[r][3 * i] = in.readDouble();
+                    geometry[r][3 * i + 1] = in.readDouble();
+                    geometry[r][3 * i + 2] = in.readBoolean() ? 1 : 0;
+                }
+            }
+        }
+
+        for (int r = 0; r < tile.runs.size(); r++) {
+            Stroke run = tile.runs.get(r);
+            List<StrokeVertex> rvs = before.get(r);
+            int n = rvs.size();
+            int m = kept[r].length;
+            for (int i = 0; i < kinds[r].length; i++) {
+                int a = kept[r][i];
+                int b = kept[r][(i + 1) % m];
+                int span = b > a ? b - a : b - a + n;
+                if (span == 1) {
+                    continue;
+                }
+
+                StrokeVertex from = rvs.get(a);
+                StrokeVertex to = rvs.get(b);
+                List<MetroConnection> jointoriginal = new ArrayList();
+                double[] jointcoords = null;
+                for (int j = 0; j < span; j++) {
+                    StrokeArc old = rvs.get((a + j) % n).getOutgoing();
+                    jointoriginal.addAll(old.getOriginaledges());
+                    jointcoords = jointcoords == null ? old.getOriginalCoordinates() : StrokeArc.joinOriginalCoordinates(jointcoords, old.getOriginalCoordinates());
+                }
+
+                StrokeArc newarc;
+                if (kinds[r][i] == CIRCLE) {
+                    Vector center = new Vector(geometry[r][3 * i], geometry[r][3 * i + 1]);
+                    newarc = new StrokeArc(from, new FullCircleArc(center, from, geometry[r][3 * i + 2] > 0), new ArrayList(), jointoriginal);
+                } else {
+                    Vector center = kinds[r][i] == ARC ? new Vector(geometry[r][3 * i], geometry[r][3 * i + 1]) : null;
+                    newarc = new StrokeArc(from, to, new CircularArc(center, from, to, geometry[r][3 * i + 2] == 0), new ArrayList(), jointoriginal);
+                }
+                newarc.setOriginalCoordinates(jointcoords);
+                from.setOutgoing(newarc);
+                to.setIncoming(newarc);
+            }
+
+            Set<StrokeVertex> remaining = new HashSet();
+            for (int i = 0; i < m; i++) {
+                remaining.add(rvs.get(kept[r][i]));
+            }
+            for (StrokeVertex sv : rvs) {
+                if (!remaining.contains(sv)) {
+                    run.getVertices().remove(sv);
+                }
+            }
+        }
+    }
+
+    static void writeGeometry(DataOutputStream out, StrokeArc arc) throws IOException {
+        if (arc.getCenter() == null) {
+            out.writeByte(STRAIGHT);
+        } else {
+            out.writeByte(arc.getStart() == arc.getEnd() ? CIRCLE : ARC);
+            out.writeDouble(arc.getCenter().getX());
+            out.writeDouble(arc.getCenter().getY());
+            out.writeBoolean(arc.isClockwise());
+        }
+    }
+
+    static StrokeArc readGeometry(DataInputStream in, StrokeVertex start, StrokeVertex end) throws IOException {
+        byte kind = in.readByte();
+        if (kind == STRAIGHT) {
+            return new StrokeArc(start, end, new CircularArc(null, start, end, false), new ArrayList(), new ArrayList());
+        }
+        Vector center = new Vector(in.readDouble(), in.readDouble());
+        boolean clockwise = in.readBoolean();
+        if (kind == CIRCLE) {
+            return new StrokeArc(start, new FullCircleArc(center, start, clockwise), new ArrayList(), new ArrayList());
+        } else {
+            return new StrokeArc(start, end, new CircularArc(center, start, end, !clockwise), new ArrayList(), new ArrayList());
+        }
+    }
+
+    private static void writeRectangle(DataOutputStream out, Rectangle rect) throws IOException {
+        out.writeDouble(rect.getLeft());
+        out.writeDouble(rect.getRight());
+        out.writeDouble(rect.getBottom());
+        out.writeDouble(rect.getTop());
+    }
+
+    private static Rectangle readRectangle(DataInputStream in) throws IOException {
+        return new Rectangle(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+    }
+}
@@ -54,13 +54,15 @@ public class WktIO {
             for (int i = 0; i < nVertices; i++) {
                 String[] xy = read.readLine().split(" ");
                 Vector v = new Vector(Double.parseDouble(xy[0]), Double.parseDouble(xy[1]));
-                stations[i] = network.addStation(v, "S" + i, "S" + i, false);
+                String id = "S" + i;
+                stations[i] = network.addStation(v, id, id, false);
             }
 
             int nEdges = Integer.parseInt(read.readLine().split(" ")[1]);
             for (int i = 0; i < nEdges; i++) {
                 String[] stxy = read.readLine().split(" ");
-                MetroLine ml = network.addLine("E" + i, "E" + i, Color.black);
+                String id = "E" + i;
+                MetroLine ml = network.addLine(id, id, Color.black);
                 int s = Integer.parseInt(stxy[0]);
                 int t = Integer.parseInt(stxy[1]);
                 if (stxy.length > 2) {
@@ -69,6 +71,8 @@ public class WktIO {
                 network.addToConnection(s + " " + t, stations[s], stations[t], ml);
             }
 
+            // every edge is its own line: the adjacency lists stay short
+            network.trimToSize();
             return network;
         } catch (IOException ex) {
             Logger.getLogger(IpeIO.class.getName()).log(Level.SEVERE, null, ex);